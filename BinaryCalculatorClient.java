@@ -0,0 +1,378 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+
+/*
+  BinaryCalculatorClient is the client library of BinaryCalculatorServer (see BinaryProtocol).
+  One instance is one connection; it is thread safe, and calls from several threads share it.
+
+  Usage:
+    BinaryCalculatorClient client = new BinaryCalculatorClient("localhost", 1100);
+    int me = client.open(clientId);            // intern the clientId once per connection
+    client.pushValue(me, 42);                  // blocking call, like the RMI Calculator
+    CompletableFuture<Integer> top = client.popAsync(me);  // pipelined calls...
+    client.flush();                            // ...are sent together on flush()
+
+  Blocking methods send their request at once and wait for the response. The *Async methods
+  only queue their request, so a batch goes out in one write; call flush() to send it (it is
+  also sent once 64 KB are queued, or by the next blocking call). Their futures complete with
+  a RemoteException (or PopTimeoutException) for a failed call, like the blocking methods throw.
+
+  Special cases:
+    - The server runs the requests of a connection in order, so pipelined calls apply in the
+      order they were made. A blocking call (awaitPop, delayPop) holds up the calls queued
+      after it on the same connection; use another connection for concurrent blocking calls.
+    - If the connection is lost, every waiting and later call fails with a RemoteException.
+ */
+public class BinaryCalculatorClient implements Closeable {
+
+    // Queued requests are sent once this many bytes are waiting
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final Thread reader;
+
+    // Requests in the order they were sent; the server answers in the same order
+    private final ConcurrentLinkedQueue<Pending<?>> pending = new ConcurrentLinkedQueue<>();
+
+    // Guarded by out
+    private ByteBuffer out = ByteBuffer.allocate(FLUSH_THRESHOLD + 1024);
+    private int nextRequestId;
+
+    // Handles of the clientIds opened through this connection
+    private final Map<String, Integer> handles = new HashMap<>();
+
+    private volatile IOException failure;
+
+    // Turns the result bytes of a successful response into the call's result
+    private interface Decoder<T> {
+        T decode(ByteBuffer result);
+    }
+
+    private static final class Pending<T> {
+        final int requestId;
+        final Decoder<T> decoder;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Pending(int requestId, Decoder<T> decoder) {
+            this.requestId = requestId;
+            this.decoder = decoder;
+        }
+    }
+
+    private static final Decoder<Void> NOTHING = result -> null;
+    private static final Decoder<Integer> INT = ByteBuffer::getInt;
+    private static final Decoder<Long> LONG = ByteBuffer::getLong;
+    private static final Decoder<Boolean> BOOLEAN = result -> result.get() != 0;
+    private static final Decoder<BigInteger> BIG = result -> {
+        byte[] bytes = new byte[result.getInt()];
+        result.get(bytes);
+        return new BigInteger(bytes);
+    };
+
+    /*
+      Connect to a BinaryCalculatorServer.
+      @throws IOException if the connection cannot be made
+     */
+    public BinaryCalculatorClient(String host, int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        reader = new Thread(this::readLoop, "calculator-binary-client");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /*
+      The handle of clientId on this connection, interning it on the server on first use.
+      @throws RemoteException if the connection fails, or it already has
+              BinaryCalculatorServer.MAX_HANDLES other clientIds
+     */
+    public int open(String clientId) throws RemoteException {
+        synchronized (handles) {
+            Integer handle = handles.get(clientId);
+            if (handle == null) {
+                handle = await(send(BinaryProtocol.OPEN, BinaryProtocol.stringSize(clientId), INT, true,
+                        buf -> BinaryProtocol.putString(buf, clientId)));
+                handles.put(clientId, handle);
+            }
+            return handle;
+        }
+    }
+
+    public int resolveOperator(String operator) throws RemoteException {
+        return await(send(BinaryProtocol.RESOLVE_OPERATOR, BinaryProtocol.stringSize(operator), INT, true,
+                buf -> BinaryProtocol.putString(buf, operator)));
+    }
+
+    public void pushValue(int handle, int val) throws RemoteException {
+        await(send(BinaryProtocol.PUSH_VALUE, 8, NOTHING, true, buf -> buf.putInt(handle).putInt(val)));
+    }
+
+    public void pushValues(int handle, int[] values) throws RemoteException {
+        await(pushValues(handle, values, true));
+    }
+
+    public void pushOperation(int handle, int opcode) throws RemoteException {
+        await(send(BinaryProtocol.PUSH_OPERATION, 8, NOTHING, true, buf -> buf.putInt(handle).putInt(opcode)));
+    }
+
+    public int pop(int handle) throws RemoteException {
+        return await(send(BinaryProtocol.POP, 4, INT, true, buf -> buf.putInt(handle)));
+    }
+
+    public int awaitPop(int handle, long timeoutMillis) throws RemoteException, PopTimeoutException {
+        CompletableFuture<Integer> future = send(BinaryProtocol.AWAIT_POP, 12, INT, true,
+                buf -> buf.putInt(handle).putLong(timeoutMillis));
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PopTimeoutException) throw (PopTimeoutException) e.getCause();
+            throw remote(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Thread interrupted", e);
+        }
+    }
+
+    public boolean isEmpty(int handle) throws RemoteException {
+        return await(send(BinaryProtocol.IS_EMPTY, 4, BOOLEAN, true, buf -> buf.putInt(handle)));
+    }
+
+    public int size(int handle) throws RemoteException {
+        return await(send(BinaryProtocol.SIZE, 4, INT, true, buf -> buf.putInt(handle)));
+    }
+
+    public int delayPop(int handle, int millis) throws RemoteException {
+        return await(send(BinaryProtocol.DELAY_POP, 8, INT, true, buf -> buf.putInt(handle).putInt(millis)));
+    }
+
+    public long popOperationLong(int handle, String operator) throws RemoteException {
+        return await(send(BinaryProtocol.POP_OPERATION_LONG, 4 + BinaryProtocol.stringSize(operator), LONG, true,
+                buf -> BinaryProtocol.putString(buf.putInt(handle), operator)));
+    }
+
+    public BigInteger popOperationBig(int handle, String operator) throws RemoteException {
+        return await(send(BinaryProtocol.POP_OPERATION_BIG, 4 + BinaryProtocol.stringSize(operator), BIG, true,
+                buf -> BinaryProtocol.putString(buf.putInt(handle), operator)));
+    }
+
+    public long peekAggregate(int handle, String operator) throws RemoteException {
+        return await(send(BinaryProtocol.PEEK_AGGREGATE, 4 + BinaryProtocol.stringSize(operator), LONG, true,
+                buf -> BinaryProtocol.putString(buf.putInt(handle), operator)));
+    }
+
+    // Pipelined forms: queued until flush()
+
+    public CompletableFuture<Void> pushValueAsync(int handle, int val) {
+        return send(BinaryProtocol.PUSH_VALUE, 8, NOTHING, false, buf -> buf.putInt(handle).putInt(val));
+    }
+
+    public CompletableFuture<Void> pushValuesAsync(int handle, int[] values) {
+        return pushValues(handle, values, false);
+    }
+
+    public CompletableFuture<Void> pushOperationAsync(int handle, int opcode) {
+        return send(BinaryProtocol.PUSH_OPERATION, 8, NOTHING, false, buf -> buf.putInt(handle).putInt(opcode));
+    }
+
+    public CompletableFuture<Integer> popAsync(int handle) {
+        return send(BinaryProtocol.POP, 4, INT, false, buf -> buf.putInt(handle));
+    }
+
+    public CompletableFuture<Boolean> isEmptyAsync(int handle) {
+        return send(BinaryProtocol.IS_EMPTY, 4, BOOLEAN, false, buf -> buf.putInt(handle));
+    }
+
+    public CompletableFuture<Integer> sizeAsync(int handle) {
+        return send(BinaryProtocol.SIZE, 4, INT, false, buf -> buf.putInt(handle));
+    }
+
+    private CompletableFuture<Void> pushValues(int handle, int[] values, boolean flush) {
+        if (values == null) {
+            return CompletableFuture.failedFuture(new RemoteException("No values to push !!"));
+        }
+        return send(BinaryProtocol.PUSH_VALUES, 8 + 4 * values.length, NOTHING, flush, buf -> {
+            buf.putInt(handle).putInt(values.length);
+            buf.asIntBuffer().put(values);
+            buf.position(buf.position() + 4 * values.length);
+        });
+    }
+
+    // Send every queued request
+    public void flush() throws RemoteException {
+        synchronized (out) {
+            try {
+                flushOut();
+            } catch (IOException e) {
+                fail(e);
+                throw new RemoteException("Connection to the calculator lost", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Encoder {
+        void encode(ByteBuffer buf);
+    }
+
+    /*
+      Queue one request with at most argumentBytes of arguments and return the future of its result;
+      flush sends it (and everything queued before it) right away.
+     */
+    private <T> CompletableFuture<T> send(byte op, int argumentBytes, Decoder<T> decoder, boolean flush, Encoder encoder) {
+        Pending<T> call;
+        synchronized (out) {
+            if (failure != null) {
+                return CompletableFuture.failedFuture(new RemoteException("Connection to the calculator lost", failure));
+            }
+            try {
+                int size = 4 + BinaryProtocol.HEADER + argumentBytes;
+                if (out.remaining() < size) {
+                    flushOut();
+                    if (out.capacity() < size) {
+                        out = ByteBuffer.allocate(size);
+                    }
+                }
+                int mark = out.position();
+                call = new Pending<>(nextRequestId++, decoder);
+                out.position(mark + 4);
+                out.putInt(call.requestId).put(op);
+                encoder.encode(out);
+                out.putInt(mark, out.position() - mark - 4);
+                // Queued before it is sent, so the reader always finds it
+                pending.add(call);
+                if (flush || out.position() >= FLUSH_THRESHOLD) {
+                    flushOut();
+                }
+            } catch (IOException e) {
+                fail(e);
+                return CompletableFuture.failedFuture(new RemoteException("Connection to the calculator lost", e));
+            }
+        }
+        if (failure != null) {
+            // The reader failed while this call was queued: make sure it is not left waiting
+            fail(failure);
+        }
+        return call.future;
+    }
+
+    // Write the queued requests; called holding out
+    private void flushOut() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+        if (out.capacity() > 1 << 20) {
+            out = ByteBuffer.allocate(FLUSH_THRESHOLD + 1024);
+        }
+    }
+
+    private void readLoop() {
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        try {
+            for (;;) {
+                if (channel.read(in) < 0) {
+                    throw new IOException("Connection closed by the server");
+                }
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < BinaryProtocol.HEADER || length > BinaryProtocol.MAX_FRAME) {
+                        throw new IOException("Bad frame length " + length);
+                    }
+                    if (in.remaining() < 4 + length) {
+                        break;
+                    }
+                    int end = in.position() + 4 + length;
+                    in.position(in.position() + 4);
+                    ByteBuffer response = in.slice();
+                    response.limit(length);
+                    in.position(end);
+                    complete(response);
+                }
+                if (in.remaining() >= 4 && 4 + in.getInt(in.position()) > in.capacity()) {
+                    ByteBuffer grown = ByteBuffer.allocate(4 + in.getInt(in.position()));
+                    grown.put(in);
+                    in = grown;
+                } else {
+                    in.compact();
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // Match a response with the oldest pending request and complete its future
+    private void complete(ByteBuffer response) throws IOException {
+        int requestId = response.getInt();
+        byte status = response.get();
+        Pending<?> call = pending.poll();
+        if (call == null || call.requestId != requestId) {
+            throw new IOException("Response " + requestId + " out of order");
+        }
+        if (status == BinaryProtocol.OK) {
+            completeWith(call, response);
+        } else if (status == BinaryProtocol.TIMEOUT) {
+            call.future.completeExceptionally(new PopTimeoutException(BinaryProtocol.getString(response)));
+        } else {
+            call.future.completeExceptionally(new RemoteException(BinaryProtocol.getString(response)));
+        }
+    }
+
+    private static <T> void completeWith(Pending<T> call, ByteBuffer response) {
+        call.future.complete(call.decoder.decode(response));
+    }
+
+    // The connection is gone: fail every waiting call and every later one
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // already closed
+        }
+        Pending<?> call;
+        while ((call = pending.poll()) != null) {
+            call.future.completeExceptionally(new RemoteException("Connection to the calculator lost", e));
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws RemoteException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw remote(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Thread interrupted", e);
+        }
+    }
+
+    private static RemoteException remote(ExecutionException e) {
+        Throwable cause = e.getCause();
+        return cause instanceof RemoteException ? (RemoteException) cause : new RemoteException(cause.getMessage(), cause);
+    }
+}
@@ -0,0 +1,529 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+  BinaryCalculatorServer serves a CalculatorImplementation over BinaryProtocol, next to the
+  RMI endpoint of CalculatorServer: same stacks, same semantics, no Java serialization.
+
+  Threads:
+    - One selector thread accepts connections, reads bytes and cuts them into frames.
+      It never runs a call, so a slow call cannot hold up other connections.
+    - Calls run on a pool of worker threads. Each connection is drained by at most one worker
+      at a time, in arrival order, so pipelined requests (push, then pop) apply in order.
+      The pool grows with blocking calls (awaitPop, delayPop) the way RMI's connection threads do.
+
+  Batching: everything a read delivers is handed to the worker as one batch, and the responses
+  of a batch are written with one write(), so a pipelining client pays one system call per
+  batch on each side instead of one per request.
+
+  Special cases:
+    - A connection whose unprocessed requests plus unwritten responses exceed MAX_PENDING bytes
+      is not read from until both drop below half of it (backpressure instead of unbounded
+      buffering). A client that pipelines but never reads its responses is thus held to about
+      MAX_PENDING of requests and MAX_PENDING of responses.
+    - While more than MAX_PENDING bytes of responses are unwritten, the worker stops draining
+      the connection; the selector thread restarts it once the socket has taken half of them.
+    - Responses that do not fit in the socket buffer are written by the selector thread when
+      the socket becomes writable.
+    - OPEN of a clientId already open on the connection returns its handle again; a connection
+      holds at most MAX_HANDLES distinct clientIds, since each pins a server session.
+    - Protocol errors (bad frame length) close the connection; call errors are answered with
+      an ERROR (or TIMEOUT for awaitPop) response and the connection stays usable.
+ */
+public class BinaryCalculatorServer implements Closeable {
+
+    // Distinct clientIds one connection can open; each holds a pinned session on the server
+    static final int MAX_HANDLES = 1024;
+
+    // Unprocessed request plus unwritten response bytes per connection before reading pauses
+    private static final int MAX_PENDING = 4 << 20;
+
+    // Responses are flushed early once this many bytes are waiting
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+    private final CalculatorImplementation calc;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Thread selectorThread;
+    private volatile boolean closed;
+
+    /*
+      Bind to port on all interfaces (0 picks a free port, see getPort) and start serving.
+      @throws IOException if the port cannot be bound
+     */
+    public BinaryCalculatorServer(CalculatorImplementation calc, int port) throws IOException {
+        this.calc = calc;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "calculator-binary-" + workerCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        selectorThread = new Thread(this::selectLoop, "calculator-binary-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    // The port this server listens on
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    // Stop accepting, close every connection and stop the threads; the calculator itself keeps running
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+    }
+
+    private void selectLoop() {
+        try {
+            while (!closed) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) c.writeReady();
+                        if (key.isValid() && key.isReadable()) c.read();
+                    } catch (IOException | RuntimeException e) {
+                        c.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed && ServerLog.WARN) ServerLog.warn("Binary protocol selector failed: " + e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) ((Connection) key.attachment()).close();
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException ignored) {
+                // shutting down
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection c = new Connection(channel);
+            c.key = channel.register(selector, SelectionKey.OP_READ, c);
+        }
+    }
+
+    /*
+      State of one client connection. The selector thread owns reading; the worker draining
+      the connection owns the interned clientIds; out, the inbox and the sessions are guarded by
+      the connection.
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+
+        // Selector thread only
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+
+        // Guarded by this
+        final ArrayDeque<ByteBuffer> inbox = new ArrayDeque<>();
+        int pendingBytes;
+        boolean running;
+        boolean readPaused;
+        // The worker stopped because out is over MAX_PENDING; writeReady restarts it
+        boolean writeBlocked;
+        ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+        boolean closed;
+
+        // Written by the worker under the connection lock, so close() sees them; read by the worker
+        String[] clients = new String[8];
+        // Server session behind each handle (see Calculator.openSession), closed with the connection
+        long[] sessions = new long[8];
+        int clientCount;
+
+        // Worker only (one at a time)
+        final Map<String, Integer> handles = new HashMap<>();
+        ByteBuffer responses = ByteBuffer.allocate(64 * 1024);
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Selector thread: read what arrived and queue every complete frame as one batch
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            int start = in.position();
+            int needed = 0;
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < BinaryProtocol.HEADER || length > BinaryProtocol.MAX_FRAME) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    needed = 4 + length;
+                    break;
+                }
+                in.position(in.position() + 4 + length);
+            }
+            if (in.position() > start) {
+                submit(ByteBuffer.wrap(Arrays.copyOfRange(in.array(), start, in.position())));
+            }
+            if (needed > in.capacity()) {
+                // Frame larger than the buffer: grow it to hold the whole frame
+                ByteBuffer grown = ByteBuffer.allocate(needed);
+                grown.put(in);
+                in = grown;
+            } else {
+                in.compact();
+                if (in.position() == 0 && in.capacity() > 1 << 20) {
+                    in = ByteBuffer.allocate(64 * 1024);
+                }
+            }
+        }
+
+        private void submit(ByteBuffer batch) {
+            boolean start;
+            synchronized (this) {
+                inbox.add(batch);
+                pendingBytes += batch.remaining();
+                if (pendingBytes + out.position() > MAX_PENDING && !readPaused) {
+                    readPaused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                start = !running && !writeBlocked;
+                if (start) running = true;
+            }
+            if (start) {
+                workers.execute(this::drain);
+            }
+        }
+
+        // Worker: run the queued requests in order until the inbox is empty
+        void drain() {
+            try {
+                for (;;) {
+                    ByteBuffer batch;
+                    synchronized (this) {
+                        if (out.position() > MAX_PENDING) {
+                            // The client is not reading: stop producing responses until it does
+                            writeBlocked = true;
+                            running = false;
+                            return;
+                        }
+                        batch = inbox.poll();
+                        if (batch == null) {
+                            running = false;
+                            return;
+                        }
+                    }
+                    int size = batch.remaining();
+                    while (batch.hasRemaining()) {
+                        int length = batch.getInt();
+                        ByteBuffer request = batch.slice();
+                        request.limit(length);
+                        batch.position(batch.position() + length);
+                        execute(request);
+                    }
+                    flush();
+                    synchronized (this) {
+                        pendingBytes -= size;
+                        resumeRead();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    running = false;
+                }
+                close();
+            }
+        }
+
+        // Run one request and append its response to responses
+        private void execute(ByteBuffer request) throws IOException {
+            int requestId = request.getInt();
+            byte op = request.get();
+            if (op == BinaryProtocol.AWAIT_POP || op == BinaryProtocol.DELAY_POP) {
+                // Do not hold earlier responses back while this call waits
+                flush();
+            }
+            reserve(64);
+            int mark = responses.position();
+            responses.position(mark + 4);
+            responses.putInt(requestId).put(BinaryProtocol.OK);
+            try {
+                switch (op) {
+                    case BinaryProtocol.OPEN:
+                        responses.putInt(intern(BinaryProtocol.getString(request)));
+                        break;
+                    case BinaryProtocol.RESOLVE_OPERATOR:
+                        responses.putInt(calc.resolveOperator(BinaryProtocol.getString(request)));
+                        break;
+                    case BinaryProtocol.PUSH_VALUE: {
+                        long session = session(request.getInt());
+                        calc.pushValue(session, request.getInt());
+                        break;
+                    }
+                    case BinaryProtocol.PUSH_VALUES: {
+                        String clientId = client(request.getInt());
+                        int count = request.getInt();
+                        if (count < 0 || count > request.remaining() / 4) {
+                            throw new RemoteException("Malformed request: " + count + " values announced");
+                        }
+                        int[] values = new int[count];
+                        request.asIntBuffer().get(values);
+                        calc.pushValues(clientId, values);
+                        break;
+                    }
+                    case BinaryProtocol.PUSH_OPERATION: {
+                        long session = session(request.getInt());
+                        calc.pushOperation(session, request.getInt());
+                        break;
+                    }
+                    case BinaryProtocol.POP:
+                        responses.putInt(calc.pop(session(request.getInt())));
+                        break;
+                    case BinaryProtocol.AWAIT_POP: {
+                        String clientId = client(request.getInt());
+                        responses.putInt(calc.awaitPop(clientId, request.getLong()));
+                        break;
+                    }
+                    case BinaryProtocol.IS_EMPTY:
+                        responses.put((byte) (calc.isEmpty(session(request.getInt())) ? 1 : 0));
+                        break;
+                    case BinaryProtocol.SIZE:
+                        responses.putInt(calc.size(client(request.getInt())));
+                        break;
+                    case BinaryProtocol.DELAY_POP: {
+                        long session = session(request.getInt());
+                        responses.putInt(calc.delayPop(session, request.getInt()));
+                        break;
+                    }
+                    case BinaryProtocol.POP_OPERATION_LONG: {
+                        String clientId = client(request.getInt());
+                        responses.putLong(calc.popOperationLong(clientId, BinaryProtocol.getString(request)));
+                        break;
+                    }
+                    case BinaryProtocol.POP_OPERATION_BIG: {
+                        String clientId = client(request.getInt());
+                        byte[] bytes = calc.popOperationBig(clientId, BinaryProtocol.getString(request)).toByteArray();
+                        reserve(4 + bytes.length);
+                        responses.putInt(bytes.length).put(bytes);
+                        break;
+                    }
+                    case BinaryProtocol.PEEK_AGGREGATE: {
+                        String clientId = client(request.getInt());
+                        responses.putLong(calc.peekAggregate(clientId, BinaryProtocol.getString(request)));
+                        break;
+                    }
+                    default:
+                        throw new RemoteException("Unknown request opcode " + op);
+                }
+            } catch (PopTimeoutException e) {
+                failed(mark, requestId, BinaryProtocol.TIMEOUT, e.getMessage());
+            } catch (RemoteException | RuntimeException e) {
+                failed(mark, requestId, BinaryProtocol.ERROR,
+                        e instanceof RemoteException ? e.getMessage() : "Malformed request: " + e);
+            }
+            responses.putInt(mark, responses.position() - mark - 4);
+            if (responses.position() >= FLUSH_THRESHOLD) {
+                flush();
+            }
+        }
+
+        // Replace the response started at mark by an error response
+        private void failed(int mark, int requestId, byte status, String message) {
+            String text = message == null ? "" : message;
+            responses.position(mark);
+            reserve(4 + BinaryProtocol.HEADER + BinaryProtocol.stringSize(text));
+            responses.position(mark + 4);
+            responses.putInt(requestId).put(status);
+            BinaryProtocol.putString(responses, text);
+        }
+
+        // Handle of clientId on this connection: the one it already has, or a new one
+        private int intern(String clientId) throws RemoteException {
+            Integer known = handles.get(clientId);
+            if (known != null) {
+                return known;
+            }
+            if (clientCount >= MAX_HANDLES) {
+                throw new LimitExceededException("Too many client handles on this connection (limit " + MAX_HANDLES + ") !!");
+            }
+            long session = calc.openPinnedSession(clientId);
+            synchronized (this) {
+                if (closed) {
+                    calc.closeSession(session);
+                    throw new RemoteException("Connection closed");
+                }
+                if (clientCount == clients.length) {
+                    clients = Arrays.copyOf(clients, clientCount * 2);
+                    sessions = Arrays.copyOf(sessions, clientCount * 2);
+                }
+                clients[clientCount] = clientId;
+                sessions[clientCount] = session;
+                handles.put(clientId, clientCount);
+                return clientCount++;
+            }
+        }
+
+        private String client(int handle) throws RemoteException {
+            if (handle < 0 || handle >= clientCount) {
+                throw new RemoteException("Unknown client handle " + handle);
+            }
+            return clients[handle];
+        }
+
+        // Session of a handle, for the calls that have a session overload
+        private long session(int handle) throws RemoteException {
+            if (handle < 0 || handle >= clientCount) {
+                throw new RemoteException("Unknown client handle " + handle);
+            }
+            return sessions[handle];
+        }
+
+        private void reserve(int bytes) {
+            if (responses.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(responses.capacity() * 2, responses.position() + bytes));
+                responses.flip();
+                grown.put(responses);
+                responses = grown;
+            }
+        }
+
+        // Worker: hand the responses so far to the socket
+        private void flush() throws IOException {
+            if (responses.position() == 0) {
+                return;
+            }
+            responses.flip();
+            synchronized (this) {
+                if (out.position() == 0) {
+                    channel.write(responses);
+                }
+                if (responses.hasRemaining()) {
+                    if (out.remaining() < responses.remaining()) {
+                        ByteBuffer grown = ByteBuffer.allocate(out.position() + responses.remaining());
+                        out.flip();
+                        grown.put(out);
+                        out = grown;
+                    }
+                    out.put(responses);
+                    if (key.isValid()) {
+                        int ops = key.interestOps() | SelectionKey.OP_WRITE;
+                        if (pendingBytes + out.position() > MAX_PENDING && !readPaused) {
+                            readPaused = true;
+                            ops &= ~SelectionKey.OP_READ;
+                        }
+                        key.interestOps(ops);
+                        selector.wakeup();
+                    }
+                }
+            }
+            responses.clear();
+            if (responses.capacity() > 1 << 20) {
+                responses = ByteBuffer.allocate(64 * 1024);
+            }
+        }
+
+        // Resume reading once requests and responses are both worked down; caller holds the lock
+        private void resumeRead() {
+            if (readPaused && pendingBytes + out.position() <= MAX_PENDING / 2 && key.isValid()) {
+                readPaused = false;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                selector.wakeup();
+            }
+        }
+
+        // Selector thread: the socket can take more of the responses left over by flush()
+        void writeReady() throws IOException {
+            boolean restart = false;
+            synchronized (this) {
+                out.flip();
+                channel.write(out);
+                out.compact();
+                if (out.position() == 0) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    if (out.capacity() > 1 << 20) {
+                        out = ByteBuffer.allocate(64 * 1024);
+                    }
+                }
+                if (writeBlocked && out.position() <= MAX_PENDING / 2) {
+                    writeBlocked = false;
+                    restart = !inbox.isEmpty();
+                    running = restart;
+                }
+                resumeRead();
+            }
+            if (restart) {
+                workers.execute(this::drain);
+            }
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // already gone
+            }
+            long[] open;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                open = Arrays.copyOf(sessions, clientCount);
+            }
+            for (long session : open) {
+                try {
+                    calc.closeSession(session);
+                } catch (RemoteException ignored) {
+                    // local call, does not fail
+                }
+            }
+        }
+    }
+}
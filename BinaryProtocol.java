@@ -0,0 +1,97 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+  BinaryProtocol defines the compact wire format shared by BinaryCalculatorServer and
+  BinaryCalculatorClient, a binary alternative to RMI for the Calculator calls.
+
+  Framing (big-endian): every message is an int length followed by that many bytes.
+    request:  int requestId, byte opcode, arguments
+    response: int requestId, byte status, result (status OK) or UTF message (ERROR, TIMEOUT)
+
+  Pipelining: a client may send any number of requests without waiting. A connection runs its
+  requests one after another in arrival order, and the responses come back in that order,
+  each carrying the requestId of its request.
+
+  Client handles: OPEN interns a clientId on the connection and returns an int handle that
+  later requests use instead of the string, so a UUID is sent and decoded once per connection.
+  Handles are valid until the connection closes. Each is backed by a server session
+  (Calculator.openSession), so calls skip the server's clientId lookup as well.
+
+  Requests and their arguments -> results:
+    OPEN              string clientId                 -> int handle
+    RESOLVE_OPERATOR  string operator                 -> int opcode
+    PUSH_VALUE        int handle, int value           -> nothing
+    PUSH_VALUES       int handle, int count, ints     -> nothing
+    PUSH_OPERATION    int handle, int opcode          -> nothing
+    POP               int handle                      -> int
+    AWAIT_POP         int handle, long timeoutMillis  -> int (TIMEOUT if nothing was pushed)
+    IS_EMPTY          int handle                      -> byte 1 or 0
+    SIZE              int handle                      -> int
+    DELAY_POP         int handle, int millis          -> int
+    POP_OPERATION_LONG int handle, string operator    -> long
+    POP_OPERATION_BIG int handle, string operator     -> int length, two's-complement bytes
+    PEEK_AGGREGATE    int handle, string operator     -> long
+  A string is a short byte length followed by UTF-8 bytes.
+
+  Special cases:
+    - delayPopAsync and executeScript have no binary form: pipelining gives the same
+      round-trip savings without callbacks or scripts.
+    - A frame shorter than a request header or longer than MAX_FRAME closes the connection.
+ */
+final class BinaryProtocol {
+
+    // Requests
+    static final byte OPEN = 1;
+    static final byte RESOLVE_OPERATOR = 2;
+    static final byte PUSH_VALUE = 3;
+    static final byte PUSH_VALUES = 4;
+    static final byte PUSH_OPERATION = 5;
+    static final byte POP = 6;
+    static final byte AWAIT_POP = 7;
+    static final byte IS_EMPTY = 8;
+    static final byte SIZE = 9;
+    static final byte DELAY_POP = 10;
+    static final byte POP_OPERATION_LONG = 11;
+    static final byte POP_OPERATION_BIG = 12;
+    static final byte PEEK_AGGREGATE = 13;
+
+    // Response status
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+    static final byte TIMEOUT = 2;
+
+    // requestId and opcode (or status)
+    static final int HEADER = 4 + 1;
+
+    // Largest frame accepted, enough for a pushValues of 16M values
+    static final int MAX_FRAME = 64 << 20;
+
+    // Longest string sent; longer error messages are cut
+    private static final int MAX_STRING = 0xffff;
+
+    private BinaryProtocol() {
+    }
+
+    static void putString(ByteBuffer buf, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_STRING);
+        buf.putShort((short) length).put(bytes, 0, length);
+    }
+
+    // Bytes putString needs at most for s
+    static int stringSize(String s) {
+        return 2 + Math.min(s.length() * 3, MAX_STRING);
+    }
+
+    static String getString(ByteBuffer buf) {
+        int length = buf.getShort() & 0xffff;
+        if (buf.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+}
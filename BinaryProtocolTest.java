@@ -0,0 +1,212 @@
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BinaryProtocolTest {
+    /*
+      Test of the binary protocol front end, run in-process: a CalculatorImplementation served by
+      BinaryCalculatorServer on a free port, driven through BinaryCalculatorClient.
+
+      Steps:
+        1. Every call gives the same results and errors as the Calculator interface.
+        2. 10000 pipelined pushes and pops on one connection apply in order.
+        3. Two connections interning the same clientId share its stack; a bad handle is rejected;
+           a repeated OPEN returns the same handle, and OPEN beyond MAX_HANDLES clientIds is rejected.
+        4. A pushValues larger than the server's read buffer arrives whole.
+        5. awaitPop times out with PopTimeoutException, and returns a value pushed from another connection.
+        6. A connection that pipelines 256 MB of requests and never reads a response is stopped
+           by backpressure after at most 64 MB, instead of the server buffering every response.
+
+      Outputs:
+        - PASS/FAIL per step.
+
+      Special cases:
+        - The server log is off unless -Dcalculator.log is given, to keep the output readable.
+     */
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("calculator.log") == null) {
+            System.setProperty("calculator.log", "off");
+        }
+        CalculatorImplementation calc = new CalculatorImplementation();
+        BinaryCalculatorServer server = new BinaryCalculatorServer(calc, 0);
+        System.out.println("Binary protocol test (port " + server.getPort() + ")");
+        try (BinaryCalculatorClient client = new BinaryCalculatorClient("localhost", server.getPort());
+             BinaryCalculatorClient other = new BinaryCalculatorClient("localhost", server.getPort())) {
+            // 1. Calls and errors
+            int a = client.open("binary-a");
+            client.pushValues(a, new int[] {12, 18, 30});
+            client.pushOperation(a, client.resolveOperator("gcd"));
+            boolean calls = client.pop(a) == 6 && client.isEmpty(a);
+            client.pushValues(a, new int[] {1 << 20, 1 << 20, 1 << 20});
+            calls &= client.peekAggregate(a, "max") == 1 << 20 && client.size(a) == 3;
+            calls &= client.popOperationBig(a, "product").equals(BigInteger.ONE.shiftLeft(60));
+            client.pushValues(a, new int[] {40000, 50000});
+            calls &= client.popOperationLong(a, "product") == 2_000_000_000L;
+            client.pushValue(a, 9);
+            calls &= client.delayPop(a, 10) == 9;
+            calls &= rejects(() -> client.pop(a)) && rejects(() -> client.resolveOperator("nope"))
+                    && rejects(() -> client.pushOperation(a, -1)) && rejects(() -> client.pushValues(a, null));
+            // The connection is still usable after errors
+            client.pushValue(a, 1);
+            calls &= client.pop(a) == 1;
+            System.out.println("1. Calls and errors: " + (calls ? "PASS" : "FAIL"));
+
+            // 2. Pipelining
+            int p = client.open("binary-pipeline");
+            List<CompletableFuture<Integer>> pops = new ArrayList<>();
+            for (int i = 0; i < 10_000; i++) {
+                client.pushValueAsync(p, i);
+                client.pushValueAsync(p, -i);
+                pops.add(client.popAsync(p));
+            }
+            CompletableFuture<Integer> size = client.sizeAsync(p);
+            client.flush();
+            boolean ordered = size.get() == 10_000;
+            for (int i = 0; i < pops.size(); i++) {
+                ordered &= pops.get(i).get() == -i;
+            }
+            System.out.println("2. Pipelined calls apply in order: " + (ordered ? "PASS" : "FAIL"));
+
+            // 3. Handles
+            int shared = other.open("binary-a");
+            other.pushValue(shared, 77);
+            boolean handles = client.pop(client.open("binary-a")) == 77 && rejects(() -> other.pop(12345));
+            handles &= openTwice(server.getPort(), "binary-a");
+            try (BinaryCalculatorClient many = new BinaryCalculatorClient("localhost", server.getPort())) {
+                for (int i = 0; i < BinaryCalculatorServer.MAX_HANDLES; i++) many.open("binary-many-" + i);
+                handles &= rejects(() -> many.open("binary-one-more"));
+            }
+            System.out.println("3. Handles shared by clientId, bad handle rejected, reused and capped: " + (handles ? "PASS" : "FAIL"));
+
+            // 4. Large frame
+            int[] big = new int[200_000];
+            for (int i = 0; i < big.length; i++) big[i] = i;
+            int b = client.open("binary-big");
+            client.pushValues(b, big);
+            boolean large = client.size(b) == big.length && client.peekAggregate(b, "max") == big.length - 1
+                    && client.popOperationLong(b, "sum") == (long) big.length * (big.length - 1) / 2;
+            System.out.println("4. Large pushValues: " + (large ? "PASS" : "FAIL"));
+
+            // 5. awaitPop
+            int w = client.open("binary-wait");
+            boolean timedOut;
+            try {
+                client.awaitPop(w, 100);
+                timedOut = false;
+            } catch (PopTimeoutException expected) {
+                timedOut = true;
+            }
+            int ow = other.open("binary-wait");
+            Thread pusher = new Thread(() -> {
+                try {
+                    Thread.sleep(200);
+                    other.pushValue(ow, 5);
+                } catch (Exception e) {
+                    System.out.println("   push failed: " + e);
+                }
+            });
+            pusher.start();
+            boolean awaited = client.awaitPop(w, 5000) == 5;
+            pusher.join();
+            System.out.println("5. awaitPop timeout: " + (timedOut ? "PASS" : "FAIL")
+                    + ", awaitPop wakeup: " + (awaited ? "PASS" : "FAIL"));
+
+            // 6. A client that never reads
+            long written = writeWithoutReading(server.getPort(), "binary-unread", 256L << 20);
+            System.out.println("6. Non-reading client held back after " + (written >> 20) + " MB: "
+                    + (written <= 64L << 20 ? "PASS" : "FAIL"));
+        } finally {
+            server.close();
+            calc.shutdown();
+        }
+    }
+
+    // Send OPEN for clientId twice on a raw connection; true if both answers are handle 0
+    private static boolean openTwice(int port, String clientId) throws Exception {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            ByteBuffer open = ByteBuffer.allocate(2 * (4 + BinaryProtocol.HEADER + BinaryProtocol.stringSize(clientId)));
+            for (int i = 0; i < 2; i++) {
+                int mark = open.position();
+                open.putInt(0).putInt(i).put(BinaryProtocol.OPEN);
+                BinaryProtocol.putString(open, clientId);
+                open.putInt(mark, open.position() - mark - 4);
+            }
+            open.flip();
+            while (open.hasRemaining()) channel.write(open);
+            // Two responses: int length, int requestId, byte OK, int handle
+            ByteBuffer answers = ByteBuffer.allocate(2 * (4 + BinaryProtocol.HEADER + 4));
+            while (answers.hasRemaining() && channel.read(answers) >= 0) {
+                // until both arrived
+            }
+            answers.flip();
+            boolean same = true;
+            for (int i = 0; i < 2; i++) {
+                answers.getInt();
+                same &= answers.getInt() == i && answers.get() == BinaryProtocol.OK && answers.getInt() == 0;
+            }
+            return same;
+        }
+    }
+
+    /*
+      Open clientId and pipeline SIZE requests for it on a raw connection that is never read,
+      until total bytes are written or writing makes no progress for three seconds.
+      Returns the bytes written.
+     */
+    private static long writeWithoutReading(int port, String clientId, long total) throws Exception {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            ByteBuffer open = ByteBuffer.allocate(4 + BinaryProtocol.HEADER + BinaryProtocol.stringSize(clientId));
+            open.putInt(0).putInt(-1).put(BinaryProtocol.OPEN);
+            BinaryProtocol.putString(open, clientId);
+            open.putInt(0, open.position() - 4).flip();
+            channel.write(open);
+            // The first clientId interned on a connection gets handle 0
+            int frame = 4 + BinaryProtocol.HEADER + 4;
+            ByteBuffer requests = ByteBuffer.allocate(frame * 4096);
+            for (int i = 0; requests.hasRemaining(); i++) {
+                requests.putInt(frame - 4).putInt(i).put(BinaryProtocol.SIZE).putInt(0);
+            }
+            AtomicLong written = new AtomicLong();
+            Thread writer = new Thread(() -> {
+                try {
+                    while (written.get() < total) {
+                        requests.clear();
+                        while (requests.hasRemaining()) {
+                            written.addAndGet(channel.write(requests));
+                        }
+                    }
+                } catch (Exception e) {
+                    // closed below while blocked in write
+                }
+            });
+            writer.setDaemon(true);
+            writer.start();
+            long last = -1;
+            while (writer.isAlive() && written.get() != last) {
+                last = written.get();
+                writer.join(3000);
+            }
+            return written.get();
+        }
+    }
+
+    private interface RemoteCall {
+        void run() throws RemoteException;
+    }
+
+    // true if the call was rejected with a RemoteException
+    private static boolean rejects(RemoteCall call) {
+        try {
+            call.run();
+            return false;
+        } catch (RemoteException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+import java.math.BigInteger;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+  BufferedCalculator is a client-side Calculator that wraps any other one (an RMI stub, a
+  ClusterCalculator) and holds pushValue calls back: the values are kept per clientId in this
+  process and sent as one pushValues call when the client next needs the server's stack.
+  Existing clients that push one operand per call get batching by wrapping their stub:
+      Calculator calc = new BufferedCalculator((Calculator) Naming.lookup("rmi://localhost/Calculator"));
+
+  Flushes: the buffered values of a clientId are sent, in push order,
+    - before any other call on that clientId (pop, isEmpty, pushOperation, delayPop, ...),
+      and before a session call on a session opened through this proxy for it, or the endReduce
+      of a stream begun through this proxy for it;
+    - when maxBatch values are buffered for it;
+    - at the latest maxDelayMillis after the first of them was buffered (by a timer thread);
+    - by flush() and close().
+
+  Special cases:
+    - Every call made through this proxy sees the same stack as through the wrapped one. Other
+      processes using the same clientId see buffered values only after a flush.
+    - A pushValue that the server rejects with a LimitExceededException (maxStackDepth,
+      maxClients), which it throws before changing anything, fails on the call that flushes it
+      instead of on the pushValue itself. The batch is then replayed one value at a time, so the
+      values before the rejected one stay pushed, as with direct calls.
+    - Unlike direct calls, the flushing call itself is then not made: a pop, isEmpty, ... that
+      flushes a rejected push throws the push's error without popping, so the caller can act on
+      the lost push and call again.
+    - Any other failure of a batch (a transport error, or a server error after the values were
+      pushed, such as a write-ahead log failure) is not resent, since the server may have
+      applied it; the error is thrown by the flushing call. A failed timer flush is thrown by
+      the next call on that clientId.
+    - Session pushValue calls, shared stacks and resolveOperator are not buffered.
+ */
+public class BufferedCalculator implements Calculator, AutoCloseable {
+
+    // Buffered values of one clientId; guarded by its own lock, like IntStack
+    private static final class Buffer {
+        int[] values = new int[16];
+        int count;
+        long firstNanos;
+        RemoteException failure;
+        boolean retired;
+    }
+
+    private final Calculator calc;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final Map<String, Buffer> buffers = new ConcurrentHashMap<>();
+    private final Map<Long, String> sessions = new ConcurrentHashMap<>();
+    private final Map<Long, String> reduceStreams = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+
+    // Batches of up to 1024 values, sent at most 50 ms after the first one was buffered
+    public BufferedCalculator(Calculator calc) {
+        this(calc, 1024, 50);
+    }
+
+    /*
+      @param maxBatch values buffered per clientId before they are sent (1 sends every push at once)
+      @param maxDelayMillis longest time a value stays buffered (0 keeps it until the next call
+             on its clientId, maxBatch or flush)
+     */
+    public BufferedCalculator(Calculator calc, int maxBatch, long maxDelayMillis) {
+        if (maxBatch < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("maxBatch must be positive and maxDelayMillis not negative");
+        }
+        this.calc = calc;
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        if (maxDelayMillis > 0) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "BufferedCalculator-flush");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1, maxDelayMillis / 2);
+            timer.scheduleWithFixedDelay(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            timer = null;
+        }
+    }
+
+    // Send the buffered values of every clientId
+    public void flush() throws RemoteException {
+        RemoteException first = null;
+        for (String clientId : buffers.keySet()) {
+            try {
+                flush(clientId);
+            } catch (RemoteException e) {
+                if (first == null) first = e;
+            }
+        }
+        if (first != null) throw first;
+    }
+
+    // Flush everything and stop the timer; the wrapped Calculator stays usable
+    @Override
+    public void close() throws RemoteException {
+        if (timer != null) timer.shutdown();
+        flush();
+    }
+
+    // Number of values held back for clientId
+    public int getBufferedCount(String clientId) {
+        Buffer buffer = buffers.get(clientId);
+        if (buffer == null) return 0;
+        synchronized (buffer) {
+            return buffer.count;
+        }
+    }
+
+    // Send the buffered values of clientId, or throw the failure of an earlier timer flush
+    private void flush(String clientId) throws RemoteException {
+        Buffer buffer = buffers.get(clientId);
+        if (buffer == null) return;
+        synchronized (buffer) {
+            send(clientId, buffer);
+        }
+    }
+
+    // Caller holds the buffer's lock, so batches of one clientId are sent in order
+    private void send(String clientId, Buffer buffer) throws RemoteException {
+        if (buffer.failure != null) {
+            RemoteException failure = buffer.failure;
+            buffer.failure = null;
+            throw failure;
+        }
+        if (buffer.count == 0) return;
+        int[] batch = Arrays.copyOf(buffer.values, buffer.count);
+        buffer.count = 0;
+        try {
+            calc.pushValues(clientId, batch);
+        } catch (RemoteException e) {
+            // Only a limit is known to reject the whole batch before any value was pushed
+            if (!LimitExceededException.isCause(e)) throw e;
+            // pushValues is all or nothing; push one at a time up to the rejected value
+            for (int val : batch) {
+                calc.pushValue(clientId, val);
+            }
+        }
+    }
+
+    private void flushExpired() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Buffer> entry : buffers.entrySet()) {
+            Buffer buffer = entry.getValue();
+            synchronized (buffer) {
+                if (buffer.count > 0 && now - buffer.firstNanos >= maxDelayNanos) {
+                    try {
+                        send(entry.getKey(), buffer);
+                    } catch (RemoteException e) {
+                        buffer.failure = e;
+                    }
+                } else if (buffer.count == 0 && buffer.failure == null) {
+                    // Idle: drop it so clientIds that stop pushing do not pile up
+                    buffer.retired = true;
+                    buffers.remove(entry.getKey(), buffer);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void pushValue(String clientId, int val) throws RemoteException {
+        for (;;) {
+            Buffer buffer = buffers.computeIfAbsent(clientId, id -> new Buffer());
+            synchronized (buffer) {
+                if (buffer.retired) continue;
+                if (buffer.count == buffer.values.length) {
+                    buffer.values = Arrays.copyOf(buffer.values, Math.min(maxBatch, buffer.count * 2));
+                }
+                if (buffer.count == 0) buffer.firstNanos = System.nanoTime();
+                buffer.values[buffer.count++] = val;
+                if (buffer.count >= maxBatch) send(clientId, buffer);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void pushValues(String clientId, int[] values) throws RemoteException {
+        flush(clientId);
+        calc.pushValues(clientId, values);
+    }
+
+    @Override
+    public void pushOperation(String clientId, String operator) throws RemoteException {
+        flush(clientId);
+        calc.pushOperation(clientId, operator);
+    }
+
+    @Override
+    public int resolveOperator(String operator) throws RemoteException {
+        return calc.resolveOperator(operator);
+    }
+
+    @Override
+    public void pushOperation(String clientId, int opcode) throws RemoteException {
+        flush(clientId);
+        calc.pushOperation(clientId, opcode);
+    }
+
+    @Override
+    public long popOperationLong(String clientId, String operator) throws RemoteException {
+        flush(clientId);
+        return calc.popOperationLong(clientId, operator);
+    }
+
+    @Override
+    public BigInteger popOperationBig(String clientId, String operator) throws RemoteException {
+        flush(clientId);
+        return calc.popOperationBig(clientId, operator);
+    }
+
+    @Override
+    public long peekAggregate(String clientId, String operator) throws RemoteException {
+        flush(clientId);
+        return calc.peekAggregate(clientId, operator);
+    }
+
+    @Override
+    public int pop(String clientId) throws RemoteException {
+        flush(clientId);
+        return calc.pop(clientId);
+    }
+
+    @Override
+    public int awaitPop(String clientId, long timeoutMillis) throws RemoteException, PopTimeoutException {
+        flush(clientId);
+        return calc.awaitPop(clientId, timeoutMillis);
+    }
+
+    @Override
+    public boolean isEmpty(String clientId) throws RemoteException {
+        flush(clientId);
+        return calc.isEmpty(clientId);
+    }
+
+    @Override
+    public int size(String clientId) throws RemoteException {
+        flush(clientId);
+        return calc.size(clientId);
+    }
+
+    @Override
+    public int delayPop(String clientId, int millis) throws RemoteException {
+        flush(clientId);
+        return calc.delayPop(clientId, millis);
+    }
+
+    @Override
+    public void delayPopAsync(String clientId, int millis, PopCallback callback) throws RemoteException {
+        flush(clientId);
+        calc.delayPopAsync(clientId, millis, callback);
+    }
+
+    @Override
+    public ScriptResult executeScript(String clientId, List<Command> script) throws RemoteException {
+        flush(clientId);
+        return calc.executeScript(clientId, script);
+    }
+
+    @Override
+    public void pushShared(String stackName, int val) throws RemoteException {
+        calc.pushShared(stackName, val);
+    }
+
+    @Override
+    public int popShared(String stackName) throws RemoteException {
+        return calc.popShared(stackName);
+    }
+
+    @Override
+    public boolean isSharedEmpty(String stackName) throws RemoteException {
+        return calc.isSharedEmpty(stackName);
+    }
+
+    // A streaming reduce does not read the stack, so only endReduce, which pushes onto it, flushes
+    @Override
+    public long beginReduce(String clientId, String operator) throws RemoteException {
+        long stream = calc.beginReduce(clientId, operator);
+        reduceStreams.put(stream, clientId);
+        return stream;
+    }
+
+    @Override
+    public void reduceChunk(long stream, int[] values) throws RemoteException {
+        calc.reduceChunk(stream, values);
+    }
+
+    @Override
+    public void endReduce(long stream) throws RemoteException {
+        String clientId = reduceStreams.get(stream);
+        if (clientId != null) flush(clientId);
+        calc.endReduce(stream);
+        reduceStreams.remove(stream);
+    }
+
+    @Override
+    public long endReduceLong(long stream) throws RemoteException {
+        reduceStreams.remove(stream);
+        return calc.endReduceLong(stream);
+    }
+
+    @Override
+    public long openSession(String clientId) throws RemoteException {
+        flush(clientId);
+        long session = calc.openSession(clientId);
+        sessions.put(session, clientId);
+        return session;
+    }
+
+    @Override
+    public void closeSession(long session) throws RemoteException {
+        sessions.remove(session);
+        calc.closeSession(session);
+    }
+
+    // Session calls act on the clientId's stack, so its buffered values go first
+    private void flushSession(long session) throws RemoteException {
+        String clientId = sessions.get(session);
+        if (clientId != null) flush(clientId);
+    }
+
+    @Override
+    public void pushValue(long session, int val) throws RemoteException {
+        flushSession(session);
+        calc.pushValue(session, val);
+    }
+
+    @Override
+    public void pushOperation(long session, int opcode) throws RemoteException {
+        flushSession(session);
+        calc.pushOperation(session, opcode);
+    }
+
+    @Override
+    public int pop(long session) throws RemoteException {
+        flushSession(session);
+        return calc.pop(session);
+    }
+
+    @Override
+    public boolean isEmpty(long session) throws RemoteException {
+        flushSession(session);
+        return calc.isEmpty(session);
+    }
+
+    @Override
+    public int delayPop(long session, int millis) throws RemoteException {
+        flushSession(session);
+        return calc.delayPop(session, millis);
+    }
+}
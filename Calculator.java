@@ -1,5 +1,7 @@
+import java.math.BigInteger;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 //Calculator interface defines the remote methods that clients can call.
 public interface Calculator extends Remote {
@@ -11,17 +13,81 @@ public interface Calculator extends Remote {
      */
     void pushValue(String clientId, int val) throws RemoteException;
 
+    /*
+      Push a batch of integer values onto the stack in one remote call.
+      Values are pushed in array order, so the last element ends up on top.
+      The whole batch is applied atomically: no other call on the same
+      clientId can observe or interleave with a partially pushed batch.
+      @param values the values to push onto the stack.
+      void no return value
+      @throws RemoteException if remote communication fails or values is null
+     */
+    void pushValues(String clientId, int[] values) throws RemoteException;
+
     /*
       Push an operation onto the stack.
-      Expected operators: min, max, lcm, gcd
+      Expected operators: min, max, lcm, gcd, sum, product, avg, median, popcount, xor
+      (case-insensitive). avg and median round down; popcount counts the set bits of all values.
       This will pop all values on the stack, apply the operation,
       and push the result back.
+      min, max and gcd take constant time (see peekAggregate); the others are linear in the depth.
       @param operator the operation to perform.
       void no return value
-      @throws RemoteException if remote communication fails.
+      @throws RemoteException if remote communication fails, or if the result does not fit
+              in an int (the stack is then left unchanged; use popOperationLong or popOperationBig).
      */
     void pushOperation(String clientId, String operator) throws RemoteException;
 
+    /*
+      Return the opcode of an operator, for use with pushOperation(clientId, opcode).
+      Opcodes stay valid for the lifetime of the server, so clients resolve each name once.
+      @param operator the operator name (case-insensitive).
+      @return the opcode of the operator
+      @throws RemoteException if remote communication fails or the operator is not supported.
+     */
+    int resolveOperator(String operator) throws RemoteException;
+
+    /*
+      Same as pushOperation(clientId, operator) with an opcode from resolveOperator,
+      which skips the name lookup on every call.
+      @param opcode the opcode of the operation to perform.
+      void no return value
+      @throws RemoteException if remote communication fails, the opcode is unknown
+              or the result does not fit in an int (the stack is then left unchanged).
+     */
+    void pushOperation(String clientId, int opcode) throws RemoteException;
+
+    /*
+      Apply an operation (min, max, lcm, gcd) to all values on the stack and return
+      the result as a long instead of pushing it back. The stack is left empty.
+      Use it when the result (typically lcm) can exceed the int range.
+      @param operator the operation to perform.
+      @return the result of the operation
+      @throws RemoteException if remote communication fails, the stack is empty, the operator
+              is not supported or the result does not fit in a long (the stack is then left unchanged).
+     */
+    long popOperationLong(String clientId, String operator) throws RemoteException;
+
+    /*
+      Same as popOperationLong, but returns an exact BigInteger result of any size.
+      @param operator the operation to perform.
+      @return the result of the operation
+      @throws RemoteException if remote communication fails, the stack is empty
+              or the operator is not supported (the stack is then left unchanged).
+     */
+    BigInteger popOperationBig(String clientId, String operator) throws RemoteException;
+
+    /*
+      Return the result of an operation (min, max, lcm, gcd) over all values on the stack
+      without changing the stack. min, max and gcd are kept up to date on every push and pop,
+      so they are answered in constant time at any depth; lcm walks the values.
+      @param operator the operation to evaluate.
+      @return the result of the operation
+      @throws RemoteException if remote communication fails, the stack is empty, the operator
+              is not supported or the result does not fit in a long.
+     */
+    long peekAggregate(String clientId, String operator) throws RemoteException;
+
     /*
       Pop the top value from the stack.
       @return the popped integer value
@@ -29,18 +95,187 @@ public interface Calculator extends Remote {
      */
     int pop(String clientId) throws RemoteException;
 
+    /*
+      Pop the top value, waiting up to timeoutMillis for another call to push one
+      if the stack is empty. Replaces polling isEmpty and pop with a single long-poll.
+      @param timeoutMillis maximum time to wait in milliseconds (0 does not wait)
+      @return the popped integer value
+      @throws PopTimeoutException if the stack is still empty when the timeout expires
+      @throws RemoteException if remote communication fails or timeoutMillis is negative
+     */
+    int awaitPop(String clientId, long timeoutMillis) throws RemoteException, PopTimeoutException;
+
     /*
       Check if the stack is empty.
+      Wait-free on the server: it reads the stack's published depth without taking its lock,
+      so polling never delays pushes and pops from other callers.
       @return true if empty, false otherwise
       @throws RemoteException if remote communication fails
      */
     boolean isEmpty(String clientId) throws RemoteException;
 
+    /*
+      Number of values on the stack, read wait-free like isEmpty.
+      @return the stack depth (0 for a clientId that has no stack)
+      @throws RemoteException if remote communication fails
+     */
+    int size(String clientId) throws RemoteException;
+
     /*
       Wait for a given time in milliseconds, then pop the top value.
+      The RMI call (and its server thread) stays blocked for the whole delay;
+      use delayPopAsync when many clients wait at the same time.
       @param millis time to wait in milliseconds
       @return the popped integer value
       @throws RemoteException if remote communication fails
      */
     int delayPop(String clientId, int millis) throws RemoteException;
+
+    /*
+      Asynchronous delayPop: returns immediately and pops the top value after the delay
+      on a shared server timer, then reports it through the client's exported callback
+      from a separate pool of callback threads.
+      No server thread is held while the delay runs, unlike delayPop.
+      @param millis time to wait in milliseconds
+      @param callback receives popped(value), or failed(message) if the stack is empty
+      void no return value
+      @throws RemoteException if remote communication fails, millis is negative or callback is null
+     */
+    void delayPopAsync(String clientId, int millis, PopCallback callback) throws RemoteException;
+
+    /*
+      Run a script of push, operation, pop and isEmpty commands in one remote call.
+      The whole script runs while holding the client's stack lock, so no other call
+      on the same clientId can interleave with it; isEmpty and size, which take no lock,
+      answer as before the script until its last step is done.
+      @param script the commands to run in order.
+      @return the pop values and isEmpty answers in script order; if a step fails,
+              the steps before it stay applied and the result reports the failed step.
+      @throws RemoteException if remote communication fails or script is null
+     */
+    ScriptResult executeScript(String clientId, List<Command> script) throws RemoteException;
+
+    /*
+      Register clientId once and get a session handle for it.
+      The handle overloads below (pushValue, pushOperation, pop, isEmpty, delayPop) index straight
+      into a server-side table instead of sending and hashing the clientId string on every call;
+      they act on the same stack as the clientId overloads, which old clients keep using.
+      A session is closed by closeSession, or by the server once its stack is evicted as idle;
+      sessions do not survive a server restart. Calls on a closed session are rejected, so
+      clients then open a new one.
+      A handle carries 32 random bits, so it cannot be guessed from other handles: like the clientId,
+      it is the only thing needed to act on the client's stack, so keep it as private.
+      @return the session handle (never negative)
+      @throws RemoteException if remote communication fails or the maxClients limit is reached
+     */
+    long openSession(String clientId) throws RemoteException;
+
+    /*
+      Close a session from openSession. The client's stack is kept.
+      Closing an unknown or already closed session does nothing.
+      void no return value
+      @throws RemoteException if remote communication fails
+     */
+    void closeSession(long session) throws RemoteException;
+
+    /*
+      Same as pushValue(clientId, val) for the client of an open session.
+      @throws RemoteException if remote communication fails or the session is not open
+     */
+    void pushValue(long session, int val) throws RemoteException;
+
+    /*
+      Same as pushOperation(clientId, opcode) for the client of an open session.
+      @throws RemoteException if remote communication fails, the session is not open, the opcode
+              is unknown or the result does not fit in an int (the stack is then left unchanged).
+     */
+    void pushOperation(long session, int opcode) throws RemoteException;
+
+    /*
+      Same as pop(clientId) for the client of an open session.
+      @throws RemoteException if remote communication fails, the session is not open or the stack is empty
+     */
+    int pop(long session) throws RemoteException;
+
+    /*
+      Same as isEmpty(clientId) for the client of an open session.
+      @throws RemoteException if remote communication fails or the session is not open
+     */
+    boolean isEmpty(long session) throws RemoteException;
+
+    /*
+      Same as delayPop(clientId, millis) for the client of an open session.
+      @throws RemoteException if remote communication fails, the session is not open or the stack is empty
+     */
+    int delayPop(long session, int millis) throws RemoteException;
+
+    /*
+      Push a value onto a named shared stack. Unlike the per-client stacks, a shared stack is
+      used by every client that names it, and pushes and pops from many clients run
+      concurrently without a lock. Shared stacks are kept in memory only; a stack holding
+      values is never evicted, an empty one may be dropped (it reads the same as before).
+      @param stackName the name of the shared stack (created on first push)
+      @param val the value to push
+      void no return value
+      @throws RemoteException if remote communication fails, stackName is null or a limit
+              (maxClients stacks, maxStackDepth values) is reached
+     */
+    void pushShared(String stackName, int val) throws RemoteException;
+
+    /*
+      Pop the top value of a named shared stack.
+      @return the popped integer value
+      @throws RemoteException if remote communication fails or the shared stack is empty
+     */
+    int popShared(String stackName) throws RemoteException;
+
+    /*
+      Check if a named shared stack is empty (also true for a name never pushed to).
+      @return true if empty, false otherwise
+      @throws RemoteException if remote communication fails
+     */
+    boolean isSharedEmpty(String stackName) throws RemoteException;
+
+    /*
+      Start a streaming reduce: an operation over more values than fit in one remote call.
+      The client sends the values in chunks with reduceChunk, and the server folds each chunk into a
+      running result as it arrives, so it never holds more than one chunk whatever the total.
+      endReduce then pushes the result onto the client's stack, as pushOperation would have
+      for the same values; endReduceLong returns it instead.
+      Values already on the stack are not part of the reduction. A stream not used for the server's
+      idle TTL is closed, and streams do not survive a server restart.
+      @param operator the operation to perform: min, max, lcm, gcd, sum, product, avg, popcount
+             or xor (case-insensitive). median needs all values at once and cannot be streamed.
+      The handle is random, like a session handle: only the client that began the stream can use it.
+      @return the stream handle (never negative)
+      @throws RemoteException if remote communication fails, the operator is not supported or
+              cannot be streamed, or the maxClients limit of open streams is reached
+     */
+    long beginReduce(String clientId, String operator) throws RemoteException;
+
+    /*
+      Fold a chunk of values into a stream from beginReduce. Chunks are folded in call order.
+      @param values the next values of the reduction (may be empty)
+      void no return value
+      @throws RemoteException if remote communication fails, values is null, the stream is not open,
+              or the running result no longer fits in a long (the stream is then closed).
+     */
+    void reduceChunk(long stream, int[] values) throws RemoteException;
+
+    /*
+      Close a stream and push its result onto the client's stack, on top of the values already there.
+      void no return value
+      @throws RemoteException if remote communication fails, the stream is not open or no values were
+              sent (the stream is then closed), or if the result does not fit in an int or cannot be
+              pushed (the stream then stays open, so the result can still be taken with endReduceLong).
+     */
+    void endReduce(long stream) throws RemoteException;
+
+    /*
+      Close a stream and return its result as a long instead of pushing it.
+      @return the result of the operation
+      @throws RemoteException if remote communication fails, the stream is not open
+              or no values were sent (the stream is closed either way).
+     */
+    long endReduceLong(long stream) throws RemoteException;
 }
@@ -0,0 +1,423 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+public class CalculatorBenchmark {
+    /*
+      In-process benchmark harness for the server-side stack operations, with RMI bypassed:
+      the benchmarks call CalculatorImplementation directly.
+
+      Benchmarks:
+        - push, pop, pushPop, isEmpty, pushValues (1000 values, then popOperationLong to reset)
+          on one client:                                                         throughput (ops/s)
+        - session.pushPop, session.isEmpty: pushPop and isEmpty through a session handle: throughput (ops/s)
+        - min, max, gcd, lcm at depths 10, 1000, 100000:                         average time (ns/op)
+        - peekAggregate.min/max/gcd at depths 10 and 100000 (stack left unchanged): average time (ns/op)
+        - pushPop with 1/2/4/8 threads on their own clients (uncontended stacks)
+          and on one shared clientId (contended stack lock):                    throughput (ops/s)
+        - metrics.pushPop (1 and 4 threads) and metrics.isEmpty on a server with metrics on
+          and on one with calculator.metrics=off, to show the instrumentation cost: throughput (ops/s)
+        - pollers: one writer doing pushPop on a client while 0/1/2/4/8 other threads poll isEmpty
+          and size on the same client:                              writer throughput only (ops/s)
+
+      Usage:
+        java CalculatorBenchmark [-w warmups] [-i iterations] [-t millisPerIteration] [-f nameFilter] [-o results.csv]
+        java CalculatorBenchmark --compare baseline.csv candidate.csv [maxRegressionPercent]
+
+      Outputs:
+        - A table on the console and, with -o, a CSV file with one row per benchmark:
+            benchmark,param,threads,mode,score,error,unit
+          where error is the standard deviation over the measured iterations.
+        - --compare joins two CSV files on (benchmark, param, threads, mode), prints the change
+          of every score and exits with status 1 if any got worse by more than the threshold
+          (default 10%), so hot-path regressions can be caught between releases.
+
+      Special cases:
+        - The server log is off unless -Dcalculator.log is given.
+        - Idle eviction is disabled so a sweep never lands inside a measurement.
+     */
+    private static int warmups = 3;
+    private static int iterations = 5;
+    private static long iterationMillis = 1000;
+
+    // Results are folded into this field so the JIT cannot drop the benchmarked calls
+    private static volatile long sink;
+
+    // One benchmark body; invoked repeatedly by each thread with its thread index
+    private interface Body {
+        long run(int thread) throws Exception;
+    }
+
+    // A measured benchmark row
+    static class Result {
+        final String benchmark, param, mode, unit;
+        final int threads;
+        final double score, error;
+
+        Result(String benchmark, String param, int threads, String mode, double score, double error, String unit) {
+            this.benchmark = benchmark;
+            this.param = param;
+            this.threads = threads;
+            this.mode = mode;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        String key() {
+            return benchmark + "," + param + "," + threads + "," + mode;
+        }
+
+        String toCsv() {
+            return key() + "," + String.format("%.3f", score) + "," + String.format("%.3f", error) + "," + unit;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--compare")) {
+            double threshold = args.length > 3 ? Double.parseDouble(args[3]) : 10.0;
+            System.exit(compare(args[1], args[2], threshold) ? 0 : 1);
+        }
+        String output = null;
+        String filter = "";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-w": warmups = Integer.parseInt(args[++i]); break;
+                case "-i": iterations = Integer.parseInt(args[++i]); break;
+                case "-t": iterationMillis = Long.parseLong(args[++i]); break;
+                case "-f": filter = args[++i]; break;
+                case "-o": output = args[++i]; break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (System.getProperty("calculator.log") == null) {
+            System.setProperty("calculator.log", "off");
+        }
+
+        CalculatorImplementation calc = new CalculatorImplementation(new CalculatorConfig().setIdleTtlMillis(0));
+        List<Result> results = new ArrayList<>();
+        System.out.printf("%-24s %-8s %7s %-5s %16s %12s %s%n", "benchmark", "param", "threads", "mode", "score", "error", "unit");
+        try {
+            runAll(calc, filter, results);
+        } finally {
+            calc.shutdown();
+        }
+
+        if (output != null) {
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(output)))) {
+                out.println("benchmark,param,threads,mode,score,error,unit");
+                for (Result r : results) out.println(r.toCsv());
+            }
+            System.out.println("Results written to " + output);
+        }
+        System.out.println("checksum: " + sink);
+    }
+
+    private static void runAll(CalculatorImplementation calc, String filter, List<Result> results) throws Exception {
+        String id = "Bench-" + UUID.randomUUID();
+
+        if (selected("push", filter)) {
+            // Cleared every 4096 pushes so the stack does not grow without bound
+            int[] count = new int[1];
+            results.add(throughput("push", "-", 1, t -> {
+                calc.pushValue(id, 1);
+                if (++count[0] % 4096 == 0) calc.popOperationLong(id, "max");
+                return 1;
+            }));
+            drain(calc, id);
+        }
+        if (selected("pop", filter)) {
+            // Refilled with one pushValues call every 4096 pops
+            int[] refill = new int[4096];
+            int[] left = new int[1];
+            results.add(throughput("pop", "-", 1, t -> {
+                if (left[0] == 0) {
+                    calc.pushValues(id, refill);
+                    left[0] = refill.length;
+                }
+                left[0]--;
+                return calc.pop(id);
+            }));
+            drain(calc, id);
+        }
+        if (selected("pushPop", filter)) {
+            results.add(throughput("pushPop", "-", 1, t -> {
+                calc.pushValue(id, 7);
+                return calc.pop(id);
+            }));
+        }
+        if (selected("isEmpty", filter)) {
+            calc.pushValue(id, 1);
+            results.add(throughput("isEmpty", "-", 1, t -> calc.isEmpty(id) ? 1 : 0));
+            drain(calc, id);
+        }
+        // The same calls through a session handle: an array index instead of hashing the clientId
+        if (selected("session", filter)) {
+            long session = calc.openSession(id);
+            results.add(throughput("session.pushPop", "-", 1, t -> {
+                calc.pushValue(session, 7);
+                return calc.pop(session);
+            }));
+            calc.pushValue(session, 1);
+            results.add(throughput("session.isEmpty", "-", 1, t -> calc.isEmpty(session) ? 1 : 0));
+            drain(calc, id);
+            calc.closeSession(session);
+        }
+        if (selected("pushValues", filter)) {
+            int[] batch = new int[1000];
+            results.add(throughput("pushValues", "1000", 1, t -> {
+                calc.pushValues(id, batch);
+                return calc.popOperationLong(id, "min");
+            }));
+        }
+
+        for (String op : new String[] {"min", "max", "gcd", "lcm"}) {
+            if (!selected(op, filter)) continue;
+            for (int depth : new int[] {10, 1000, 100000}) {
+                int[] values = operands(depth);
+                results.add(averageTime(op, String.valueOf(depth), () -> calc.pushValues(id, values), () -> {
+                    calc.pushOperation(id, op);
+                    return calc.pop(id);
+                }));
+            }
+        }
+
+        // Name lookup on every call against an opcode resolved once
+        if (selected("pushOperation", filter)) {
+            int[] values = operands(10);
+            int opcode = calc.resolveOperator("sum");
+            results.add(averageTime("pushOperation.name", "10", () -> calc.pushValues(id, values), () -> {
+                calc.pushOperation(id, "sum");
+                return calc.pop(id);
+            }));
+            results.add(averageTime("pushOperation.opcode", "10", () -> calc.pushValues(id, values), () -> {
+                calc.pushOperation(id, opcode);
+                return calc.pop(id);
+            }));
+        }
+
+        for (int depth : new int[] {10, 100000}) {
+            if (!selected("peekAggregate", filter)) break;
+            calc.pushValues(id, operands(depth));
+            for (String op : new String[] {"min", "max", "gcd"}) {
+                results.add(averageTime("peekAggregate." + op, String.valueOf(depth), () -> { }, () -> calc.peekAggregate(id, op)));
+            }
+            calc.popOperationLong(id, "min");
+        }
+
+        if (selected("pushPop.ownClient", filter)) {
+            for (int threads : new int[] {1, 2, 4, 8}) {
+                String[] own = new String[threads];
+                for (int t = 0; t < threads; t++) own[t] = id + "-T" + t;
+                results.add(throughput("pushPop.ownClient", "-", threads, t -> {
+                    calc.pushValue(own[t], t);
+                    return calc.pop(own[t]);
+                }));
+            }
+        }
+        if (selected("pushPop.sharedClient", filter)) {
+            for (int threads : new int[] {2, 4, 8}) {
+                String shared = id + "-shared";
+                results.add(throughput("pushPop.sharedClient", "-", threads, t -> {
+                    calc.pushValue(shared, t);
+                    return calc.pop(shared);
+                }));
+            }
+        }
+
+        if (selected("pollers", filter)) {
+            String polled = id + "-polled";
+            for (int pollers : new int[] {0, 1, 2, 4, 8}) {
+                // Thread 0 is the writer and the only one counted
+                results.add(throughput("pollers", String.valueOf(pollers), 1 + pollers, 1, t -> {
+                    if (t == 0) {
+                        calc.pushValue(polled, t);
+                        return calc.pop(polled);
+                    }
+                    return (calc.isEmpty(polled) ? 1 : 0) + calc.size(polled);
+                }));
+            }
+        }
+
+        if (selected("metrics", filter)) {
+            CalculatorImplementation plain = new CalculatorImplementation(
+                    new CalculatorConfig().setIdleTtlMillis(0).setMetricsEnabled(false));
+            try {
+                for (CalculatorImplementation server : new CalculatorImplementation[] {calc, plain}) {
+                    String param = server.getMetrics().isEnabled() ? "on" : "off";
+                    for (int threads : new int[] {1, 4}) {
+                        String[] own = new String[threads];
+                        for (int t = 0; t < threads; t++) own[t] = id + "-M" + t;
+                        results.add(throughput("metrics.pushPop", param, threads, t -> {
+                            server.pushValue(own[t], t);
+                            return server.pop(own[t]);
+                        }));
+                    }
+                    server.pushValue(id, 1);
+                    results.add(throughput("metrics.isEmpty", param, 1, t -> server.isEmpty(id) ? 1 : 0));
+                    drain(server, id);
+                }
+            } finally {
+                plain.shutdown();
+            }
+        }
+    }
+
+    // true if the benchmark name contains the -f filter (or there is no filter)
+    private static boolean selected(String name, String filter) {
+        return filter.isEmpty() || name.contains(filter);
+    }
+
+    // Operands keeping gcd above 1 and lcm within an int, so every reduction walks the whole stack
+    private static int[] operands(int depth) {
+        int[] pattern = {6, 12, 6, 12, 6, 12, 12, 6};
+        int[] values = new int[depth];
+        for (int i = 0; i < depth; i++) values[i] = pattern[i % pattern.length];
+        return values;
+    }
+
+    private static void drain(CalculatorImplementation calc, String id) throws Exception {
+        while (!calc.isEmpty(id)) calc.pop(id);
+    }
+
+    /*
+      Run body on the given number of threads for warmup + measured iterations of iterationMillis each.
+      Each thread counts its own invocations; the score is the total invocations per second.
+     */
+    private static Result throughput(String name, String param, int threads, Body body) throws Exception {
+        return throughput(name, param, threads, threads, body);
+    }
+
+    // Same, but only the invocations of threads [0, counted) make up the score
+    private static Result throughput(String name, String param, int threads, int counted, Body body) throws Exception {
+        double[] scores = new double[iterations];
+        for (int it = -warmups; it < iterations; it++) {
+            LongAdder ops = new LongAdder();
+            AtomicBoolean running = new AtomicBoolean(true);
+            CyclicBarrier start = new CyclicBarrier(threads + 1);
+            Thread[] workers = new Thread[threads];
+            Exception[] failure = new Exception[1];
+            for (int t = 0; t < threads; t++) {
+                int index = t;
+                workers[t] = new Thread(() -> {
+                    long local = 0, count = 0;
+                    try {
+                        start.await();
+                        while (running.get()) {
+                            local += body.run(index);
+                            count++;
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                    if (index < counted) ops.add(count);
+                    sink += local;
+                });
+                workers[t].start();
+            }
+            start.await();
+            long begin = System.nanoTime();
+            Thread.sleep(iterationMillis);
+            running.set(false);
+            for (Thread w : workers) w.join();
+            long elapsed = System.nanoTime() - begin;
+            if (failure[0] != null) throw failure[0];
+            if (it >= 0) scores[it] = ops.sum() * 1e9 / elapsed;
+        }
+        return report(new Result(name, param, threads, "thrpt", mean(scores), stddev(scores), "ops/s"));
+    }
+
+    private interface Setup {
+        void run() throws Exception;
+    }
+
+    private interface Timed {
+        long run() throws Exception;
+    }
+
+    /*
+      Time single invocations of a destructive operation: setup (not timed) rebuilds the state
+      before every invocation, so only the operation itself is measured. Score is ns per invocation.
+     */
+    private static Result averageTime(String name, String param, Setup setup, Timed timed) throws Exception {
+        double[] scores = new double[iterations];
+        for (int it = -warmups; it < iterations; it++) {
+            long timedNanos = 0, count = 0, local = 0;
+            long deadline = System.nanoTime() + iterationMillis * 1_000_000L;
+            while (System.nanoTime() < deadline) {
+                setup.run();
+                long begin = System.nanoTime();
+                local += timed.run();
+                timedNanos += System.nanoTime() - begin;
+                count++;
+            }
+            sink += local;
+            if (it >= 0) scores[it] = (double) timedNanos / count;
+        }
+        return report(new Result(name, param, 1, "avgt", mean(scores), stddev(scores), "ns/op"));
+    }
+
+    private static Result report(Result r) {
+        System.out.printf("%-24s %-8s %7d %-5s %16.1f %12.1f %s%n", r.benchmark, r.param, r.threads, r.mode, r.score, r.error, r.unit);
+        return r;
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double v : values) sum += v;
+        return sum / values.length;
+    }
+
+    private static double stddev(double[] values) {
+        if (values.length < 2) return 0;
+        double m = mean(values), sum = 0;
+        for (double v : values) sum += (v - m) * (v - m);
+        return Math.sqrt(sum / (values.length - 1));
+    }
+
+    /*
+      Compare two result files. Throughput (thrpt) is better when higher, average time (avgt) when lower.
+      @return false if any benchmark regressed by more than thresholdPercent
+     */
+    private static boolean compare(String baselineFile, String candidateFile, double thresholdPercent) throws IOException {
+        Map<String, Double> baseline = readScores(baselineFile);
+        Map<String, Double> candidate = readScores(candidateFile);
+        boolean ok = true;
+        System.out.printf("%-48s %16s %16s %9s%n", "benchmark,param,threads,mode", "baseline", "candidate", "change");
+        for (Map.Entry<String, Double> entry : candidate.entrySet()) {
+            Double before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-48s %16s %16.1f %9s%n", entry.getKey(), "-", entry.getValue(), "new");
+                continue;
+            }
+            double after = entry.getValue();
+            boolean higherIsBetter = entry.getKey().endsWith(",thrpt");
+            // Positive change = improvement, whatever the mode
+            double change = higherIsBetter ? (after - before) / before * 100 : (before - after) / before * 100;
+            boolean regression = change < -thresholdPercent;
+            ok &= !regression;
+            System.out.printf("%-48s %16.1f %16.1f %+8.1f%%%s%n", entry.getKey(), before, after, change, regression ? "  REGRESSION" : "");
+        }
+        System.out.println(ok ? "No regression above " + thresholdPercent + "%" : "Regressions found");
+        return ok;
+    }
+
+    private static Map<String, Double> readScores(String file) throws IOException {
+        Map<String, Double> scores = new HashMap<>();
+        List<String> lines = Files.readAllLines(Paths.get(file));
+        for (String line : lines.subList(1, lines.size())) {
+            String[] f = line.split(",");
+            scores.put(f[0] + "," + f[1] + "," + f[2] + "," + f[3], Double.parseDouble(f[4]));
+        }
+        return scores;
+    }
+}
@@ -1,4 +1,6 @@
 import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.UUID;
 
@@ -17,7 +19,7 @@ public class CalculatorClient {
         while (true) {
             System.out.println("\n Welcome to the Calculator Client.\n You can perform the following commands: ");
             System.out.println("1. Push values onto the stack");
-            System.out.println("2. Perform an operation (min, max, gcd, lcm)");
+            System.out.println("2. Perform an operation (min, max, gcd, lcm, sum, product, avg, median, popcount, xor)");
             System.out.println("3. Pop value from the stack");
             System.out.println("4. Delay then pop value");
             System.out.println("5. Check if stack is empty");
@@ -31,16 +33,18 @@ public class CalculatorClient {
                     System.out.print("\nEnter integers values separated by commas (such as 5,10,15): ");
                     String input = scanner.nextLine();
                     String[] parts = input.split(",");
+                    int[] values = new int[parts.length];
                     int count = 0;
                     for (String part : parts) {
                         try {
-                            int val = Integer.parseInt(part.trim());
-                            calc.pushValue(clientId, val);
+                            values[count] = Integer.parseInt(part.trim());
                             count++;
                         } catch (NumberFormatException e) {
                             System.out.println("\nSkipping invalid input: '" + part.trim() + "'");
                         }
                     }
+                    // Send all valid values in a single remote call
+                    calc.pushValues(clientId, Arrays.copyOf(values, count));
                     System.out.println("\nSuccessfully pushed " + count + " value(s).");
                     break;
 
@@ -54,14 +58,24 @@ public class CalculatorClient {
                     System.out.println(" - max  >> returns the maximum value among all pushed values");
                     System.out.println(" - gcd  >> returns the greatest common divisor of all pushed values");
                     System.out.println(" - lcm  >> returns the least common multiple of all pushed values");
+                    System.out.println(" - sum  >> returns the sum of all pushed values");
+                    System.out.println(" - product  >> returns the product of all pushed values");
+                    System.out.println(" - avg  >> returns the average of all pushed values (rounded down)");
+                    System.out.println(" - median  >> returns the median of all pushed values (rounded down)");
+                    System.out.println(" - popcount  >> returns the number of set bits over all pushed values");
+                    System.out.println(" - xor  >> returns the bitwise xor of all pushed values");
 
                     System.out.print("Enter operation: ");
                     String operation = scanner.nextLine().trim().toLowerCase();
-                    if (!operation.equals("min") && !operation.equals("max") && !operation.equals("gcd") && !operation.equals("lcm")) {
+                    // The server owns the operator list; an unknown name is rejected by resolveOperator
+                    int opcode;
+                    try {
+                        opcode = calc.resolveOperator(operation);
+                    } catch (RemoteException e) {
                         System.out.println("\nInvalid operation. Please select one from the list.");
                         break;
                     }
-                    calc.pushOperation(clientId, operation);
+                    calc.pushOperation(clientId, opcode);
                     System.out.println("\nOperation '" + operation + "' performed.");
                     System.out.println("Result has been pushed to the stack. (Use 'Pop' to retrieve it.)");
                     break;
@@ -91,7 +105,7 @@ public class CalculatorClient {
 
                 case "5":
                     boolean empty = calc.isEmpty(clientId);
-                    System.out.println("\nStack is empty? " + empty);
+                    System.out.println("\nStack is empty? " + empty + " (" + calc.size(clientId) + " value(s) on the stack)");
                     break;
 
                 case "6":
@@ -0,0 +1,301 @@
+/*
+  CalculatorConfig holds the server-side limits of CalculatorImplementation.
+  Defaults keep the original behaviour: no eviction and no limits.
+  CalculatorServer reads it from system properties (such as -Dcalculator.idleTtlMillis=600000).
+
+  Settings:
+    - idleTtlMillis: a client stack not used for this long is dropped (0 disables eviction).
+    - sweepIntervalMillis: how often idle stacks are looked for.
+    - maxClients: maximum number of client stacks held at once (0 for no limit);
+      calls that would create one more are rejected with a RemoteException.
+    - maxStackDepth: maximum number of values on one client stack (0 for no limit);
+      pushes beyond it are rejected with a RemoteException.
+    - metricsEnabled: count calls, errors, latencies and lock waits (see CalculatorMetrics).
+    - metricsReportMillis: print a metrics snapshot to stdout this often (0 disables it).
+    - parallelThreshold: stacks at least this deep are reduced by lcm on a ForkJoinPool
+      instead of the calling thread (0 disables parallel reductions).
+    - parallelism: worker threads of that pool; 1 or less disables parallel reductions.
+    - persistenceDir: directory of the write-ahead log and snapshots (see StackStore);
+      null (the default) keeps the stacks in memory only.
+    - walSync: fsync each group commit of the log (off: a process crash loses nothing,
+      a power loss may lose the last acknowledged changes).
+    - snapshotIntervalMillis: how often a snapshot of all stacks is written (0 disables it;
+      the log then grows until the next restart).
+    - offHeap: keep the values of client stacks in off-heap slabs (OffHeapIntStack) instead of
+      int arrays, so garbage collection does not slow down with millions of clients. Limited by
+      -XX:MaxDirectMemorySize (by default the maximum heap size).
+    - clusterNode: also bind the ClusterNode object (listing and moving every client's stack) for
+      ClusterCalculator. Off by default, since any client reaching the registry could use it.
+
+  RMI transport settings (used by CalculatorServer; see TunedSocketFactory):
+    - port: port of the RMI registry (a port argument of CalculatorServer overrides it).
+    - exportPort: port the calculator object listens on (0, the default, picks a free one;
+      set to the registry port, one listening socket serves both).
+    - socketBufferSize, acceptBacklog, connectTimeoutMillis: socket options; when all are 0
+      (the default) RMI's own sockets are used.
+    - connectionIdleMillis: how long idle RMI connections are kept open for reuse, by the
+      server (sun.rmi.transport.tcp.readTimeout) and by its callback clients
+      (sun.rmi.transport.connectionTimeout); 0 keeps RMI's defaults (2 hours and 15 seconds).
+    - callbackTimeoutMillis: how long a delayPopAsync callback may take to answer before it is
+      given up (sun.rmi.transport.tcp.responseTimeout); 0 waits forever, as RMI does by default.
+    - maxConnectionThreads: limit on RMI's connection threads, one per open connection
+      (sun.rmi.transport.tcp.maxConnectionThreads; 0 for no limit). Connections beyond it are
+      refused, so keep it above the expected number of clients.
+ */
+public class CalculatorConfig {
+    private long idleTtlMillis = 0;
+    private long sweepIntervalMillis = 60 * 1000L;
+    private int maxClients = 0;
+    private int maxStackDepth = 0;
+    private boolean metricsEnabled = true;
+    private long metricsReportMillis = 0;
+    private int parallelThreshold = 1 << 16;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private String persistenceDir = null;
+    private boolean walSync = true;
+    private long snapshotIntervalMillis = 5 * 60 * 1000L;
+    private boolean offHeap = false;
+    private boolean clusterNode = false;
+    private int port = 1099;
+    private int exportPort = 0;
+    private int socketBufferSize = 0;
+    private int acceptBacklog = 0;
+    private int connectTimeoutMillis = 0;
+    private long connectionIdleMillis = 0;
+    private long callbackTimeoutMillis = 0;
+    private int maxConnectionThreads = 0;
+
+    // Defaults overridden by any calculator.* system property that is set
+    public static CalculatorConfig fromSystemProperties() {
+        CalculatorConfig config = new CalculatorConfig();
+        config.idleTtlMillis = Long.getLong("calculator.idleTtlMillis", config.idleTtlMillis);
+        config.sweepIntervalMillis = Long.getLong("calculator.sweepIntervalMillis", config.sweepIntervalMillis);
+        config.maxClients = Integer.getInteger("calculator.maxClients", config.maxClients);
+        config.maxStackDepth = Integer.getInteger("calculator.maxStackDepth", config.maxStackDepth);
+        config.metricsEnabled = !"off".equalsIgnoreCase(System.getProperty("calculator.metrics", "on"));
+        config.metricsReportMillis = Long.getLong("calculator.metricsReportMillis", config.metricsReportMillis);
+        config.parallelThreshold = Integer.getInteger("calculator.parallelThreshold", config.parallelThreshold);
+        config.parallelism = Integer.getInteger("calculator.parallelism", config.parallelism);
+        config.persistenceDir = System.getProperty("calculator.persistenceDir", config.persistenceDir);
+        config.walSync = !"off".equalsIgnoreCase(System.getProperty("calculator.walSync", "on"));
+        config.snapshotIntervalMillis = Long.getLong("calculator.snapshotIntervalMillis", config.snapshotIntervalMillis);
+        config.offHeap = "on".equalsIgnoreCase(System.getProperty("calculator.offHeap", "off"));
+        config.clusterNode = "on".equalsIgnoreCase(System.getProperty("calculator.clusterNode", "off"));
+        config.port = Integer.getInteger("calculator.port", config.port);
+        config.exportPort = Integer.getInteger("calculator.exportPort", config.exportPort);
+        config.socketBufferSize = Integer.getInteger("calculator.socketBufferSize", config.socketBufferSize);
+        config.acceptBacklog = Integer.getInteger("calculator.acceptBacklog", config.acceptBacklog);
+        config.connectTimeoutMillis = Integer.getInteger("calculator.connectTimeoutMillis", config.connectTimeoutMillis);
+        config.connectionIdleMillis = Long.getLong("calculator.connectionIdleMillis", config.connectionIdleMillis);
+        config.callbackTimeoutMillis = Long.getLong("calculator.callbackTimeoutMillis", config.callbackTimeoutMillis);
+        config.maxConnectionThreads = Integer.getInteger("calculator.maxConnectionThreads", config.maxConnectionThreads);
+        return config;
+    }
+
+    public long getIdleTtlMillis() {
+        return idleTtlMillis;
+    }
+
+    public CalculatorConfig setIdleTtlMillis(long idleTtlMillis) {
+        this.idleTtlMillis = idleTtlMillis;
+        return this;
+    }
+
+    public long getSweepIntervalMillis() {
+        return sweepIntervalMillis;
+    }
+
+    public CalculatorConfig setSweepIntervalMillis(long sweepIntervalMillis) {
+        this.sweepIntervalMillis = sweepIntervalMillis;
+        return this;
+    }
+
+    public int getMaxClients() {
+        return maxClients;
+    }
+
+    public CalculatorConfig setMaxClients(int maxClients) {
+        this.maxClients = maxClients;
+        return this;
+    }
+
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    public CalculatorConfig setMaxStackDepth(int maxStackDepth) {
+        this.maxStackDepth = maxStackDepth;
+        return this;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public CalculatorConfig setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+        return this;
+    }
+
+    public long getMetricsReportMillis() {
+        return metricsReportMillis;
+    }
+
+    public CalculatorConfig setMetricsReportMillis(long metricsReportMillis) {
+        this.metricsReportMillis = metricsReportMillis;
+        return this;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public CalculatorConfig setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+        return this;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public CalculatorConfig setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public String getPersistenceDir() {
+        return persistenceDir;
+    }
+
+    public CalculatorConfig setPersistenceDir(String persistenceDir) {
+        this.persistenceDir = persistenceDir;
+        return this;
+    }
+
+    public boolean isWalSync() {
+        return walSync;
+    }
+
+    public CalculatorConfig setWalSync(boolean walSync) {
+        this.walSync = walSync;
+        return this;
+    }
+
+    public long getSnapshotIntervalMillis() {
+        return snapshotIntervalMillis;
+    }
+
+    public CalculatorConfig setSnapshotIntervalMillis(long snapshotIntervalMillis) {
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        return this;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    public CalculatorConfig setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+        return this;
+    }
+
+    public boolean isClusterNode() {
+        return clusterNode;
+    }
+
+    public CalculatorConfig setClusterNode(boolean clusterNode) {
+        this.clusterNode = clusterNode;
+        return this;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public CalculatorConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public int getExportPort() {
+        return exportPort;
+    }
+
+    public CalculatorConfig setExportPort(int exportPort) {
+        this.exportPort = exportPort;
+        return this;
+    }
+
+    public int getSocketBufferSize() {
+        return socketBufferSize;
+    }
+
+    public CalculatorConfig setSocketBufferSize(int socketBufferSize) {
+        this.socketBufferSize = socketBufferSize;
+        return this;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public CalculatorConfig setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+        return this;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public CalculatorConfig setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    public long getConnectionIdleMillis() {
+        return connectionIdleMillis;
+    }
+
+    public CalculatorConfig setConnectionIdleMillis(long connectionIdleMillis) {
+        this.connectionIdleMillis = connectionIdleMillis;
+        return this;
+    }
+
+    public long getCallbackTimeoutMillis() {
+        return callbackTimeoutMillis;
+    }
+
+    public CalculatorConfig setCallbackTimeoutMillis(long callbackTimeoutMillis) {
+        this.callbackTimeoutMillis = callbackTimeoutMillis;
+        return this;
+    }
+
+    public int getMaxConnectionThreads() {
+        return maxConnectionThreads;
+    }
+
+    public CalculatorConfig setMaxConnectionThreads(int maxConnectionThreads) {
+        this.maxConnectionThreads = maxConnectionThreads;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "idleTtlMillis=" + idleTtlMillis + ", sweepIntervalMillis=" + sweepIntervalMillis
+                + ", maxClients=" + maxClients + ", maxStackDepth=" + maxStackDepth
+                + ", metrics=" + (metricsEnabled ? "on" : "off") + ", metricsReportMillis=" + metricsReportMillis
+                + ", parallelThreshold=" + parallelThreshold + ", parallelism=" + parallelism
+                + ", persistenceDir=" + (persistenceDir == null ? "off" : persistenceDir)
+                + (persistenceDir == null ? "" : ", walSync=" + (walSync ? "on" : "off")
+                        + ", snapshotIntervalMillis=" + snapshotIntervalMillis)
+                + (offHeap ? ", offHeap=on" : "")
+                + (clusterNode ? ", clusterNode=on" : "")
+                + ", port=" + port + ", exportPort=" + exportPort
+                + (TunedSocketFactory.forConfig(this) == null ? "" : ", sockets=" + TunedSocketFactory.forConfig(this))
+                + (connectionIdleMillis > 0 ? ", connectionIdleMillis=" + connectionIdleMillis : "")
+                + (callbackTimeoutMillis > 0 ? ", callbackTimeoutMillis=" + callbackTimeoutMillis : "")
+                + (maxConnectionThreads > 0 ? ", maxConnectionThreads=" + maxConnectionThreads : "");
+    }
+}
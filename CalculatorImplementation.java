@@ -1,131 +1,1662 @@
+import java.io.IOException;
+import java.math.BigInteger;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.security.SecureRandom;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.LocalTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EmptyStackException;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 // Implementation of the Calculator interface for Java RMI
 public class CalculatorImplementation extends UnicastRemoteObject implements Calculator {
 
-    private final Map<String, Stack<Integer>> clientStacks;
+    private final Map<String, IntStack> clientStacks;
+    // Entries of clientStacks, sharedStacks and reduceStreams; a new entry reserves its slot first
+    // (see reserveSlot), so concurrent creations cannot overshoot maxClients
+    private final AtomicInteger clientCount = new AtomicInteger();
+    private final AtomicInteger sharedStackCount = new AtomicInteger();
+    private final AtomicInteger reduceStreamCount = new AtomicInteger();
+
+    // Shared timer for delayPopAsync and idle eviction: waiting clients cost a queued task, not a thread
+    private final ScheduledExecutorService scheduler;
+
+    // Threads that deliver delayPopAsync results, so a slow or unreachable client callback
+    // holds one of these instead of the scheduler that eviction and snapshots also run on
+    private final ExecutorService callbacks;
+
+    // delayPopAsync results waiting for delivery, per clientId (guarded by itself). Each client's
+    // results go out one at a time, so a client whose callback hangs holds at most one callback
+    // thread and the other clients' results keep flowing on the rest
+    private final Map<String, ArrayDeque<Runnable>> deliveries = new HashMap<>();
+
+    // Workers for lcm over very deep stacks; null when parallel reductions are disabled
+    private final ForkJoinPool reducePool;
+
+    // Operators by name and opcode
+    private final OperatorRegistry operators;
+
+    // Named stacks shared by all clients (pushShared), lock-free
+    private final Map<String, EliminationStack> sharedStacks = new ConcurrentHashMap<>();
+
+    // Handles from openSession, for calls that skip the clientId lookup
+    private final SessionTable sessions = new SessionTable();
+    // Handle passed to the shared method bodies by the clientId overloads, which ignore it
+    private static final long NO_SESSION = -1;
+
+    /*
+     A streaming reduce from beginReduce: the running result of its operator over the chunks so far.
+     Guarded by synchronized(stream); closed once its result is taken or it fails or expires.
+    */
+    private static final class ReduceStream {
+        final long handle;
+        final String clientId;
+        final String operator;
+        final Operator.Accumulator accumulator;
+        long count;
+        long lastAccessMillis = System.currentTimeMillis();
+        boolean closed;
+
+        ReduceStream(long handle, String clientId, String operator, Operator.Accumulator accumulator) {
+            this.handle = handle;
+            this.clientId = clientId;
+            this.operator = operator;
+            this.accumulator = accumulator;
+        }
+    }
+
+    // Open streaming reduces by handle; handles are random, so one client cannot guess another's
+    private final Map<Long, ReduceStream> reduceStreams = new ConcurrentHashMap<>();
+    private final SecureRandom reduceStreamHandles = new SecureRandom();
+
+    // Draws the ids of stacks copied to other nodes (StackMove)
+    private final SecureRandom moveIds = new SecureRandom();
+
+    // Write-ahead log and snapshots of the stacks; null when persistence is off
+    private final StackStore store;
+
+    // Off-heap memory of the stack values (calculator.offHeap); null when they are int arrays
+    private final SlabAllocator slabs;
+
+    private final long idleTtlMillis;
+    private final int maxClients;
+    private final int maxStackDepth;
+
+    // Eviction and limit counters
+    private final LongAdder evictedClients = new LongAdder();
+    private final LongAdder rejectedClients = new LongAdder();
+    private final LongAdder rejectedPushes = new LongAdder();
+
+    // Per-method calls, errors and latencies, plus stack lock wait time
+    private final CalculatorMetrics metrics;
 
     public CalculatorImplementation() throws RemoteException {
-        super();
+        this(new CalculatorConfig());
+    }
+
+    public CalculatorImplementation(CalculatorConfig config) throws RemoteException {
+        // Exported on exportPort, through TunedSocketFactory when socket options are set
+        super(config.getExportPort(), TunedSocketFactory.forConfig(config), TunedSocketFactory.forConfig(config));
         clientStacks = new ConcurrentHashMap<>();
+        if (config.getPersistenceDir() != null) {
+            // Recovered before any call can arrive: the object is not bound in the registry yet
+            try {
+                store = StackStore.open(Paths.get(config.getPersistenceDir()), config.isWalSync(), clientStacks);
+            } catch (IOException e) {
+                UnicastRemoteObject.unexportObject(this, true);
+                throw new RemoteException("Could not recover the client stacks from " + config.getPersistenceDir(), e);
+            }
+        } else {
+            store = null;
+        }
+        clientCount.set(clientStacks.size());
+        slabs = config.isOffHeap() ? new SlabAllocator() : null;
+        if (slabs != null) {
+            // Recovered stacks are heap stacks; move them before any call can arrive
+            clientStacks.replaceAll((clientId, stack) -> OffHeapIntStack.copyOf(stack, slabs));
+        }
+        idleTtlMillis = config.getIdleTtlMillis();
+        maxClients = config.getMaxClients();
+        maxStackDepth = config.getMaxStackDepth();
+        metrics = new CalculatorMetrics(this, config.isMetricsEnabled());
+        int parallelThreshold = config.getParallelThreshold();
+        if (parallelThreshold > 0 && config.getParallelism() > 1) {
+            reducePool = new ForkJoinPool(config.getParallelism(), pool -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("calculator-reduce-" + t.getPoolIndex());
+                return t;
+            }, null, false);
+        } else {
+            reducePool = null;
+        }
+        operators = OperatorRegistry.standard(reducePool, parallelThreshold);
+        scheduler = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+            Thread t = new Thread(r, "calculator-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        callbacks = Executors.newFixedThreadPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()), r -> {
+            Thread t = new Thread(r, "calculator-callback");
+            t.setDaemon(true);
+            return t;
+        });
+        if (idleTtlMillis > 0) {
+            long interval = Math.max(1, config.getSweepIntervalMillis());
+            scheduler.scheduleWithFixedDelay(this::evictIdleStacks, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        long snapshotInterval = config.getSnapshotIntervalMillis();
+        if (store != null && snapshotInterval > 0) {
+            scheduler.scheduleWithFixedDelay(this::snapshotQuietly, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+        }
+        long report = config.getMetricsReportMillis();
+        if (report > 0 && metrics.isEnabled()) {
+            scheduler.scheduleAtFixedRate(() -> System.out.print("Calculator metrics at " + LocalTime.now().withNano(0) + ": "
+                    + metrics.getSnapshot()), report, report, TimeUnit.MILLISECONDS);
+        }
     }
 
-    // Helper to create/get a stack for clientId
-    private Stack<Integer> getStack(String clientId) {
-        return clientStacks.computeIfAbsent(clientId, k -> new Stack<>());
+    /*
+     Stop the shared timer and callback threads and unexport this object so the JVM can exit.
+     Pending delayPopAsync calls are dropped. Used by in-process tests and benchmarks.
+     With persistence on, the write-ahead log is flushed and closed last.
+    */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        callbacks.shutdownNow();
+        if (reducePool != null) {
+            reducePool.shutdownNow();
+        }
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException e) {
+            // already unexported
+        }
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                if (ServerLog.WARN) ServerLog.warn("Closing the write-ahead log failed: " + e.getMessage());
+            }
+        }
     }
 
-    @Override
-    public void pushValue(String clientId, int val) throws RemoteException {
-        Stack<Integer> stack = getStack(clientId);
-        synchronized (stack) {
-        stack.push(val);
+    /*
+     Write a snapshot of all client stacks and drop the log segments it replaces.
+     Runs periodically on the scheduler; public so tests and tools can take one at any time.
+     @return the number of stacks written, or 0 when persistence is off
+    */
+    public long snapshot() throws IOException {
+        return store == null ? 0 : store.snapshot(clientStacks);
+    }
+
+    private void snapshotQuietly() {
+        try {
+            long stacks = snapshot();
+            if (ServerLog.INFO) ServerLog.info("Snapshot of " + stacks + " client stacks written");
+        } catch (IOException | RuntimeException e) {
+            if (ServerLog.WARN) ServerLog.warn("Snapshot failed: " + e);
         }
-        System.out.println("Client " + clientId + ": Pushed value: " + val);
     }
 
-    @Override
-    public void pushOperation(String clientId, String operator) throws RemoteException {
-        Stack<Integer> stack = getStack(clientId);
-        synchronized(stack){
-        if (stack.isEmpty()) {
-            System.out.println("Client " + clientId + ": Stack is empty !!!");
+    // Write-ahead log and recovery counters; null when persistence is off
+    StackStore getStore() {
+        return store;
+    }
+
+    // Log a change of a stack (no-op when persistence is off); must be called while holding the stack's lock
+    private void journal(String clientId, IntStack stack, byte type) {
+        if (store != null) {
+            store.append(clientId, stack, type);
+        }
+    }
+
+    private void journal(String clientId, IntStack stack, byte type, int value) {
+        if (store != null) {
+            store.append(clientId, stack, type, value);
+        }
+    }
+
+    /*
+     Wait until the logged change lsn (a stack's lastLsn) is durable. Called after releasing the
+     stack's lock, so one group commit of the log acknowledges every call that waited meanwhile.
+     @throws RemoteException if the change could not be written
+    */
+    private void awaitDurable(String clientId, long lsn) throws RemoteException {
+        if (store == null || lsn == 0) {
             return;
         }
+        try {
+            store.awaitDurable(lsn);
+        } catch (IOException e) {
+            throw new RemoteException("Client " + clientId + ": " + "Change could not be persisted !!", e);
+        }
+    }
 
-        int result;
-        switch (operator.toLowerCase()) {
-            case "min":
-                result = stack.stream().min(Integer::compare).get();break;
-            case "max":
-                result = stack.stream().max(Integer::compare).get();break;
-            case "lcm":{
-                result = stack.pop();
-                while (!stack.isEmpty()) {
-                    result = lcm(result, stack.pop());
+    /*
+     Helper to create/get a stack for clientId, used by calls that may push.
+     Callers lock the stack and, if it is retired (evicted meanwhile), look it up again.
+     @throws RemoteException if a new stack would exceed the maxClients limit, or its clientId
+             is longer than the log can hold (persistence on)
+    */
+    private IntStack getStack(String clientId) throws RemoteException {
+        IntStack stack = clientStacks.get(clientId);
+        if (stack != null) {
+            return stack;
+        }
+        if (store != null && clientId != null && clientId.length() > WriteAheadLog.MAX_CLIENT_ID / 3
+                && clientId.getBytes(StandardCharsets.UTF_8).length > WriteAheadLog.MAX_CLIENT_ID) {
+            // Checked before anything is logged: a truncated id length would stop the log from replaying
+            throw new RemoteException("Client id too long to persist (limit " + WriteAheadLog.MAX_CLIENT_ID + " UTF-8 bytes) !!");
+        }
+        if (!reserveSlot(clientCount)) {
+            throw new LimitExceededException("Client " + clientId + ": " + "Too many clients on this server (limit " + maxClients + ") !!");
+        }
+        boolean[] created = new boolean[1];
+        stack = clientStacks.computeIfAbsent(clientId, k -> {
+            created[0] = true;
+            return slabs == null ? new IntStack() : new OffHeapIntStack(slabs);
+        });
+        if (!created[0]) {
+            // Another call created it first: give the slot back
+            clientCount.decrementAndGet();
+        }
+        return stack;
+    }
+
+    /*
+     Helper to take one of the maxClients slots counted by count before creating an entry.
+     @return false, counting a rejected client, if every slot is taken
+    */
+    private boolean reserveSlot(AtomicInteger count) {
+        if (count.incrementAndGet() <= maxClients || maxClients <= 0) {
+            return true;
+        }
+        count.decrementAndGet();
+        rejectedClients.increment();
+        return false;
+    }
+
+    /*
+     Helper to get an existing stack for clientId, or null.
+     Used by read and pop paths so probing a new clientId never allocates a stack.
+    */
+    private IntStack findStack(String clientId) {
+        return clientStacks.get(clientId);
+    }
+
+    /*
+     Session of a handle overload, or null for the clientId overloads (which pass a clientId).
+     @throws RemoteException if the session is not open
+    */
+    private SessionTable.Session session(long handle, String clientId) throws RemoteException {
+        return clientId != null ? null : sessions.get(handle);
+    }
+
+    /*
+     getStack and findStack for calls that may come through a session: the session's cached stack
+     is used until eviction retires it, then clientId is looked up again and cached.
+    */
+    private IntStack getStack(String clientId, SessionTable.Session session) throws RemoteException {
+        if (session == null) {
+            return getStack(clientId);
+        }
+        IntStack stack = session.stack;
+        if (stack.retired) {
+            stack = getStack(clientId);
+            session.stack = stack;
+        }
+        return stack;
+    }
+
+    private IntStack findStack(String clientId, SessionTable.Session session) {
+        if (session == null) {
+            return findStack(clientId);
+        }
+        IntStack stack = session.stack;
+        if (stack.retired) {
+            IntStack current = findStack(clientId);
+            if (current == null) {
+                return null;
+            }
+            session.stack = stack = current;
+        }
+        return stack;
+    }
+
+    /*
+     Reject a push that would take a stack over maxStackDepth.
+     Must be called while holding the stack's lock.
+    */
+    private void checkDepth(String clientId, IntStack stack, int adding) throws RemoteException {
+        if (maxStackDepth > 0 && (long) stack.size() + adding > maxStackDepth) {
+            rejectedPushes.increment();
+            throw new LimitExceededException("Client " + clientId + ": " + "Stack depth limit (" + maxStackDepth + ") reached !!");
+        }
+    }
+
+    /*
+     Drop every client stack that has not been used for idleTtlMillis and has no awaitPop waiter.
+     Runs periodically on the scheduler; public so tests and tools can trigger a sweep.
+     @return the number of stacks evicted by this sweep
+    */
+    public int evictIdleStacks() {
+        long cutoff = System.currentTimeMillis() - idleTtlMillis;
+        int evicted = 0;
+        for (Map.Entry<String, IntStack> entry : clientStacks.entrySet()) {
+            IntStack stack = entry.getValue();
+            // Unlocked pre-check; the decision is made again under the lock
+            if (stack.lastAccessMillis > cutoff) {
+                continue;
+            }
+            synchronized (stack) {
+                if (!stack.retired && stack.waiters == 0 && stack.lastAccessMillis <= cutoff) {
+                    stack.retired = true;
+                    // Dropped values: lock-free readers of depth() now see an empty stack
+                    stack.clear();
+                    journal(entry.getKey(), stack, WriteAheadLog.EVICT);
+                    if (clientStacks.remove(entry.getKey(), stack)) clientCount.decrementAndGet();
+                    evicted++;
                 }
-                break;
             }
-            case "gcd": {
-                result = stack.pop();
-                while (!stack.isEmpty()) {
-                    result = gcd(result, stack.pop());
+        }
+        evictedClients.add(evicted);
+        // Sessions live as long as their stack; one used since eviction has cached a new stack
+        sessions.sweep();
+        // Empty shared stacks are not counted as evicted: they held no values
+        dropEmptySharedStacks();
+        // Abandoned streaming reduces expire like stacks; they hold no values, so they are not counted
+        for (ReduceStream stream : reduceStreams.values()) {
+            synchronized (stream) {
+                if (!stream.closed && stream.lastAccessMillis <= cutoff) {
+                    closeStream(stream);
+                    if (ServerLog.INFO) ServerLog.info("Client " + stream.clientId + ": Reduce stream " + stream.handle + " expired");
                 }
-                break;
             }
-            default: {
-                System.out.println("Client " + clientId + ": ( "+ operator+") is invalid operator or it is not supported in this calculator !!");
-                return;
+        }
+        return evicted;
+    }
+
+    // Operator registry of this server; register() adds operators at runtime
+    public OperatorRegistry getOperators() {
+        return operators;
+    }
+
+    // Metrics of this server; CalculatorServer registers them as JMX MBeans
+    public CalculatorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /*
+     Values held over all client stacks. Sizes are read without taking the stack locks,
+     so under load the total is approximate; it costs nothing on the call paths.
+    */
+    public long getTotalStackDepth() {
+        long total = 0;
+        for (IntStack stack : clientStacks.values()) {
+            total += stack.size();
+        }
+        return total;
+    }
+
+    // Number of sessions currently open
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    // Number of named shared stacks
+    public int getSharedStackCount() {
+        return sharedStacks.size();
+    }
+
+    // Number of streaming reduces currently open
+    public int getReduceStreamCount() {
+        return reduceStreams.size();
+    }
+
+    // Off-heap bytes reserved for stack values (0 unless calculator.offHeap is on)
+    public long getOffHeapBytes() {
+        return slabs == null ? 0 : slabs.reservedBytes();
+    }
+
+    // Number of client stacks currently held
+    public int getClientCount() {
+        return clientStacks.size();
+    }
+
+    // Stacks dropped by idle eviction since startup
+    public long getEvictedClientCount() {
+        return evictedClients.sum();
+    }
+
+    // Calls rejected because they would exceed maxClients
+    public long getRejectedClientCount() {
+        return rejectedClients.sum();
+    }
+
+    // Pushes rejected because they would exceed maxStackDepth
+    public long getRejectedPushCount() {
+        return rejectedPushes.sum();
+    }
+
+    @Override
+    public long openSession(String clientId) throws RemoteException {
+        return openSession(clientId, false);
+    }
+
+    /*
+     openSession for a session that stays open, even when its stack is evicted, until closeSession.
+     Used by BinaryCalculatorServer, which closes the sessions of a connection when it closes.
+    */
+    long openPinnedSession(String clientId) throws RemoteException {
+        return openSession(clientId, true);
+    }
+
+    private long openSession(String clientId, boolean pinned) throws RemoteException {
+        long start = metrics.start();
+        try {
+            SessionTable.Session session;
+            for (;;) {
+            IntStack stack = getStack(clientId);
+            long lockStart = metrics.lockStart();
+            synchronized (stack) {
+            metrics.lockAcquired(lockStart);
+            if (stack.retired) continue;
+            // Counts as a use, so the sweeper does not close the session straight away
+            stack.lastAccessMillis = System.currentTimeMillis();
+            session = sessions.open(clientId, pinned, stack);
+            break;
+            }
             }
+            if (ServerLog.INFO) ServerLog.info("Client " + clientId + ": Opened session " + session.handle);
+            return session.handle;
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.OPEN_SESSION);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.OPEN_SESSION, start);
         }
+    }
 
-        stack.clear();
-        stack.push(result);
-        System.out.println("Client " + clientId +" : Operation ( " + operator + " ) result pushed: " + result);
+    @Override
+    public void closeSession(long session) throws RemoteException {
+        long start = metrics.start();
+        try {
+            if (sessions.close(session)) {
+                if (ServerLog.INFO) ServerLog.info("Closed session " + session);
+            }
+        } catch (RuntimeException e) {
+            metrics.failed(CalculatorMetrics.CLOSE_SESSION);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.CLOSE_SESSION, start);
         }
-        
     }
 
+    @Override
+    public void pushValue(String clientId, int val) throws RemoteException {
+        pushValue(NO_SESSION, clientId, val);
+    }
+
+    @Override
+    public void pushValue(long session, int val) throws RemoteException {
+        pushValue(session, null, val);
+    }
+
+    // Body of both pushValue methods; without a clientId, it is taken from the session of handle
+    private void pushValue(long handle, String clientId, int val) throws RemoteException {
+        long start = metrics.start();
+        try {
+            SessionTable.Session session = session(handle, clientId);
+            if (session != null) clientId = session.clientId;
+            long lsn;
+            for (;;) {
+            IntStack stack = getStack(clientId, session);
+            long lockStart = metrics.lockStart();
+            synchronized (stack) {
+            metrics.lockAcquired(lockStart);
+            if (stack.retired) continue;
+            checkDepth(clientId, stack, 1);
+            stack.lastAccessMillis = System.currentTimeMillis();
+            stack.push(val);
+            journal(clientId, stack, WriteAheadLog.PUSH, val);
+            lsn = stack.lastLsn;
+            stack.notifyAll();
+            break;
+            }
+            }
+            awaitDurable(clientId, lsn);
+            if (ServerLog.INFO) ServerLog.info("Client " + clientId + ": Pushed value: " + val);
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.PUSH_VALUE);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.PUSH_VALUE, start);
+        }
+    }
+
+    @Override
+    public void pushValues(String clientId, int[] values) throws RemoteException {
+        long start = metrics.start();
+        try {
+            if (values == null) {
+                throw new RemoteException("Client " + clientId + ": " + "No values to push !!");
+            }
+            long lsn;
+            for (;;) {
+            IntStack stack = getStack(clientId);
+            long lockStart = metrics.lockStart();
+            synchronized (stack) {
+            metrics.lockAcquired(lockStart);
+            if (stack.retired) continue;
+            checkDepth(clientId, stack, values.length);
+            stack.lastAccessMillis = System.currentTimeMillis();
+            stack.pushAll(values);
+            if (store != null) store.appendAll(clientId, stack, values);
+            lsn = stack.lastLsn;
+            stack.notifyAll();
+            break;
+            }
+            }
+            awaitDurable(clientId, lsn);
+            if (ServerLog.INFO) ServerLog.info("Client " + clientId + ": Pushed " + values.length + " value(s)");
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.PUSH_VALUES);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.PUSH_VALUES, start);
+        }
+    }
+
+    @Override
+    public void pushOperation(String clientId, String operator) throws RemoteException {
+        long start = metrics.start();
+        try {
+            reduceAndPush(clientId, null, operators.lookup(operator), operator);
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.PUSH_OPERATION);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.PUSH_OPERATION, start);
+        }
+    }
+
+    @Override
+    public void pushOperation(String clientId, int opcode) throws RemoteException {
+        pushOperation(NO_SESSION, clientId, opcode);
+    }
+
+    @Override
+    public void pushOperation(long session, int opcode) throws RemoteException {
+        pushOperation(session, null, opcode);
+    }
+
+    // Body of both opcode pushOperation methods, as pushValue(handle, clientId, val)
+    private void pushOperation(long handle, String clientId, int opcode) throws RemoteException {
+        long start = metrics.start();
+        try {
+            SessionTable.Session session = session(handle, clientId);
+            if (session != null) clientId = session.clientId;
+            Operator operator = operators.get(opcode);
+            if (operator == null) {
+                throw new RemoteException("Client " + clientId + ": " + "Unknown operator opcode " + opcode + " !!");
+            }
+            reduceAndPush(clientId, session, operator, operator.name());
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.PUSH_OPERATION);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.PUSH_OPERATION, start);
+        }
+    }
+
+    @Override
+    public int resolveOperator(String operator) throws RemoteException {
+        long start = metrics.start();
+        try {
+            int opcode = operators.resolve(operator);
+            if (opcode < 0) {
+                throw new RemoteException("( " + operator + ") is invalid operator or it is not supported in this calculator !!");
+            }
+            return opcode;
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.RESOLVE_OPERATOR);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.RESOLVE_OPERATOR, start);
+        }
+    }
+
+    /*
+     Body of both pushOperation methods: apply operator (null if the name is unknown) and log the outcome.
+     An empty stack or an unknown operator is only logged, as pushOperation always did.
+    */
+    private void reduceAndPush(String clientId, SessionTable.Session session, Operator operator, String name)
+            throws RemoteException {
+        boolean empty = true;
+        boolean applied = false;
+        int result = 0;
+        long lsn = 0;
+        for (;;) {
+        IntStack stack = findStack(clientId, session);
+        if (stack == null) break;
+        long lockStart = metrics.lockStart();
+        synchronized (stack) {
+        metrics.lockAcquired(lockStart);
+        if (stack.retired) continue;
+        stack.lastAccessMillis = System.currentTimeMillis();
+        empty = stack.isEmpty();
+        applied = applyOperation(clientId, stack, operator);
+        if (applied) {
+            result = stack.peek();
+            lsn = stack.lastLsn;
+        }
+        break;
+        }
+        }
+        awaitDurable(clientId, lsn);
+        // Logged after the lock is released
+        if (applied) {
+            if (ServerLog.INFO) ServerLog.info("Client " + clientId +" : Operation ( " + name + " ) result pushed: " + result);
+        } else if (empty) {
+            if (ServerLog.WARN) ServerLog.warn("Client " + clientId + ": Stack is empty !!!");
+        } else {
+            if (ServerLog.WARN) ServerLog.warn("Client " + clientId + ": ( "+ name+") is invalid operator or it is not supported in this calculator !!");
+        }
+    }
 
     @Override
     public int pop(String clientId) throws RemoteException {
-        Stack<Integer> stack = getStack(clientId);
-        synchronized(stack){
-        if (stack.isEmpty()) {
-            throw new RemoteException("Client " + clientId + ": "+"Stack is empty !!");
+        return pop(NO_SESSION, clientId);
+    }
+
+    @Override
+    public int pop(long session) throws RemoteException {
+        return pop(session, null);
+    }
+
+    // Body of both pop methods, as pushValue(handle, clientId, val)
+    private int pop(long handle, String clientId) throws RemoteException {
+        long start = metrics.start();
+        try {
+            SessionTable.Session session = session(handle, clientId);
+            if (session != null) clientId = session.clientId;
+            int val;
+            long lsn;
+            for (;;) {
+            IntStack stack = findStack(clientId, session);
+            if (stack == null) {
+                throw new RemoteException("Client " + clientId + ": "+"Stack is empty !!");
+            }
+            long lockStart = metrics.lockStart();
+            synchronized (stack) {
+            metrics.lockAcquired(lockStart);
+            if (stack.retired) continue;
+            stack.lastAccessMillis = System.currentTimeMillis();
+            val = popValue(clientId, stack);
+            lsn = stack.lastLsn;
+            break;
+            }
+            }
+            awaitDurable(clientId, lsn);
+            if (ServerLog.INFO) ServerLog.info("Client " + clientId + ": "+ "Popped value: " + val);
+            return val;
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.POP);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.POP, start);
         }
-        int val = stack.pop();
-        System.out.println("Client " + clientId + ": "+ "Popped value: " + val);
-        return val;
+    }
+
+    @Override
+    public int awaitPop(String clientId, long timeoutMillis) throws RemoteException, PopTimeoutException {
+        long start = metrics.start();
+        try {
+            if (timeoutMillis < 0) {
+                throw new RemoteException("Client " + clientId + ": " + "Negative timeout: " + timeoutMillis + " !!");
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            int val;
+            long lsn;
+            for (;;) {
+            // The stack is created so that pushes from other callers notify the monitor we wait on
+            IntStack stack = getStack(clientId);
+            long lockStart = metrics.lockStart();
+            synchronized (stack) {
+            metrics.lockAcquired(lockStart);
+            if (stack.retired) continue;
+            // Pushes call notifyAll on the stack; loop to handle spurious wakeups and lost races
+            stack.waiters++;
+            try {
+                while (stack.isEmpty()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new PopTimeoutException("Client " + clientId + ": " + "No value pushed within " + timeoutMillis + " ms !!");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(stack, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Thread interrupted", e);
+            } finally {
+                stack.waiters--;
+                stack.lastAccessMillis = System.currentTimeMillis();
+            }
+            val = popValue(clientId, stack);
+            lsn = stack.lastLsn;
+            break;
+            }
+            }
+            awaitDurable(clientId, lsn);
+            if (ServerLog.INFO) ServerLog.info("Client " + clientId + ": "+ "Popped value: " + val);
+            return val;
+        } catch (RemoteException | PopTimeoutException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.AWAIT_POP);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.AWAIT_POP, start);
         }
     }
 
     @Override
     public boolean isEmpty(String clientId) throws RemoteException {
-        Stack<Integer> stack = getStack(clientId);
-        synchronized(stack){
-        return stack.isEmpty();
+        return isEmpty(NO_SESSION, clientId);
+    }
+
+    @Override
+    public boolean isEmpty(long session) throws RemoteException {
+        return isEmpty(session, null);
+    }
+
+    // Body of both isEmpty methods, as pushValue(handle, clientId, val)
+    private boolean isEmpty(long handle, String clientId) throws RemoteException {
+        long start = metrics.start();
+        try {
+            SessionTable.Session session = session(handle, clientId);
+            if (session != null) clientId = session.clientId;
+            IntStack stack = findStack(clientId, session);
+            if (stack == null) {
+                return true;
+            }
+            // Wait-free: no lock, so pollers never hold up pushes and pops on the same stack
+            touchUnlocked(stack);
+            return stack.depth() == 0;
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.IS_EMPTY);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.IS_EMPTY, start);
+        }
+    }
+
+    @Override
+    public int size(String clientId) throws RemoteException {
+        long start = metrics.start();
+        try {
+            IntStack stack = findStack(clientId);
+            if (stack == null) {
+                return 0;
+            }
+            touchUnlocked(stack);
+            return stack.depth();
+        } catch (RuntimeException e) {
+            metrics.failed(CalculatorMetrics.SIZE);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.SIZE, start);
+        }
+    }
+
+    /*
+     Keep a stack that is only polled (isEmpty, size) from being evicted, without taking its lock.
+     The time is written at most once a second so pollers do not keep dirtying the writer's cache line.
+    */
+    private void touchUnlocked(IntStack stack) {
+        long now = System.currentTimeMillis();
+        if (now - stack.lastAccessMillis >= 1000) {
+            stack.lastAccessMillis = now;
         }
     }
 
     @Override
     public int delayPop(String clientId, int millis) throws RemoteException {
+        return delayPop(NO_SESSION, clientId, millis);
+    }
+
+    @Override
+    public int delayPop(long session, int millis) throws RemoteException {
+        return delayPop(session, null, millis);
+    }
+
+    // Body of both delayPop methods, as pushValue(handle, clientId, val)
+    private int delayPop(long handle, String clientId, int millis) throws RemoteException {
+        long start = metrics.start();
+        try {
+            SessionTable.Session session = session(handle, clientId);
+            if (session != null) clientId = session.clientId;
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Thread interrupted", e);
+            }
+            int val;
+            long lsn;
+            for (;;) {
+            IntStack stack = findStack(clientId, session);
+            if (stack == null) throw new RemoteException("Empty");
+            long lockStart = metrics.lockStart();
+            synchronized (stack) {
+            metrics.lockAcquired(lockStart);
+            if (stack.retired) continue;
+            stack.lastAccessMillis = System.currentTimeMillis();
+            if (stack.isEmpty()) throw new RemoteException("Empty");
+            val = stack.pop();
+            journal(clientId, stack, WriteAheadLog.POP);
+            lsn = stack.lastLsn;
+            break;
+            }
+            }
+            awaitDurable(clientId, lsn);
+            return val;
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.DELAY_POP);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.DELAY_POP, start);
+        }
+    }
+
+    @Override
+    public void delayPopAsync(String clientId, int millis, PopCallback callback) throws RemoteException {
+        long start = metrics.start();
         try {
-            Thread.sleep(millis);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RemoteException("Thread interrupted", e);
+            if (callback == null) {
+                throw new RemoteException("Client " + clientId + ": " + "No callback for delayPopAsync !!");
+            }
+            if (millis < 0) {
+                throw new RemoteException("Client " + clientId + ": " + "Negative delay: " + millis + " !!");
+            }
+            scheduler.schedule(() -> completeDelayPop(clientId, callback), millis, TimeUnit.MILLISECONDS);
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.DELAY_POP_ASYNC);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.DELAY_POP_ASYNC, start);
         }
-        Stack<Integer> stack = getStack(clientId);
+    }
+
+    /*
+     Pop for a delayPopAsync whose delay has passed and hand the outcome to the callbacks pool.
+     Runs on the scheduler and never waits there: the wait for the log and the remote callback,
+     which can block on a client that can no longer be reached, run in deliverDelayPop.
+    */
+    private void completeDelayPop(String clientId, PopCallback callback) {
+        boolean empty = true;
+        int val = 0;
+        long lsn = 0;
+        for (;;) {
+        IntStack stack = findStack(clientId);
+        if (stack == null) break;
         synchronized (stack) {
-        if (stack.isEmpty()) throw new RemoteException("Empty");
-        return stack.pop();
+        if (stack.retired) continue;
+        stack.lastAccessMillis = System.currentTimeMillis();
+        empty = stack.isEmpty();
+        if (!empty) {
+            val = stack.pop();
+            journal(clientId, stack, WriteAheadLog.POP);
+            lsn = stack.lastLsn;
+        }
+        break;
+        }
         }
+        boolean popped = !empty;
+        int value = val;
+        long popLsn = lsn;
+        deliver(clientId, () -> deliverDelayPop(clientId, callback, popped, value, popLsn));
     }
 
     /*
-     Calculate the Greatest Common Divisor (gcd) of two integers using recursion.
-     The gcd is the largest positive integer that divides both numbers without a remainder.
-     @param a first integer
-     @param b second integer
-     @return the gcd of a and b
+     Queue a delivery behind the client's earlier ones, starting the queue on the callbacks
+     pool if it was idle.
     */
-    private int gcd(int a, int b) {
-        return b == 0 ? Math.abs(a) : gcd(b, a % b);
+    private void deliver(String clientId, Runnable delivery) {
+        boolean idle;
+        synchronized (deliveries) {
+            ArrayDeque<Runnable> queue = deliveries.get(clientId);
+            idle = queue == null;
+            if (idle) {
+                queue = new ArrayDeque<>();
+                deliveries.put(clientId, queue);
+            }
+            queue.add(delivery);
+        }
+        if (idle) {
+            callbacks.execute(() -> deliverNext(clientId));
+        }
     }
+
     /*
-    Calculate the Least Common Multiple (lcm) of two integers.
-    The lcm is the smallest positive integer that is divisible by both numbers.
-    Uses the relationship: lcm(a,b) = |a * b| / gcd(a,b)
-    @param a first integer
-    @param b second integer
-    @return the lcm of a and b
+     Run the client's oldest queued delivery, then requeue the client behind the others on the
+     callbacks pool if more are waiting, so a client with many results does not keep a thread.
     */
-    private int lcm(int a, int b) {
-        return Math.abs(a * b) / gcd(a, b);
+    private void deliverNext(String clientId) {
+        Runnable delivery;
+        synchronized (deliveries) {
+            delivery = deliveries.get(clientId).poll();
+        }
+        boolean more;
+        try {
+            delivery.run();
+        } finally {
+            synchronized (deliveries) {
+                more = !deliveries.get(clientId).isEmpty();
+                if (!more) {
+                    deliveries.remove(clientId);
+                }
+            }
+        }
+        // After shutdown the rest are dropped, like the other pending delayPopAsync calls
+        if (more && !callbacks.isShutdown()) {
+            callbacks.execute(() -> deliverNext(clientId));
+        }
+    }
+
+    /*
+     Report a delayPopAsync outcome once its pop is durable. Runs on the callbacks pool;
+     a client that can no longer be reached only loses its own result.
+    */
+    private void deliverDelayPop(String clientId, PopCallback callback, boolean popped, int val, long lsn) {
+        try {
+            String error = null;
+            try {
+                awaitDurable(clientId, lsn);
+            } catch (RemoteException e) {
+                error = e.getMessage();
+            }
+            if (error != null) {
+                callback.failed(error);
+            } else if (!popped) {
+                callback.failed("Empty");
+            } else {
+                callback.popped(val);
+            }
+        } catch (RemoteException e) {
+            if (ServerLog.WARN) ServerLog.warn("Client " + clientId + ": delayPopAsync callback failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public ScriptResult executeScript(String clientId, List<Command> script) throws RemoteException {
+        long start = metrics.start();
+        try {
+            if (script == null) {
+                throw new RemoteException("Client " + clientId + ": " + "No script to execute !!");
+            }
+            int[] results = new int[script.size()];
+            int resultCount = 0;
+            int step = 0;
+            String error = null;
+            long lsn;
+            for (;;) {
+            IntStack stack = getStack(clientId);
+            long lockStart = metrics.lockStart();
+            synchronized (stack) {
+            metrics.lockAcquired(lockStart);
+            if (stack.retired) continue;
+            stack.lastAccessMillis = System.currentTimeMillis();
+            // Lock-free isEmpty and size see the stack as before the script until it ends
+            stack.holdDepth = true;
+            try {
+            for (Command command : script) {
+                if (command == null) {
+                    error = "Client " + clientId + ": " + "Null command at step " + step + " !!";
+                    break;
+                }
+                try {
+                    switch (command.getType()) {
+                        case PUSH:
+                            checkDepth(clientId, stack, 1);
+                            stack.push(command.getValue());
+                            journal(clientId, stack, WriteAheadLog.PUSH, command.getValue());
+                            break;
+                        case OPERATION:
+                            applyOperation(clientId, stack, operators.lookup(command.getOperator()));
+                            break;
+                        case POP: {
+                            int val = popValue(clientId, stack);
+                            results[resultCount++] = val;
+                            break;
+                        }
+                        case IS_EMPTY:
+                            results[resultCount++] = stack.isEmpty() ? 1 : 0;
+                            break;
+                    }
+                } catch (RemoteException e) {
+                    error = e.getMessage();
+                    break;
+                }
+                step++;
+            }
+            } finally {
+                stack.releaseDepth();
+            }
+            // Wake awaitPop callers if the script left values on the stack
+            if (!stack.isEmpty()) {
+                stack.notifyAll();
+            }
+            lsn = stack.lastLsn;
+            break;
+            }
+            }
+            awaitDurable(clientId, lsn);
+            if (ServerLog.INFO) ServerLog.info("Client " + clientId + ": Executed script steps: " + step + "/" + script.size());
+            return new ScriptResult(Arrays.copyOf(results, resultCount), step, script.size(), error);
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.EXECUTE_SCRIPT);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.EXECUTE_SCRIPT, start);
+        }
+    }
+
+    @Override
+    public long popOperationLong(String clientId, String operator) throws RemoteException {
+        long start = metrics.start();
+        try {
+            long result;
+            long lsn;
+            for (;;) {
+            IntStack stack = findStack(clientId);
+            if (stack == null) {
+                throw new RemoteException("Client " + clientId + ": " + "Stack is empty !!");
+            }
+            long lockStart = metrics.lockStart();
+            synchronized (stack) {
+            metrics.lockAcquired(lockStart);
+            if (stack.retired) continue;
+            stack.lastAccessMillis = System.currentTimeMillis();
+            result = aggregateLong(clientId, stack, operator);
+            stack.clear();
+            journal(clientId, stack, WriteAheadLog.CLEAR);
+            lsn = stack.lastLsn;
+            break;
+            }
+            }
+            awaitDurable(clientId, lsn);
+            if (ServerLog.INFO) ServerLog.info("Client " + clientId + " : Operation ( " + operator + " ) long result popped: " + result);
+            return result;
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.POP_OPERATION_LONG);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.POP_OPERATION_LONG, start);
+        }
+    }
+
+    @Override
+    public BigInteger popOperationBig(String clientId, String operator) throws RemoteException {
+        long start = metrics.start();
+        try {
+            BigInteger result;
+            long lsn;
+            for (;;) {
+            IntStack stack = findStack(clientId);
+            if (stack == null) {
+                throw new RemoteException("Client " + clientId + ": " + "Stack is empty !!");
+            }
+            long lockStart = metrics.lockStart();
+            synchronized (stack) {
+            metrics.lockAcquired(lockStart);
+            if (stack.retired) continue;
+            stack.lastAccessMillis = System.currentTimeMillis();
+            result = wideningOperator(clientId, stack, operator).reduceBig(stack);
+            stack.clear();
+            journal(clientId, stack, WriteAheadLog.CLEAR);
+            lsn = stack.lastLsn;
+            break;
+            }
+            }
+            awaitDurable(clientId, lsn);
+            if (ServerLog.INFO) ServerLog.info("Client " + clientId + " : Operation ( " + operator + " ) BigInteger result popped: " + result);
+            return result;
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.POP_OPERATION_BIG);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.POP_OPERATION_BIG, start);
+        }
+    }
+
+    @Override
+    public long peekAggregate(String clientId, String operator) throws RemoteException {
+        long start = metrics.start();
+        try {
+            for (;;) {
+            IntStack stack = findStack(clientId);
+            if (stack == null) {
+                throw new RemoteException("Client " + clientId + ": " + "Stack is empty !!");
+            }
+            long lockStart = metrics.lockStart();
+            synchronized (stack) {
+            metrics.lockAcquired(lockStart);
+            if (stack.retired) continue;
+            stack.lastAccessMillis = System.currentTimeMillis();
+            return aggregateLong(clientId, stack, operator);
+            }
+            }
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.PEEK_AGGREGATE);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.PEEK_AGGREGATE, start);
+        }
+    }
+
+    @Override
+    public void pushShared(String stackName, int val) throws RemoteException {
+        long start = metrics.start();
+        try {
+            for (;;) {
+            EliminationStack stack = getSharedStack(stackName);
+            // Checked without a lock: concurrent pushes can pass the limit by up to one value each
+            if (maxStackDepth > 0 && stack.size() >= maxStackDepth) {
+                rejectedPushes.increment();
+                throw new LimitExceededException("Shared stack " + stackName + ": " + "Stack depth limit (" + maxStackDepth + ") reached !!");
+            }
+            // Retired: dropped while empty, look the name up again
+            if (stack.push(val)) break;
+            }
+            if (ServerLog.INFO) ServerLog.info("Shared stack " + stackName + ": Pushed value: " + val);
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.PUSH_SHARED);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.PUSH_SHARED, start);
+        }
+    }
+
+    @Override
+    public int popShared(String stackName) throws RemoteException {
+        long start = metrics.start();
+        try {
+            EliminationStack stack = stackName == null ? null : sharedStacks.get(stackName);
+            int val;
+            try {
+                if (stack == null) throw new EmptyStackException();
+                val = stack.pop();
+            } catch (EmptyStackException e) {
+                throw new RemoteException("Shared stack " + stackName + ": " + "Stack is empty !!");
+            }
+            if (ServerLog.INFO) ServerLog.info("Shared stack " + stackName + ": Popped value: " + val);
+            return val;
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.POP_SHARED);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.POP_SHARED, start);
+        }
+    }
+
+    @Override
+    public boolean isSharedEmpty(String stackName) throws RemoteException {
+        long start = metrics.start();
+        try {
+            EliminationStack stack = stackName == null ? null : sharedStacks.get(stackName);
+            return stack == null || stack.isEmpty();
+        } catch (RuntimeException e) {
+            metrics.failed(CalculatorMetrics.IS_SHARED_EMPTY);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.IS_SHARED_EMPTY, start);
+        }
+    }
+
+    /*
+     Drop the shared stacks that are empty, which hold nothing but a maxClients slot.
+     Runs with the idle sweep, and when a new shared stack finds every slot taken.
+     @return the number of shared stacks dropped
+    */
+    private int dropEmptySharedStacks() {
+        int dropped = 0;
+        for (Map.Entry<String, EliminationStack> entry : sharedStacks.entrySet()) {
+            if (entry.getValue().retireIfEmpty() && sharedStacks.remove(entry.getKey(), entry.getValue())) {
+                sharedStackCount.decrementAndGet();
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /*
+     Helper to create/get a shared stack, like getStack for client stacks.
+     @throws RemoteException if stackName is null or a new stack would exceed maxClients
+    */
+    private EliminationStack getSharedStack(String stackName) throws RemoteException {
+        if (stackName == null) {
+            throw new RemoteException("No shared stack name !!");
+        }
+        EliminationStack stack = sharedStacks.get(stackName);
+        if (stack != null) {
+            return stack;
+        }
+        if (maxClients > 0 && sharedStackCount.get() >= maxClients) {
+            dropEmptySharedStacks();
+        }
+        if (!reserveSlot(sharedStackCount)) {
+            throw new LimitExceededException("Shared stack " + stackName + ": " + "Too many shared stacks on this server (limit " + maxClients + ") !!");
+        }
+        boolean[] created = new boolean[1];
+        stack = sharedStacks.computeIfAbsent(stackName, k -> {
+            created[0] = true;
+            return new EliminationStack();
+        });
+        if (!created[0]) {
+            sharedStackCount.decrementAndGet();
+        }
+        return stack;
+    }
+
+    @Override
+    public long beginReduce(String clientId, String operator) throws RemoteException {
+        long start = metrics.start();
+        try {
+            Operator op = operators.lookup(operator);
+            if (op == null) {
+                throw new RemoteException("Client " + clientId + ": ( " + operator + ") is invalid operator or it is not supported in this calculator !!");
+            }
+            Operator.Accumulator accumulator = op.accumulator();
+            if (accumulator == null) {
+                throw new RemoteException("Client " + clientId + ": ( " + op.name() + ") needs all values at once and cannot be streamed !!");
+            }
+            if (!reserveSlot(reduceStreamCount)) {
+                throw new LimitExceededException("Client " + clientId + ": " + "Too many reduce streams on this server (limit " + maxClients + ") !!");
+            }
+            ReduceStream stream;
+            do {
+                long handle = reduceStreamHandles.nextLong() & Long.MAX_VALUE;
+                stream = new ReduceStream(handle, clientId, op.name(), accumulator);
+            } while (reduceStreams.putIfAbsent(stream.handle, stream) != null);
+            if (ServerLog.INFO) ServerLog.info("Client " + clientId + ": Started reduce ( " + stream.operator + " ) stream " + stream.handle);
+            return stream.handle;
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.BEGIN_REDUCE);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.BEGIN_REDUCE, start);
+        }
+    }
+
+    @Override
+    public void reduceChunk(long handle, int[] values) throws RemoteException {
+        long start = metrics.start();
+        try {
+            ReduceStream stream = openStream(handle);
+            if (values == null) {
+                throw new RemoteException("Client " + stream.clientId + ": " + "No values to reduce !!");
+            }
+            synchronized (stream) {
+                checkOpen(stream);
+                stream.lastAccessMillis = System.currentTimeMillis();
+                try {
+                    stream.accumulator.add(values, 0, values.length);
+                } catch (ArithmeticException e) {
+                    closeStream(stream);
+                    throw new RemoteException("Client " + stream.clientId + ": Operation ( " + stream.operator
+                            + " ) result does not fit in a long, reduce stream " + handle + " closed !!");
+                }
+                stream.count += values.length;
+            }
+            if (ServerLog.INFO) ServerLog.info("Client " + stream.clientId + ": Reduce stream " + handle + " folded " + values.length + " value(s)");
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.REDUCE_CHUNK);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.REDUCE_CHUNK, start);
+        }
+    }
+
+    @Override
+    public void endReduce(long handle) throws RemoteException {
+        long start = metrics.start();
+        try {
+            ReduceStream stream = openStream(handle);
+            String clientId = stream.clientId;
+            int result;
+            long lsn;
+            // Locks the stream, then the stack; nothing locks them the other way round
+            synchronized (stream) {
+            checkOpen(stream);
+            stream.lastAccessMillis = System.currentTimeMillis();
+            long value = streamResult(stream);
+            if (value != (int) value) {
+                throw new RemoteException("Client " + clientId + ": Operation ( " + stream.operator + " ) result does not fit in an int,"
+                        + " use endReduceLong !!");
+            }
+            result = (int) value;
+            for (;;) {
+            IntStack stack = getStack(clientId);
+            long lockStart = metrics.lockStart();
+            synchronized (stack) {
+            metrics.lockAcquired(lockStart);
+            if (stack.retired) continue;
+            checkDepth(clientId, stack, 1);
+            stack.lastAccessMillis = System.currentTimeMillis();
+            stack.push(result);
+            journal(clientId, stack, WriteAheadLog.PUSH, result);
+            lsn = stack.lastLsn;
+            stack.notifyAll();
+            break;
+            }
+            }
+            closeStream(stream);
+            }
+            awaitDurable(clientId, lsn);
+            if (ServerLog.INFO) ServerLog.info("Client " + clientId + " : Operation ( " + stream.operator + " ) over " + stream.count
+                    + " streamed value(s) result pushed: " + result);
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.END_REDUCE);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.END_REDUCE, start);
+        }
+    }
+
+    @Override
+    public long endReduceLong(long handle) throws RemoteException {
+        long start = metrics.start();
+        try {
+            ReduceStream stream = openStream(handle);
+            long result;
+            synchronized (stream) {
+                checkOpen(stream);
+                try {
+                    result = streamResult(stream);
+                } finally {
+                    closeStream(stream);
+                }
+            }
+            if (ServerLog.INFO) ServerLog.info("Client " + stream.clientId + " : Operation ( " + stream.operator + " ) over " + stream.count
+                    + " streamed value(s) result: " + result);
+            return result;
+        } catch (RemoteException | RuntimeException e) {
+            metrics.failed(CalculatorMetrics.END_REDUCE_LONG);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.END_REDUCE_LONG, start);
+        }
+    }
+
+    /*
+     Stream of a handle from beginReduce; it may still be closed by another call before it is locked.
+     @throws RemoteException if the stream is not open
+    */
+    private ReduceStream openStream(long handle) throws RemoteException {
+        ReduceStream stream = reduceStreams.get(handle);
+        if (stream == null) {
+            throw new RemoteException("Reduce stream " + handle + " is not open !!");
+        }
+        return stream;
+    }
+
+    // Must be called while holding the stream's lock
+    private static void checkOpen(ReduceStream stream) throws RemoteException {
+        if (stream.closed) {
+            throw new RemoteException("Reduce stream " + stream.handle + " is not open !!");
+        }
+    }
+
+    /*
+     Result of a stream over its values so far. Must be called while holding the stream's lock.
+     @throws RemoteException if no values were sent (the stream is then closed)
+    */
+    private long streamResult(ReduceStream stream) throws RemoteException {
+        if (stream.count == 0) {
+            closeStream(stream);
+            throw new RemoteException("Client " + stream.clientId + ": " + "No values were sent to reduce stream " + stream.handle + " !!");
+        }
+        return stream.accumulator.result();
+    }
+
+    // Must be called while holding the stream's lock
+    private void closeStream(ReduceStream stream) {
+        stream.closed = true;
+        if (reduceStreams.remove(stream.handle, stream)) reduceStreamCount.decrementAndGet();
+    }
+
+    /*
+     ClusterNode operations, used by ClusterCalculator to move stacks when nodes join or leave.
+     Not remote methods of this object: ClusterNodeImplementation exports them separately, on
+     cluster nodes only (calculator.clusterNode).
+    */
+
+    List<String> clientIds() {
+        return new ArrayList<>(clientStacks.keySet());
+    }
+
+    // The values of the stack under its move id (drawn on the first copy), left in place until takeStack
+    StackMove copyStack(String clientId) {
+        for (;;) {
+        IntStack stack = findStack(clientId);
+        if (stack == null) return new StackMove(0, new int[0]);
+        synchronized (stack) {
+        if (stack.retired) continue;
+        while (stack.moveOutId == 0) {
+            stack.moveOutId = moveIds.nextLong();
+        }
+        return new StackMove(stack.moveOutId, stack.toArray());
+        }
+        }
+    }
+
+    /*
+     The stack is retired and dropped like an evicted one, so a call that arrives here afterwards
+     (from a client still routing by the old ring) starts a new stack instead of losing values.
+     An awaitPop already waiting here keeps waiting until its timeout.
+     Only values pushed on top of the copy are allowed meanwhile; anything else means the new
+     owner holds values this stack no longer has, so the stack stays here and the call fails.
+    */
+    int[] takeStack(String clientId, StackMove move) throws RemoteException {
+        if (move == null) {
+            throw new RemoteException("Client " + clientId + ": " + "No move to take !!");
+        }
+        int[] copied = move.getValues();
+        int[] newer;
+        for (;;) {
+        IntStack stack = findStack(clientId);
+        if (stack == null) {
+            if (copied.length == 0) return new int[0];
+            throw new RemoteException("Client " + clientId + ": " + "Stack was dropped while it moved !!");
+        }
+        synchronized (stack) {
+        if (stack.retired) continue;
+        int[] values = stack.toArray();
+        if (values.length < copied.length || !Arrays.equals(values, 0, copied.length, copied, 0, copied.length)) {
+            throw new RemoteException("Client " + clientId + ": " + "Stack was popped or changed while it moved;"
+                    + " it stays on this node, move it again !!");
+        }
+        newer = Arrays.copyOfRange(values, copied.length, values.length);
+        stack.retired = true;
+        stack.clear();
+        journal(clientId, stack, WriteAheadLog.EVICT);
+        if (clientStacks.remove(clientId, stack)) clientCount.decrementAndGet();
+        break;
+        }
+        }
+        if (ServerLog.INFO) ServerLog.info("Client " + clientId + ": Moved " + (copied.length + newer.length) + " value(s) to another node");
+        return newer;
+    }
+
+    void putStack(String clientId, StackMove move) throws RemoteException {
+        if (move == null) {
+            throw new RemoteException("Client " + clientId + ": " + "No values to put !!");
+        }
+        int[] values = move.getValues();
+        long lsn;
+        for (;;) {
+        IntStack stack = getStack(clientId);
+        synchronized (stack) {
+        if (stack.retired) continue;
+        int[] current = stack.toArray();
+        int replaced = 0;
+        if (move.getMoveId() != 0 && stack.moveInId == move.getMoveId()) {
+            // Put before: its values are replaced, not added a second time
+            if (!holdsMoveIn(stack, current)) {
+                throw new RemoteException("Client " + clientId + ": " + "Values of this move were popped here since it was put;"
+                        + " it cannot be repeated !!");
+            }
+            replaced = stack.moveInCount;
+        }
+        checkDepth(clientId, stack, values.length - replaced);
+        stack.lastAccessMillis = System.currentTimeMillis();
+        stack.clear();
+        stack.pushAll(values);
+        stack.pushAll(Arrays.copyOfRange(current, replaced, current.length));
+        stack.moveInId = move.getMoveId();
+        stack.moveInCount = values.length;
+        stack.moveInHash = Arrays.hashCode(values);
+        if (store != null) {
+            journal(clientId, stack, WriteAheadLog.CLEAR);
+            store.appendAll(clientId, stack, stack.toArray());
+        }
+        lsn = stack.lastLsn;
+        stack.notifyAll();
+        break;
+        }
+        }
+        awaitDurable(clientId, lsn);
+        if (ServerLog.INFO) ServerLog.info("Client " + clientId + ": Received " + values.length + " value(s) from another node");
+    }
+
+    // Undo putStack of an unfinished move; a stack left empty is dropped as if the move never came
+    void dropMove(String clientId, long moveId) throws RemoteException {
+        long lsn;
+        int dropped;
+        for (;;) {
+        IntStack stack = findStack(clientId);
+        if (stack == null) return;
+        synchronized (stack) {
+        if (stack.retired) continue;
+        if (moveId == 0 || stack.moveInId != moveId) return;
+        int[] current = stack.toArray();
+        if (!holdsMoveIn(stack, current)) {
+            throw new RemoteException("Client " + clientId + ": " + "Values of this move were popped here since it was put;"
+                    + " it cannot be undone !!");
+        }
+        dropped = stack.moveInCount;
+        stack.moveInId = 0;
+        stack.moveInCount = 0;
+        stack.clear();
+        if (current.length == dropped) {
+            stack.retired = true;
+            journal(clientId, stack, WriteAheadLog.EVICT);
+            if (clientStacks.remove(clientId, stack)) clientCount.decrementAndGet();
+        } else {
+            stack.pushAll(Arrays.copyOfRange(current, dropped, current.length));
+            if (store != null) {
+                journal(clientId, stack, WriteAheadLog.CLEAR);
+                store.appendAll(clientId, stack, stack.toArray());
+            }
+        }
+        lsn = stack.lastLsn;
+        break;
+        }
+        }
+        awaitDurable(clientId, lsn);
+        if (ServerLog.INFO) ServerLog.info("Client " + clientId + ": Dropped " + dropped + " value(s) of an unfinished move");
+    }
+
+    // true if the bottom of current, the values of stack, is still what its last incoming move put there
+    private static boolean holdsMoveIn(IntStack stack, int[] current) {
+        return current.length >= stack.moveInCount
+                && Arrays.hashCode(Arrays.copyOf(current, stack.moveInCount)) == stack.moveInHash;
+    }
+
+    /*
+     The result of an operator over all values of a stack as a long, leaving the stack unchanged.
+     Must be called while holding the stack's lock.
+     @throws RemoteException if the stack is empty, the operator is not supported
+             or the result does not fit in a long
+    */
+    private long aggregateLong(String clientId, IntStack stack, String operator) throws RemoteException {
+        Operator op = wideningOperator(clientId, stack, operator);
+        try {
+            return op.reduceLong(stack);
+        } catch (ArithmeticException e) {
+            throw new RemoteException("Client " + clientId + ": Operation ( " + operator + " ) result does not fit in a long,"
+                    + " use popOperationBig !!");
+        }
+    }
+
+    /*
+     Check the stack and operator of a widened (popOperationLong/popOperationBig/peekAggregate) call
+     and return the operator. Must be called while holding the stack's lock.
+     @throws RemoteException if the stack is empty or the operator is not supported
+    */
+    private Operator wideningOperator(String clientId, IntStack stack, String operator) throws RemoteException {
+        if (stack.isEmpty()) {
+            throw new RemoteException("Client " + clientId + ": " + "Stack is empty !!");
+        }
+        Operator op = operators.lookup(operator);
+        if (op == null) {
+            throw new RemoteException("Client " + clientId + ": ( " + operator + ") is invalid operator or it is not supported in this calculator !!");
+        }
+        return op;
+    }
+
+    /*
+     Apply an operator to all values of a stack and push the result back.
+     Must be called while holding the stack's lock. The change goes to the write-ahead log,
+     but nothing is written to the server log: callers do that after releasing the lock.
+     An empty stack or an unknown (null) operator leaves the stack unchanged.
+     @return true if the result was pushed (it is then the top value)
+     @throws RemoteException if the result does not fit in an int (the stack is left unchanged)
+    */
+    private boolean applyOperation(String clientId, IntStack stack, Operator operator) throws RemoteException {
+        if (stack.isEmpty() || operator == null) {
+            return false;
+        }
+
+        // The operator reads the stack in place; the contents are then replaced in O(1)
+        int result;
+        try {
+            result = operator.reduceInt(stack);
+        } catch (ArithmeticException e) {
+            throw new RemoteException("Client " + clientId + ": Operation ( " + operator.name() + " ) result does not fit in an int,"
+                    + " use popOperationLong or popOperationBig !!");
+        }
+
+        stack.replaceWith(result);
+        journal(clientId, stack, WriteAheadLog.REPLACE, result);
+        return true;
+    }
+
+    /*
+     Pop the top value of a stack. Must be called while holding the stack's lock.
+     @throws RemoteException if the stack is empty
+    */
+    private int popValue(String clientId, IntStack stack) throws RemoteException {
+        if (stack.isEmpty()) {
+            throw new RemoteException("Client " + clientId + ": "+"Stack is empty !!");
+        }
+        int val = stack.pop();
+        journal(clientId, stack, WriteAheadLog.POP);
+        return val;
     }
 }
@@ -1,8 +1,13 @@
 import org.junit.jupiter.api.*;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.math.BigInteger;
 import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import static org.junit.jupiter.api.Assertions.*;
 
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
@@ -168,4 +173,642 @@ public class CalculatorJUnitTest {
             calc.pop(clientId);
         }
     }
+
+    // Bulk pushValues keeps array order and lands as one batch
+    @Test
+    public void PushValuesTest() throws RemoteException {
+        String clientId = uniqueClientId("PushValuesTest");
+
+        calc.pushValues(clientId, new int[] {3, 1, 2});
+        assertEquals(2, calc.pop(clientId));
+        assertEquals(1, calc.pop(clientId));
+        assertEquals(3, calc.pop(clientId));
+        assertTrue(calc.isEmpty(clientId));
+
+        // An empty batch is a no-op, a null batch is rejected
+        calc.pushValues(clientId, new int[0]);
+        assertTrue(calc.isEmpty(clientId));
+        assertThrows(RemoteException.class, () -> calc.pushValues(clientId, null));
+
+        int[] bulk = new int[10000];
+        for (int i = 0; i < bulk.length; i++) bulk[i] = i + 1;
+        calc.pushValues(clientId, bulk);
+        calc.pushOperation(clientId, "max");
+        assertEquals(10000, calc.pop(clientId));
+        assertTrue(calc.isEmpty(clientId));
+    }
+
+    // The multi-threaded section of EdgeStressTest, with each thread sending its values as one batch
+    @Test
+    public void PushValuesConcurrencyTest() throws InterruptedException {
+        String clientId = uniqueClientId("PushValuesConcurrencyTest");
+
+        Thread[] threads = new Thread[5];
+        for (int i = 0; i < threads.length; i++) {
+            int t = i;
+            threads[i] = new Thread(() -> {
+                String threadId = clientId + "-T" + t;
+                try {
+                    int[] values = new int[100];
+                    for (int j = 0; j < values.length; j++) values[j] = j;
+                    calc.pushValues(threadId, values);
+                    calc.pushOperation(threadId, "max");
+                    assertEquals(99, calc.pop(threadId));
+                } catch (RemoteException e) { fail("Thread exception: " + e.getMessage()); }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) t.join();
+    }
+
+    // size and isEmpty follow every kind of mutation
+    @Test
+    public void SizeTest() throws RemoteException {
+        String clientId = uniqueClientId("SizeTest");
+
+        assertEquals(0, calc.size(clientId));
+        assertTrue(calc.isEmpty(clientId));
+        calc.pushValue(clientId, 4);
+        calc.pushValues(clientId, new int[] {6, 8, 10});
+        assertEquals(4, calc.size(clientId));
+        assertFalse(calc.isEmpty(clientId));
+        calc.pop(clientId);
+        assertEquals(3, calc.size(clientId));
+        calc.pushOperation(clientId, "gcd");
+        assertEquals(1, calc.size(clientId));
+        calc.executeScript(clientId, Arrays.asList(Command.push(1), Command.push(2), Command.pop()));
+        assertEquals(2, calc.size(clientId));
+        calc.popOperationLong(clientId, "max");
+        assertEquals(0, calc.size(clientId));
+        assertTrue(calc.isEmpty(clientId));
+    }
+
+    // peekAggregate reads min/max/gcd/lcm without changing the stack, and follows pops
+    @Test
+    public void PeekAggregateTest() throws RemoteException {
+        String clientId = uniqueClientId("PeekAggregateTest");
+
+        assertThrows(RemoteException.class, () -> calc.peekAggregate(clientId, "min"));
+        calc.pushValues(clientId, new int[] {-12, 18, 30, 6, 45});
+        assertEquals(-12, calc.peekAggregate(clientId, "min"));
+        assertEquals(45, calc.peekAggregate(clientId, "max"));
+        assertEquals(3, calc.peekAggregate(clientId, "gcd"));
+        assertEquals(180, calc.peekAggregate(clientId, "LCM"));
+        assertEquals(5, calc.size(clientId));
+        assertEquals(17, calc.peekAggregate(clientId, "avg"));
+        assertThrows(RemoteException.class, () -> calc.peekAggregate(clientId, "mode"));
+
+        // Popping the value that set the max or gcd exposes the previous one
+        calc.pop(clientId);
+        assertEquals(30, calc.peekAggregate(clientId, "max"));
+        assertEquals(6, calc.peekAggregate(clientId, "gcd"));
+        calc.pushValue(clientId, -20);
+        assertEquals(-20, calc.peekAggregate(clientId, "min"));
+        assertEquals(2, calc.peekAggregate(clientId, "gcd"));
+
+        // pushOperation agrees with peekAggregate
+        calc.pop(clientId);
+        calc.pushOperation(clientId, "gcd");
+        assertEquals(6, calc.pop(clientId));
+
+        // A single negative value is returned unchanged, like the other reductions
+        calc.pushValue(clientId, -7);
+        assertEquals(-7, calc.peekAggregate(clientId, "gcd"));
+        calc.pop(clientId);
+        assertTrue(calc.isEmpty(clientId));
+    }
+
+    // executeScript runs push/operation/pop/isEmpty steps in one call
+    @Test
+    public void ExecuteScriptTest() throws RemoteException {
+        String clientId = uniqueClientId("ExecuteScriptTest");
+
+        ScriptResult result = calc.executeScript(clientId, Arrays.asList(
+                Command.isEmpty(),
+                Command.push(12), Command.push(18), Command.push(30),
+                Command.operation("gcd"),
+                Command.isEmpty(),
+                Command.pop(),
+                Command.isEmpty()));
+        assertTrue(result.isComplete());
+        assertEquals(8, result.getCompletedSteps());
+        assertArrayEquals(new int[] {1, 0, 6, 1}, result.getResults());
+
+        // A failing step keeps earlier steps applied and skips the rest
+        result = calc.executeScript(clientId, Arrays.asList(
+                Command.push(7), Command.pop(), Command.pop(), Command.push(9)));
+        assertFalse(result.isComplete());
+        assertEquals(2, result.getFailedStep());
+        assertNotNull(result.getError());
+        assertArrayEquals(new int[] {7}, result.getResults());
+        assertTrue(calc.isEmpty(clientId));
+    }
+
+    // size and isEmpty never observe a script halfway
+    @Test
+    public void ScriptDepthTest() throws Exception {
+        String clientId = uniqueClientId("ScriptDepthTest");
+        java.util.List<Command> script = new java.util.ArrayList<>();
+        for (int i = 0; i < 100; i++) script.add(Command.push(i));
+        for (int i = 0; i < 100; i++) script.add(Command.pop());
+
+        CompletableFuture<Void> scripts = CompletableFuture.runAsync(() -> {
+            try {
+                for (int i = 0; i < 200; i++) {
+                    assertTrue(calc.executeScript(clientId, script).isComplete());
+                }
+            } catch (RemoteException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        while (!scripts.isDone()) {
+            assertEquals(0, calc.size(clientId));
+            assertTrue(calc.isEmpty(clientId));
+        }
+        scripts.get(30, TimeUnit.SECONDS);
+    }
+
+    // Deep stacks grow and shrink without losing order
+    @Test
+    public void DeepStackTest() throws RemoteException {
+        String clientId = uniqueClientId("DeepStackTest");
+
+        int[] bulk = new int[50000];
+        for (int i = 0; i < bulk.length; i++) bulk[i] = i - 25000;
+        calc.pushValues(clientId, bulk);
+        for (int i = 0; i < 1000; i++) calc.pushValue(clientId, Integer.MIN_VALUE + i);
+        for (int i = 999; i >= 0; i--) assertEquals(Integer.MIN_VALUE + i, calc.pop(clientId));
+        assertEquals(24999, calc.pop(clientId));
+
+        calc.pushOperation(clientId, "min");
+        assertEquals(-25000, calc.pop(clientId));
+        assertTrue(calc.isEmpty(clientId));
+
+        // The stack is usable again after being reduced to one value
+        calc.pushValue(clientId, 5);
+        assertEquals(5, calc.pop(clientId));
+    }
+
+    // lcm/gcd overflow is reported instead of wrapping, and the widened modes return exact results
+    @Test
+    public void WideResultTest() throws RemoteException {
+        String clientId = uniqueClientId("WideResultTest");
+
+        calc.pushValues(clientId, new int[] {1 << 20, 48, -180, 1 << 10});
+        calc.pushOperation(clientId, "gcd");
+        assertEquals(4, calc.pop(clientId));
+
+        // lcm(100000, 99999) = 9999900000 does not fit in an int: stack left unchanged
+        calc.pushValues(clientId, new int[] {100000, 99999});
+        assertThrows(RemoteException.class, () -> calc.pushOperation(clientId, "lcm"));
+        assertEquals(99999, calc.pop(clientId));
+        assertEquals(100000, calc.pop(clientId));
+
+        calc.pushValues(clientId, new int[] {100000, 99999});
+        assertEquals(9999900000L, calc.popOperationLong(clientId, "lcm"));
+        assertTrue(calc.isEmpty(clientId));
+
+        // Product of the primes up to 71 exceeds a long
+        int[] primes = {2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53, 59, 61, 67, 71};
+        BigInteger expected = BigInteger.ONE;
+        for (int p : primes) expected = expected.multiply(BigInteger.valueOf(p));
+        calc.pushValues(clientId, primes);
+        assertThrows(RemoteException.class, () -> calc.popOperationLong(clientId, "lcm"));
+        assertEquals(expected, calc.popOperationBig(clientId, "lcm"));
+        assertTrue(calc.isEmpty(clientId));
+
+        // gcd(MIN_VALUE, 0) = 2^31 only fits in the widened mode
+        calc.pushValues(clientId, new int[] {Integer.MIN_VALUE, 0});
+        assertThrows(RemoteException.class, () -> calc.pushOperation(clientId, "gcd"));
+        assertEquals(1L << 31, calc.popOperationLong(clientId, "gcd"));
+
+        assertThrows(RemoteException.class, () -> calc.popOperationLong(clientId, "max"));
+        calc.pushValue(clientId, 3);
+        assertThrows(RemoteException.class, () -> calc.popOperationBig(clientId, "mode"));
+        assertEquals(BigInteger.valueOf(3), calc.popOperationBig(clientId, "max"));
+    }
+
+    // delayPopAsync returns at once and delivers the pop through the exported callback
+    @Test
+    public void DelayPopAsyncTest() throws Exception {
+        String clientId = uniqueClientId("DelayPopAsyncTest");
+
+        class FutureCallback extends UnicastRemoteObject implements PopCallback {
+            private static final long serialVersionUID = 1L;
+            final CompletableFuture<Integer> popped = new CompletableFuture<>();
+            final CompletableFuture<String> failed = new CompletableFuture<>();
+            FutureCallback() throws RemoteException { super(); }
+            @Override public void popped(int val) { popped.complete(val); }
+            @Override public void failed(String message) { failed.complete(message); }
+        }
+
+        FutureCallback callback = new FutureCallback();
+        try {
+            calc.pushValue(clientId, 42);
+            long start = System.currentTimeMillis();
+            calc.delayPopAsync(clientId, 1000, callback);
+            assertTrue(System.currentTimeMillis() - start < 900, "delayPopAsync should return before the delay");
+            assertEquals(42, callback.popped.get(10, TimeUnit.SECONDS));
+            assertTrue(System.currentTimeMillis() - start >= 900, "delayPopAsync popped too early");
+            assertTrue(calc.isEmpty(clientId));
+
+            // Empty stack is reported through failed()
+            calc.delayPopAsync(clientId, 10, callback);
+            assertNotNull(callback.failed.get(10, TimeUnit.SECONDS));
+
+            assertThrows(RemoteException.class, () -> calc.delayPopAsync(clientId, -1, callback));
+            assertThrows(RemoteException.class, () -> calc.delayPopAsync(clientId, 10, null));
+        } finally {
+            UnicastRemoteObject.unexportObject(callback, true);
+        }
+    }
+
+    // awaitPop returns as soon as another caller pushes, and times out with PopTimeoutException
+    @Test
+    public void AwaitPopTest() throws Exception {
+        String clientId = uniqueClientId("AwaitPopTest");
+
+        // Value already there: no wait
+        calc.pushValue(clientId, 1);
+        assertEquals(1, calc.awaitPop(clientId, 0));
+
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(300);
+                calc.pushValue(clientId, 77);
+            } catch (Exception e) { fail("Producer exception: " + e.getMessage()); }
+        });
+        long start = System.currentTimeMillis();
+        producer.start();
+        assertEquals(77, calc.awaitPop(clientId, 10000));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 250 && elapsed < 5000, "awaitPop should return right after the push, took " + elapsed + "ms");
+        producer.join();
+
+        start = System.currentTimeMillis();
+        assertThrows(PopTimeoutException.class, () -> calc.awaitPop(clientId, 500));
+        assertTrue(System.currentTimeMillis() - start >= 450, "awaitPop timed out too early");
+        assertThrows(RemoteException.class, () -> calc.awaitPop(clientId, -1));
+    }
+
+    @Test
+    public void OperatorRegistryTest() throws Exception {
+        String clientId = uniqueClientId("OperatorRegistryTest");
+
+        int[] values = {7, 3, 12, 5};
+        String[] ops = {"sum", "product", "avg", "median", "popcount", "xor", "MIN", "Max", "gcd", "lcm"};
+        int[] expected = {27, 1260, 6, 6, 3 + 2 + 2 + 2, 7 ^ 3 ^ 12 ^ 5, 3, 12, 1, 420};
+        for (int i = 0; i < ops.length; i++) {
+            calc.pushValues(clientId, values);
+            calc.pushOperation(clientId, ops[i]);
+            assertEquals(expected[i], calc.pop(clientId), ops[i]);
+            assertTrue(calc.isEmpty(clientId));
+        }
+
+        // Opcodes resolve case-insensitively and push the same results as names
+        int sum = calc.resolveOperator("sum");
+        assertEquals(sum, calc.resolveOperator("SuM"));
+        calc.pushValues(clientId, values);
+        calc.pushOperation(clientId, sum);
+        assertEquals(27, calc.pop(clientId));
+        calc.pushValues(clientId, new int[]{-4, 9});
+        calc.pushOperation(clientId, calc.resolveOperator("avg"));
+        assertEquals(2, calc.pop(clientId));
+
+        assertThrows(RemoteException.class, () -> calc.resolveOperator("nope"));
+        calc.pushValue(clientId, 1);
+        assertThrows(RemoteException.class, () -> calc.pushOperation(clientId, 1 << 20));
+        assertThrows(RemoteException.class, () -> calc.pushOperation(clientId, -1));
+        assertEquals(1, calc.size(clientId), "unknown opcode must leave the stack unchanged");
+        calc.pop(clientId);
+
+        // product overflows an int: rejected by pushOperation, exact through popOperationBig
+        int[] big = {1 << 20, 1 << 20, 1 << 20, 3};
+        calc.pushValues(clientId, big);
+        assertThrows(RemoteException.class, () -> calc.pushOperation(clientId, "product"));
+        assertEquals(4, calc.size(clientId));
+        assertEquals(BigInteger.ONE.shiftLeft(60).multiply(BigInteger.valueOf(3)), calc.popOperationBig(clientId, "product"));
+        assertTrue(calc.isEmpty(clientId));
+    }
+
+    @Test
+    public void SessionTest() throws Exception {
+        String clientId = uniqueClientId("SessionTest");
+
+        // Session calls and clientId calls act on the same stack
+        long session = calc.openSession(clientId);
+        assertTrue(session >= 0);
+        assertTrue(calc.isEmpty(session));
+        calc.pushValue(session, 12);
+        calc.pushValues(clientId, new int[]{18, 30});
+        calc.pushOperation(session, calc.resolveOperator("gcd"));
+        assertFalse(calc.isEmpty(session));
+        assertEquals(6, calc.pop(clientId));
+        calc.pushValue(clientId, 4);
+        assertEquals(4, calc.pop(session));
+        calc.pushValue(session, 9);
+        assertEquals(9, calc.delayPop(session, 10));
+        assertThrows(RemoteException.class, () -> calc.pop(session));
+
+        // A second session on the same clientId shares the stack
+        long other = calc.openSession(clientId);
+        assertTrue(other != session);
+        calc.pushValue(other, 7);
+        assertEquals(7, calc.pop(session));
+
+        // Closed and unknown handles are rejected; closing twice does nothing
+        calc.closeSession(session);
+        calc.closeSession(session);
+        assertThrows(RemoteException.class, () -> calc.pushValue(session, 1));
+        assertThrows(RemoteException.class, () -> calc.isEmpty(session));
+        assertThrows(RemoteException.class, () -> calc.pop(-1));
+        // The slot of the closed session is reused under a different handle
+        long reopened = calc.openSession(clientId);
+        assertTrue(reopened != session);
+        assertThrows(RemoteException.class, () -> calc.pop(session));
+        calc.pushValue(reopened, 3);
+        assertEquals(3, calc.pop(other));
+        calc.closeSession(reopened);
+
+        // Handles cannot be guessed from their slot: without the random tag, or with another, they are rejected
+        assertThrows(RemoteException.class, () -> calc.pop(other & 0x7fffffffL));
+        assertThrows(RemoteException.class, () -> calc.pop(other ^ (1L << 40)));
+        calc.closeSession(other);
+        assertTrue(calc.isEmpty(clientId));
+
+        // A slot reused more often than its 7-bit reuse counter wraps still rejects its first handle
+        SessionTable table = new SessionTable();
+        IntStack stack = new IntStack();
+        long first = table.open(clientId, false, stack).handle;
+        table.close(first);
+        for (int i = 0; i < 300; i++) {
+            long handle = table.open(clientId, false, stack).handle;
+            assertThrows(RemoteException.class, () -> table.get(first));
+            table.close(handle);
+        }
+    }
+
+    @Test
+    public void SharedStackTest() throws Exception {
+        String stackName = uniqueClientId("SharedStackTest");
+        assertTrue(calc.isSharedEmpty(stackName));
+        assertThrows(RemoteException.class, () -> calc.popShared(stackName));
+
+        // Producers push disjoint ranges concurrently; every value comes out exactly once
+        int threads = 8, perThread = 200;
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int base = t * perThread;
+            producers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) calc.pushShared(stackName, base + i);
+                } catch (RemoteException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            producers[t].start();
+        }
+        for (Thread producer : producers) producer.join();
+        assertFalse(calc.isSharedEmpty(stackName));
+
+        boolean[] seen = new boolean[threads * perThread];
+        for (int i = 0; i < seen.length; i++) {
+            int val = calc.popShared(stackName);
+            assertFalse(seen[val], "value popped twice: " + val);
+            seen[val] = true;
+        }
+        assertTrue(calc.isSharedEmpty(stackName));
+
+        // Last in, first out; independent of the client stack with the same name
+        calc.pushShared(stackName, 1);
+        calc.pushShared(stackName, 2);
+        calc.pushValue(stackName, 3);
+        assertEquals(2, calc.popShared(stackName));
+        assertEquals(3, calc.pop(stackName));
+        assertEquals(1, calc.popShared(stackName));
+        assertThrows(RemoteException.class, () -> calc.pushShared(null, 1));
+    }
+
+    @Test
+    public void BufferedCalculatorTest() throws Exception {
+        String clientId = uniqueClientId("BufferedCalculatorTest");
+        try (BufferedCalculator buffered = new BufferedCalculator(calc, 4, 0)) {
+            // Pushes stay in this process until a call needs the stack
+            buffered.pushValue(clientId, 12);
+            buffered.pushValue(clientId, 18);
+            assertEquals(2, buffered.getBufferedCount(clientId));
+            assertTrue(calc.isEmpty(clientId));
+            assertFalse(buffered.isEmpty(clientId));
+            assertEquals(0, buffered.getBufferedCount(clientId));
+
+            // maxBatch values are sent at once; the rest go before the operation
+            for (int val : new int[]{30, 42, 54, 66, 78}) buffered.pushValue(clientId, val);
+            assertEquals(1, buffered.getBufferedCount(clientId));
+            assertEquals(6, calc.size(clientId));
+            buffered.pushOperation(clientId, "gcd");
+            assertEquals(6, buffered.pop(clientId));
+            assertThrows(RemoteException.class, () -> buffered.pop(clientId));
+
+            // Session calls see values pushed by clientId through the proxy
+            long session = buffered.openSession(clientId);
+            buffered.pushValue(clientId, 7);
+            buffered.pushValue(clientId, 8);
+            assertEquals(8, buffered.pop(session));
+            assertEquals(7, buffered.delayPop(session, 10));
+            buffered.closeSession(session);
+
+            // close flushes what is left
+            buffered.pushValue(clientId, 9);
+        }
+        assertEquals(9, calc.pop(clientId));
+
+        // The timer sends values that nothing else flushes
+        try (BufferedCalculator timed = new BufferedCalculator(calc, 1024, 20)) {
+            timed.pushValue(clientId, 5);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (calc.isEmpty(clientId) && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertEquals(0, timed.getBufferedCount(clientId));
+            assertEquals(5, calc.pop(clientId));
+        }
+        assertThrows(IllegalArgumentException.class, () -> new BufferedCalculator(calc, 0, 0));
+
+        // A batch refused by a limit is replayed up to the limit; any other failure is not resent
+        CalculatorImplementation limited = new CalculatorImplementation(new CalculatorConfig().setMaxStackDepth(3));
+        try {
+            try (BufferedCalculator buffered = new BufferedCalculator(limited, 1024, 0)) {
+                for (int val = 1; val <= 5; val++) buffered.pushValue(clientId, val);
+                RemoteException e = assertThrows(RemoteException.class, () -> buffered.pop(clientId));
+                assertTrue(LimitExceededException.isCause(e));
+                assertEquals(3, limited.size(clientId));
+            }
+            // As after a write-ahead log failure: the values were pushed, then the call failed
+            Calculator failing = (Calculator) java.lang.reflect.Proxy.newProxyInstance(Calculator.class.getClassLoader(),
+                    new Class<?>[] {Calculator.class}, (proxy, method, args) -> {
+                        Object result = method.invoke(limited, args);
+                        if (method.getName().equals("pushValues")) {
+                            throw new java.rmi.ServerException("Change could not be persisted !!", new RemoteException("disk full"));
+                        }
+                        return result;
+                    });
+            String other = uniqueClientId("BufferedCalculatorTest");
+            try (BufferedCalculator buffered = new BufferedCalculator(failing, 1024, 0)) {
+                buffered.pushValue(other, 1);
+                buffered.pushValue(other, 2);
+                assertThrows(RemoteException.class, () -> buffered.isEmpty(other));
+                assertEquals(2, limited.size(other));
+            }
+        } finally {
+            limited.shutdown();
+        }
+    }
+
+    // OffHeapIntStack (calculator.offHeap) behaves exactly like IntStack, checked in-process
+    @Test
+    public void OffHeapStackTest() {
+        SlabAllocator slabs = new SlabAllocator();
+        OffHeapIntStack offHeap = new OffHeapIntStack(slabs);
+        IntStack heap = new IntStack();
+        assertEquals(0, slabs.usedBytes());
+        java.util.Random random = new java.util.Random(42);
+        int[] special = {0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 6, -12, 1 << 30};
+        for (int step = 0; step < 200_000; step++) {
+            int action = random.nextInt(100);
+            if (action < 55) {
+                int val = random.nextInt(4) == 0 ? special[random.nextInt(special.length)] : random.nextInt(2000) - 1000;
+                heap.push(val);
+                offHeap.push(val);
+            } else if (action < 95) {
+                if (heap.isEmpty()) {
+                    assertThrows(java.util.EmptyStackException.class, offHeap::pop);
+                } else {
+                    assertEquals(heap.pop(), offHeap.pop());
+                }
+            } else if (action < 97) {
+                int[] batch = new int[random.nextInt(300)];
+                for (int j = 0; j < batch.length; j++) batch[j] = random.nextInt(1 << 16) * 6;
+                heap.pushAll(batch);
+                offHeap.pushAll(batch);
+            } else if (action < 99) {
+                int val = random.nextInt();
+                heap.replaceWith(val);
+                offHeap.replaceWith(val);
+            } else {
+                heap.clear();
+                offHeap.clear();
+            }
+            assertEquals(heap.size(), offHeap.size());
+            assertEquals(heap.depth(), offHeap.depth());
+            if (!heap.isEmpty()) {
+                assertEquals(heap.peek(), offHeap.peek());
+                assertEquals(heap.min(), offHeap.min());
+                assertEquals(heap.max(), offHeap.max());
+                assertEquals(heap.gcd(), offHeap.gcd(), "gcd at step " + step);
+            }
+        }
+        assertArrayEquals(heap.toArray(), offHeap.toArray());
+        assertEquals(OperatorRegistry.standard(null, 0).lookup("sum").reduceLong(heap),
+                OperatorRegistry.standard(null, 0).lookup("sum").reduceLong(offHeap));
+
+        // clear gives the block back, and the next stack reuses it
+        offHeap.clear();
+        assertEquals(0, slabs.usedBytes());
+        offHeap.pushAll(new int[1000]);
+        offHeap.clear();
+        long reserved = slabs.reservedBytes();
+        OffHeapIntStack next = new OffHeapIntStack(slabs);
+        next.pushAll(new int[1000]);
+        assertEquals(reserved, slabs.reservedBytes());
+        next.clear();
+        assertEquals(0, slabs.usedBytes());
+    }
+
+    // A server that is not a cluster node offers no way to list or move other clients' stacks
+    @Test
+    public void ClusterNodeHiddenTest() throws Exception {
+        assertFalse(calc instanceof ClusterNode, "Calculator stub must not be a ClusterNode");
+        Registry registry = LocateRegistry.getRegistry("localhost", 1099);
+        assertThrows(java.rmi.NotBoundException.class, () -> registry.lookup("ClusterNode"));
+    }
+
+    // Streaming reduce: chunks folded on the server give the same result as pushOperation
+    @Test
+    public void StreamingReduceTest() throws Exception {
+        String clientId = uniqueClientId("StreamingReduceTest");
+        String reference = uniqueClientId("StreamingReduceReference");
+        java.util.Random random = new java.util.Random(7);
+
+        // Every streamable operator against popOperationLong over the same values, in uneven chunks
+        for (String op : new String[] {"min", "max", "gcd", "lcm", "sum", "product", "avg", "popcount", "xor"}) {
+            int[] values = new int[random.nextInt(3000) + 1];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = op.equals("product") || op.equals("lcm") ? random.nextInt(5) - 2 : random.nextInt(2001) - 1000;
+            }
+            calc.pushValues(reference, values);
+            String expected;
+            try {
+                expected = String.valueOf(calc.popOperationLong(reference, op));
+            } catch (RemoteException e) {
+                expected = "overflow";
+                while (!calc.isEmpty(reference)) calc.pop(reference);
+            }
+            String actual;
+            long stream = calc.beginReduce(clientId, op.toUpperCase());
+            try {
+                for (int from = 0; from < values.length; ) {
+                    int to = Math.min(values.length, from + random.nextInt(700));
+                    calc.reduceChunk(stream, Arrays.copyOfRange(values, from, to));
+                    from = to;
+                }
+                actual = String.valueOf(calc.endReduceLong(stream));
+            } catch (RemoteException e) {
+                actual = "overflow";
+            }
+            assertEquals(expected, actual, "Streamed " + op + " mismatch");
+        }
+        assertTrue(calc.isEmpty(clientId), "endReduceLong should not push");
+
+        // endReduce pushes the result on top of the values already there, which it leaves alone
+        calc.pushValue(clientId, 100);
+        long stream = calc.beginReduce(clientId, "gcd");
+        calc.reduceChunk(stream, new int[] {12, 18});
+        calc.reduceChunk(stream, new int[0]);
+        calc.reduceChunk(stream, new int[] {24});
+        calc.endReduce(stream);
+        assertEquals(6, calc.pop(clientId));
+        assertEquals(100, calc.pop(clientId));
+
+        // A result that does not fit in an int keeps the stream open for endReduceLong
+        stream = calc.beginReduce(clientId, "lcm");
+        calc.reduceChunk(stream, new int[] {65536, 65537});
+        final long open = stream;
+        assertThrows(RemoteException.class, () -> calc.endReduce(open));
+        assertTrue(calc.isEmpty(clientId));
+        assertEquals(65536L * 65537, calc.endReduceLong(stream));
+
+        // Closed, empty and unknown streams, null chunks and median are rejected
+        assertThrows(RemoteException.class, () -> calc.reduceChunk(open, new int[] {1}));
+        assertThrows(RemoteException.class, () -> calc.endReduceLong(open));
+        final long empty = calc.beginReduce(clientId, "sum");
+        assertThrows(RemoteException.class, () -> calc.reduceChunk(empty, null));
+        assertThrows(RemoteException.class, () -> calc.endReduce(empty));
+        assertThrows(RemoteException.class, () -> calc.endReduceLong(empty));
+        // Handles are random: the neighbours of an open one are not streams
+        final long guessed = calc.beginReduce(clientId, "sum");
+        assertThrows(RemoteException.class, () -> calc.reduceChunk(guessed + 1, new int[] {1}));
+        assertThrows(RemoteException.class, () -> calc.endReduceLong(guessed - 1));
+        calc.reduceChunk(guessed, new int[] {5});
+        assertEquals(5, calc.endReduceLong(guessed));
+        assertThrows(RemoteException.class, () -> calc.beginReduce(clientId, "median"));
+        assertThrows(RemoteException.class, () -> calc.beginReduce(clientId, "nope"));
+
+        // Through BufferedCalculator, values pushed before endReduce stay below its result
+        try (BufferedCalculator buffered = new BufferedCalculator(calc, 1024, 0)) {
+            buffered.pushValue(clientId, 1);
+            stream = buffered.beginReduce(clientId, "max");
+            buffered.reduceChunk(stream, new int[] {3, 9, 4});
+            buffered.endReduce(stream);
+        }
+        assertEquals(9, calc.pop(clientId));
+        assertEquals(1, calc.pop(clientId));
+    }
 }
@@ -0,0 +1,336 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+  Server-side metrics of a CalculatorImplementation: calls, errors and latency per remote method,
+  active clients, total stack depth and time spent waiting for stack locks.
+
+  Every counter is a LongAdder, so concurrent callers update their own striped cell instead of
+  contending on one shared word; values are summed only when they are read.
+  Latencies go into a log-bucketed histogram of LongAdders (4 buckets per power of two, so a
+  percentile is within 25% of the true value); the call count is the sum of its buckets.
+  The max is exact: a LongAccumulator that is only written when a call is slower than all before.
+  A call costs two System.nanoTime() reads and two LongAdder updates. Lock waits need a third
+  clock read, so only about one acquisition in LOCK_SAMPLE is timed and the total is scaled up.
+
+  With metrics disabled (calculator.metrics=off) start() and lockStart() return 0 and every
+  record call returns at once, so nothing is timed or counted.
+ */
+public class CalculatorMetrics implements CalculatorMetricsMXBean {
+
+    // Remote methods, in the order they are reported
+    public static final int PUSH_VALUE = 0;
+    public static final int PUSH_VALUES = 1;
+    public static final int PUSH_OPERATION = 2;
+    public static final int POP_OPERATION_LONG = 3;
+    public static final int POP_OPERATION_BIG = 4;
+    public static final int POP = 5;
+    public static final int AWAIT_POP = 6;
+    public static final int IS_EMPTY = 7;
+    public static final int DELAY_POP = 8;
+    public static final int DELAY_POP_ASYNC = 9;
+    public static final int EXECUTE_SCRIPT = 10;
+    public static final int SIZE = 11;
+    public static final int PEEK_AGGREGATE = 12;
+    public static final int RESOLVE_OPERATOR = 13;
+    public static final int OPEN_SESSION = 14;
+    public static final int CLOSE_SESSION = 15;
+    public static final int PUSH_SHARED = 16;
+    public static final int POP_SHARED = 17;
+    public static final int IS_SHARED_EMPTY = 18;
+    public static final int BEGIN_REDUCE = 19;
+    public static final int REDUCE_CHUNK = 20;
+    public static final int END_REDUCE = 21;
+    public static final int END_REDUCE_LONG = 22;
+
+    private static final String[] NAMES = {
+        "pushValue", "pushValues", "pushOperation", "popOperationLong", "popOperationBig",
+        "pop", "awaitPop", "isEmpty", "delayPop", "delayPopAsync", "executeScript", "size", "peekAggregate",
+        "resolveOperator", "openSession", "closeSession",
+        "pushShared", "popShared", "isSharedEmpty",
+        "beginReduce", "reduceChunk", "endReduce", "endReduceLong"
+    };
+
+    // Histogram buckets: 2 sub-bucket bits per power of two
+    private static final int SUB_BITS = 2;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) << SUB_BITS;
+
+    // About one stack lock acquisition in LOCK_SAMPLE is timed, picked at random
+    static final int LOCK_SAMPLE = 8;
+
+    // JMX view of one remote method
+    public interface OperationMXBean {
+        long getCalls();
+
+        long getErrors();
+
+        double getMeanMicros();
+
+        double getP50Micros();
+
+        double getP99Micros();
+
+        double getP999Micros();
+
+        double getMaxMicros();
+    }
+
+    // Counters and latency histogram of one remote method
+    static final class Operation implements OperationMXBean {
+        final String name;
+        final LongAdder errors = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAdder[] buckets = new LongAdder[BUCKETS];
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        Operation(String name) {
+            this.name = name;
+            for (int i = 0; i < BUCKETS; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            totalNanos.add(nanos);
+            // Before the bucket, so a percentile read meanwhile is never capped below this call
+            maxNanos.accumulate(nanos);
+            buckets[bucketOf(nanos)].increment();
+        }
+
+        @Override
+        public long getCalls() {
+            long calls = 0;
+            for (LongAdder bucket : buckets) calls += bucket.sum();
+            return calls;
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public double getMeanMicros() {
+            long n = getCalls();
+            return n == 0 ? 0 : totalNanos.sum() / (double) n / 1000.0;
+        }
+
+        @Override
+        public double getP50Micros() {
+            return percentile(50) / 1000.0;
+        }
+
+        @Override
+        public double getP99Micros() {
+            return percentile(99) / 1000.0;
+        }
+
+        @Override
+        public double getP999Micros() {
+            return percentile(99.9) / 1000.0;
+        }
+
+        @Override
+        public double getMaxMicros() {
+            return maxNanos.get() / 1000.0;
+        }
+
+        /*
+          Upper bound of the bucket holding the given percentile, in nanoseconds, capped at the max.
+          The buckets are summed one by one, so the result is approximate while calls are recorded.
+         */
+        long percentile(double percentile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(upperBoundOf(i), maxNanos.get());
+            }
+            return maxNanos.get();
+        }
+    }
+
+    private final CalculatorImplementation calc;
+    private final boolean enabled;
+    private final Operation[] operations = new Operation[NAMES.length];
+    private final LongAdder lockWaitSamples = new LongAdder();
+    private final LongAdder lockWaitNanos = new LongAdder();
+
+    public CalculatorMetrics(CalculatorImplementation calc, boolean enabled) {
+        this.calc = calc;
+        this.enabled = enabled;
+        for (int i = 0; i < NAMES.length; i++) operations[i] = new Operation(NAMES[i]);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Start time of a call, or 0 when metrics are disabled
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    // Count one call of a remote method that started at start(), whether it returned or threw
+    void record(int operation, long start) {
+        if (!enabled) return;
+        operations[operation].record(System.nanoTime() - start);
+    }
+
+    // Count a call of a remote method that threw
+    void failed(int operation) {
+        if (!enabled) return;
+        operations[operation].errors.increment();
+    }
+
+    /*
+      Time just before a stack lock is requested if this call is sampled for lock wait, else 0.
+      A thread-local random draw picks one call in LOCK_SAMPLE: the low bits of nanoTime are
+      coarse or fixed on some clocks, which would sample far more or fewer calls than that.
+     */
+    long lockStart() {
+        if (!enabled || ThreadLocalRandom.current().nextInt(LOCK_SAMPLE) != 0) return 0;
+        return System.nanoTime();
+    }
+
+    // Count the wait of a sampled stack lock acquisition; call it while holding the lock
+    void lockAcquired(long lockStart) {
+        if (lockStart == 0) return;
+        lockWaitSamples.increment();
+        lockWaitNanos.add(System.nanoTime() - lockStart);
+    }
+
+    // Bucket of a latency: 4 linear sub-buckets per power of two, exact below 4 ns
+    static int bucketOf(long nanos) {
+        if (nanos < (1 << SUB_BITS)) return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    // Largest latency that falls into a bucket
+    static long upperBoundOf(int bucket) {
+        if (bucket < (1 << SUB_BITS)) return bucket;
+        int exponent = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+        long sub = bucket & ((1 << SUB_BITS) - 1);
+        long lower = (1L << exponent) + (sub << (exponent - SUB_BITS));
+        long width = 1L << (exponent - SUB_BITS);
+        return lower + width - 1 < 0 ? Long.MAX_VALUE : lower + width - 1;
+    }
+
+    // JMX view of one remote method, by the constants above
+    public OperationMXBean getOperation(int operation) {
+        return operations[operation];
+    }
+
+    @Override
+    public int getActiveClients() {
+        return calc.getClientCount();
+    }
+
+    @Override
+    public long getTotalStackDepth() {
+        return calc.getTotalStackDepth();
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return calc.getOffHeapBytes();
+    }
+
+    @Override
+    public long getLockWaitSamples() {
+        return lockWaitSamples.sum();
+    }
+
+    @Override
+    public long getLockWaitNanos() {
+        return lockWaitNanos.sum() * LOCK_SAMPLE;
+    }
+
+    @Override
+    public long getTotalCalls() {
+        long total = 0;
+        for (Operation op : operations) total += op.getCalls();
+        return total;
+    }
+
+    @Override
+    public long getTotalErrors() {
+        long total = 0;
+        for (Operation op : operations) total += op.errors.sum();
+        return total;
+    }
+
+    @Override
+    public long getEvictedClients() {
+        return calc.getEvictedClientCount();
+    }
+
+    @Override
+    public long getRejectedClients() {
+        return calc.getRejectedClientCount();
+    }
+
+    @Override
+    public long getRejectedPushes() {
+        return calc.getRejectedPushCount();
+    }
+
+    @Override
+    public long getDroppedLogLines() {
+        return ServerLog.getDroppedCount();
+    }
+
+    @Override
+    public Map<String, Long> getCallsByOperation() {
+        Map<String, Long> calls = new LinkedHashMap<>();
+        for (Operation op : operations) calls.put(op.name, op.getCalls());
+        return calls;
+    }
+
+    @Override
+    public String getSnapshot() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.ROOT, "clients=%d depth=%d calls=%d errors=%d lockWaitSamples=%d lockWaitMs=%.3f"
+                        + " evicted=%d rejectedClients=%d rejectedPushes=%d droppedLogLines=%d%n",
+                getActiveClients(), getTotalStackDepth(), getTotalCalls(), getTotalErrors(), getLockWaitSamples(),
+                getLockWaitNanos() / 1e6, getEvictedClients(), getRejectedClients(), getRejectedPushes(), getDroppedLogLines()));
+        text.append(String.format(Locale.ROOT, "  %-17s %10s %8s %10s %10s %10s %10s %10s%n",
+                "operation", "calls", "errors", "mean_us", "p50_us", "p99_us", "p999_us", "max_us"));
+        for (Operation op : operations) {
+            if (op.getCalls() == 0) continue;
+            text.append(String.format(Locale.ROOT, "  %-17s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    op.name, op.getCalls(), op.getErrors(), op.getMeanMicros(), op.getP50Micros(),
+                    op.getP99Micros(), op.getP999Micros(), op.getMaxMicros()));
+        }
+        return text.toString();
+    }
+
+    /*
+      Register this object as calculator:type=Server and every remote method as
+      calculator:type=Operation,name=<method> in the platform MBean server.
+      @throws JMException if the names are already registered (one server per JVM)
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, new ObjectName("calculator:type=Server"));
+        for (Operation op : operations) {
+            server.registerMBean(op, new ObjectName("calculator:type=Operation,name=" + op.name));
+        }
+    }
+}
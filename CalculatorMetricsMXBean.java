@@ -0,0 +1,45 @@
+import java.util.Map;
+
+/*
+  Management interface of CalculatorMetrics, registered by CalculatorServer as
+  calculator:type=Server in the platform MBean server (visible in jconsole / VisualVM).
+  Each remote method also has its own calculator:type=Operation,name=<method> MBean
+  with its call count, error count and latency percentiles.
+ */
+public interface CalculatorMetricsMXBean {
+
+    // Number of client stacks currently held
+    int getActiveClients();
+
+    // Values held over all client stacks (read without locking, so approximate under load)
+    long getTotalStackDepth();
+
+    // Off-heap memory reserved for stack values with calculator.offHeap, 0 otherwise
+    long getOffHeapBytes();
+
+    // Stack lock acquisitions that were timed (about one in CalculatorMetrics.LOCK_SAMPLE)
+    long getLockWaitSamples();
+
+    // Estimated total time spent waiting for stack locks, scaled up from the timed acquisitions
+    long getLockWaitNanos();
+
+    // Calls and errors over all remote methods
+    long getTotalCalls();
+
+    long getTotalErrors();
+
+    long getEvictedClients();
+
+    long getRejectedClients();
+
+    long getRejectedPushes();
+
+    // Log lines dropped because the asynchronous log buffer was full
+    long getDroppedLogLines();
+
+    // Calls per remote method name
+    Map<String, Long> getCallsByOperation();
+
+    // The same text as the periodic snapshot
+    String getSnapshot();
+}
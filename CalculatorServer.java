@@ -1,19 +1,70 @@
-import java.rmi.Naming;
 import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
 
 // Starts the RMI registry and binds the Calculator service.
 public class CalculatorServer {
-    /*  -Starts the RMI registry using the default RMI port 1099
+    /*  -Applies the RMI transport settings of the calculator.* system properties (see CalculatorConfig):
+         idle connection timeouts and the connection thread limit, set before the RMI runtime starts
+        -Starts the RMI registry on the port given as args[0], or calculator.port (default 1099)
+         (several servers on one host, such as the nodes of a ClusterCalculator, use different ports),
+         with TunedSocketFactory sockets when socket options are set
         -then creates an instance of CalculatorImplementation
+         with the limits from calculator.* system properties (see CalculatorConfig)
+         (with calculator.persistenceDir set, it first recovers the client stacks saved there)
+        -registers its metrics as JMX MBeans (calculator:type=Server and calculator:type=Operation,name=...)
         -Registers (binds) the calculator object with a name in the RMI registry 
+        -if calculator.clusterNode is on, also binds "ClusterNode" (see ClusterNodeImplementation),
+         which ClusterCalculator uses to move stacks between nodes
+        -if calculator.binaryPort is set, also serves the same calculator over the
+         binary protocol on that port (see BinaryCalculatorServer)
         -print message shows that server running
     */
     public static void main(String[] args) throws Exception {
+            CalculatorConfig config = CalculatorConfig.fromSystemProperties();
+            if (args.length > 0) {
+                config.setPort(Integer.parseInt(args[0]));
+            }
+            applyTransportProperties(config);
             // Start RMI registry
-            final int RMI_PORT = 1099;
-            LocateRegistry.createRegistry(RMI_PORT);
-            CalculatorImplementation calc = new CalculatorImplementation();
-            Naming.bind("Calculator", calc);
-            System.out.println("Calculator server is running...");
+            final int RMI_PORT = config.getPort();
+            TunedSocketFactory sockets = TunedSocketFactory.forConfig(config);
+            Registry registry = sockets == null ? LocateRegistry.createRegistry(RMI_PORT)
+                    : LocateRegistry.createRegistry(RMI_PORT, sockets, sockets);
+            CalculatorImplementation calc = new CalculatorImplementation(config);
+            calc.getMetrics().register();
+            registry.bind("Calculator", calc);
+            if (config.isClusterNode()) {
+                registry.bind("ClusterNode", new ClusterNodeImplementation(calc, config));
+            }
+            Integer binaryPort = Integer.getInteger("calculator.binaryPort");
+            if (binaryPort != null) {
+                BinaryCalculatorServer binary = new BinaryCalculatorServer(calc, binaryPort);
+                System.out.println("Binary protocol on port " + binary.getPort());
+            }
+            System.out.println("Calculator server is running on port " + RMI_PORT + "... (" + config + ")");
+    }
+
+    /*
+      The sun.rmi.transport settings are read once, when the RMI classes load, so they must be
+      set before the first registry or export. A -Dsun.rmi... given on the command line wins.
+    */
+    private static void applyTransportProperties(CalculatorConfig config) {
+        if (config.getConnectionIdleMillis() > 0) {
+            String idle = String.valueOf(config.getConnectionIdleMillis());
+            setIfAbsent("sun.rmi.transport.tcp.readTimeout", idle);
+            setIfAbsent("sun.rmi.transport.connectionTimeout", idle);
+        }
+        if (config.getCallbackTimeoutMillis() > 0) {
+            setIfAbsent("sun.rmi.transport.tcp.responseTimeout", String.valueOf(config.getCallbackTimeoutMillis()));
+        }
+        if (config.getMaxConnectionThreads() > 0) {
+            setIfAbsent("sun.rmi.transport.tcp.maxConnectionThreads", String.valueOf(config.getMaxConnectionThreads()));
+        }
+    }
+
+    private static void setIfAbsent(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
     }
 }
@@ -0,0 +1,79 @@
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ClusterBenchmark {
+    /*
+      Throughput of a ClusterCalculator as nodes are added: for each node count, that many
+      calculator server JVMs are started on this host (LocalCluster) and the same client threads
+      push and pop through one proxy, each on its own clientId spread over the nodes.
+
+      Inputs:
+        - args[0] (optional): comma-separated node counts, default 1,2,4
+        - args[1] (optional): client threads, default 32
+        - args[2] (optional): milliseconds per measurement, default 5000
+
+      Outputs:
+        - push+pop pairs per second per node count, and the speedup over the first count.
+
+      Special cases:
+        - Node JVMs run with metrics off and the log off; they are killed after each measurement.
+        - Nodes share this host's CPUs with each other and with the client threads, so scaling
+          is bounded by the cores: on a host with fewer cores than nodes it stays flat, and the
+          near-linear case needs about one core per node plus the client's.
+     */
+    public static void main(String[] args) throws Exception {
+        String nodeList = args.length > 0 ? args[0] : "1,2,4";
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        long millis = args.length > 2 ? Long.parseLong(args[2]) : 5000;
+        System.out.println("Cluster benchmark: " + threads + " client threads, "
+                + Runtime.getRuntime().availableProcessors() + " CPU(s)");
+        System.out.printf("%6s %16s %8s%n", "nodes", "push+pop/s", "speedup");
+        double first = 0;
+        for (String count : nodeList.split(",")) {
+            int nodes = Integer.parseInt(count);
+            try (LocalCluster cluster = new LocalCluster(List.of("-Dcalculator.metrics=off"))) {
+                for (int i = 0; i < nodes; i++) cluster.start();
+                ClusterCalculator calc = new ClusterCalculator(cluster.nodes());
+                double rate = run(calc, threads, millis);
+                if (first == 0) first = rate;
+                System.out.printf("%6d %16.0f %7.2fx%n", nodes, rate, rate / first);
+            }
+        }
+    }
+
+    // Pairs per second over all threads, after a warmup of a quarter of the time
+    private static double run(ClusterCalculator calc, int threads, long millis) throws InterruptedException {
+        LongAdder pairs = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long warmupEnd = System.currentTimeMillis() + millis / 4;
+        long end = warmupEnd + millis;
+        String prefix = "ClusterBenchmark-" + UUID.randomUUID() + "-";
+        for (int t = 0; t < threads; t++) {
+            String clientId = prefix + t;
+            int value = t;
+            new Thread(() -> {
+                try {
+                    while (System.currentTimeMillis() < warmupEnd) {
+                        calc.pushValue(clientId, value);
+                        calc.pop(clientId);
+                    }
+                    long n = 0;
+                    while (System.currentTimeMillis() < end) {
+                        calc.pushValue(clientId, value);
+                        calc.pop(clientId);
+                        n++;
+                    }
+                    pairs.add(n);
+                } catch (Exception e) {
+                    System.out.println("benchmark thread failed: " + e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        return pairs.sum() * 1000.0 / millis;
+    }
+}
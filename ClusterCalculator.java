@@ -0,0 +1,441 @@
+import java.math.BigInteger;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+  ClusterCalculator is a client-side Calculator that spreads clients over several calculator
+  servers (nodes), each started with its own registry port (java CalculatorServer <port>).
+  Nodes must be started with calculator.clusterNode=on, which binds the ClusterNode object
+  used to move stacks. Every clientId is owned by one node, chosen by a ConsistentHashRing over the node names
+  "host:port", and each call goes straight to that node over RMI: no node forwards calls,
+  so adding nodes adds capacity.
+
+  Membership: addNode and removeNode move the affected stacks (through ClusterNode), about 1/n of
+  the clients for a join, in two phases:
+    1. Every affected stack is copied to its new owner while the ring still routes to the old one.
+       If a copy fails (the new owner rejects it for maxClients or maxStackDepth, or a transport
+       error), the copies made so far are undone and the ring is left as it was.
+    2. The ring is switched, and each stack is taken off its old node; values pushed there
+       meanwhile by calls routed by the old ring are pushed on top on the new owner.
+  A take fails loudly, leaving the stack on its old node, if the stack was popped or changed
+  there since the copy: the new owner would otherwise hold values that no longer exist.
+  Calling addNode or removeNode again for the same node retries the moves left: a copy carries a
+  move id kept by the old node, so a stack copied again replaces its earlier copy on the new owner
+  instead of being added twice. A take that fails does not stop the other stacks from moving;
+  until the retry, calls for its client reach the copy on the new owner. Finish a failed addNode
+  with addNode, not removeNode: once the ring has switched, the new node holds copies whose
+  originals are still on the old nodes.
+
+  Special cases:
+    - The ring lives in this proxy. Processes that share a cluster must be given the same node
+      list, and membership changes should be made through one proxy while the others are idle
+      (or restarted with the new list); a call routed by a stale ring starts a stack on the old
+      node that is not moved.
+    - Sessions from openSession are handles of this proxy; each maps to a session on the owning
+      node and is reopened on the new owner when its client moves.
+    - resolveOperator asks every node and rejects an operator whose opcode differs between them.
+    - Shared stacks (pushShared) are placed by name like clientIds, but are not moved when
+      nodes join or leave.
+    - Streaming reduces (beginReduce) are handles of this proxy like sessions, but stay on the node
+      that owned their client when they began. If the client has moved by endReduce, the result is
+      taken with endReduceLong and pushed to the new owner.
+ */
+public class ClusterCalculator implements Calculator {
+
+    private static final class Node {
+        final Calculator calc;
+        final ClusterNode cluster;
+
+        Node(Calculator calc, ClusterNode cluster) {
+            this.calc = calc;
+            this.cluster = cluster;
+        }
+    }
+
+    // Immutable, so a call never sees the node of a moved session with its old handle;
+    // also a streaming reduce on its node
+    private static final class Session {
+        final String clientId;
+        final Node node;
+        final long handle;
+
+        Session(String clientId, Node node, long handle) {
+            this.clientId = clientId;
+            this.node = node;
+            this.handle = handle;
+        }
+    }
+
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    private volatile ConsistentHashRing ring;
+
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextSession = new AtomicLong();
+
+    private final Map<Long, Session> reduceStreams = new ConcurrentHashMap<>();
+    private final AtomicLong nextReduceStream = new AtomicLong();
+
+    /*
+      Connect to the nodes, each given as "host:port" of its RMI registry.
+      @throws RemoteException if a node cannot be reached
+      @throws NotBoundException if a registry has no "Calculator", or no "ClusterNode"
+              (the node was not started with calculator.clusterNode=on)
+     */
+    public ClusterCalculator(List<String> nodeNames) throws RemoteException, NotBoundException {
+        for (String name : nodeNames) {
+            nodes.put(name, connect(name));
+        }
+        ring = new ConsistentHashRing(nodeNames);
+    }
+
+    private static Node connect(String name) throws RemoteException, NotBoundException {
+        int colon = name.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Node " + name + " is not host:port");
+        }
+        String host = name.substring(0, colon);
+        int port = Integer.parseInt(name.substring(colon + 1));
+        Registry registry = LocateRegistry.getRegistry(host, port);
+        return new Node((Calculator) registry.lookup("Calculator"), (ClusterNode) registry.lookup("ClusterNode"));
+    }
+
+    // Names of the nodes in the cluster
+    public List<String> getNodes() {
+        return ring.nodes();
+    }
+
+    // The node owning clientId
+    public String ownerOf(String clientId) {
+        return ring.owner(clientId);
+    }
+
+    /*
+      Add a node and move to it the stacks it now owns. For a node already added, only the moves
+      left over from a failed addNode are made.
+      @return the number of client stacks moved
+      @throws RemoteException if a node cannot be reached or a stack could not be moved (see the
+              class comment for where the stacks are then)
+     */
+    public synchronized int addNode(String name) throws RemoteException, NotBoundException {
+        Node added = nodes.get(name);
+        if (added == null) {
+            added = connect(name);
+            nodes.put(name, added);
+        }
+        ConsistentHashRing next = ring.nodes().contains(name) ? ring : ring.withNode(name);
+        List<Node> sources = new ArrayList<>(nodes.values());
+        sources.remove(added);
+        return rebalance(sources, next);
+    }
+
+    /*
+      Move every stack off a node, to the nodes that own them without it, and drop the node.
+      @return the number of client stacks moved
+      @throws RemoteException if a stack could not be moved (the node then stays known to this
+              proxy so that removeNode can be called again)
+     */
+    public synchronized int removeNode(String name) throws RemoteException {
+        Node removed = nodes.get(name);
+        if (removed == null) {
+            return 0;
+        }
+        ConsistentHashRing next = ring.nodes().contains(name) ? ring.withoutNode(name) : ring;
+        int moved = rebalance(List.of(removed), next);
+        nodes.remove(name);
+        return moved;
+    }
+
+    // One stack on its way from source to owner
+    private static final class Move {
+        final String clientId;
+        final Node source;
+        final Node owner;
+        final StackMove copy;
+
+        Move(String clientId, Node source, Node owner, StackMove copy) {
+            this.clientId = clientId;
+            this.source = source;
+            this.owner = owner;
+            this.copy = copy;
+        }
+    }
+
+    // Move the stacks on sources that next assigns elsewhere and switch to next, then move the sessions
+    private int rebalance(List<Node> sources, ConsistentHashRing next) throws RemoteException {
+        // 1. Copy; calls still go to the old owners
+        List<Move> moves = new ArrayList<>();
+        try {
+            for (Node source : sources) {
+                for (String clientId : source.cluster.clientIds()) {
+                    Node owner = nodes.get(next.owner(clientId));
+                    if (owner == source) {
+                        continue;
+                    }
+                    Move move = new Move(clientId, source, owner, source.cluster.copyStack(clientId));
+                    if (move.copy.size() > 0) {
+                        owner.cluster.putStack(clientId, move.copy);
+                    }
+                    moves.add(move);
+                }
+            }
+        } catch (RemoteException e) {
+            if (next != ring) {
+                // Nothing routes to the copies yet: undo them, so giving up leaves no duplicates
+                for (Move move : moves) {
+                    try {
+                        move.owner.cluster.dropMove(move.clientId, move.copy.getMoveId());
+                    } catch (RemoteException undo) {
+                        e.addSuppressed(undo);
+                    }
+                }
+            }
+            throw e;
+        }
+
+        // 2. Route to the new owners, which hold the copies, and take the stacks off the old nodes
+        ring = next;
+        RemoteException failed = null;
+        for (Move move : moves) {
+            try {
+                int[] newer = move.source.cluster.takeStack(move.clientId, move.copy);
+                if (newer.length > 0) {
+                    // Pushed meanwhile by a call routed by the old ring
+                    move.owner.calc.pushValues(move.clientId, newer);
+                }
+            } catch (RemoteException e) {
+                // This stack stays on its old node for a retry; the others still move
+                if (failed == null) failed = e; else failed.addSuppressed(e);
+            }
+        }
+
+        for (Map.Entry<Long, Session> entry : sessions.entrySet()) {
+            Session session = entry.getValue();
+            Node owner = nodes.get(next.owner(session.clientId));
+            if (sources.contains(session.node) && owner != session.node) {
+                Session reopened = new Session(session.clientId, owner, owner.calc.openSession(session.clientId));
+                if (sessions.replace(entry.getKey(), session, reopened)) {
+                    session.node.calc.closeSession(session.handle);
+                } else {
+                    // Closed meanwhile
+                    owner.calc.closeSession(reopened.handle);
+                }
+            }
+        }
+        if (failed != null) {
+            throw failed;
+        }
+        return moves.size();
+    }
+
+    private Calculator node(String clientId) {
+        return nodes.get(ring.owner(clientId)).calc;
+    }
+
+    private Session session(long session) throws RemoteException {
+        Session s = sessions.get(session);
+        if (s == null) {
+            throw new RemoteException("Unknown or closed session " + session + " !!");
+        }
+        return s;
+    }
+
+    @Override
+    public void pushValue(String clientId, int val) throws RemoteException {
+        node(clientId).pushValue(clientId, val);
+    }
+
+    @Override
+    public void pushValues(String clientId, int[] values) throws RemoteException {
+        node(clientId).pushValues(clientId, values);
+    }
+
+    @Override
+    public void pushOperation(String clientId, String operator) throws RemoteException {
+        node(clientId).pushOperation(clientId, operator);
+    }
+
+    @Override
+    public int resolveOperator(String operator) throws RemoteException {
+        int opcode = -1;
+        for (Node node : nodes.values()) {
+            int resolved = node.calc.resolveOperator(operator);
+            if (opcode >= 0 && resolved != opcode) {
+                throw new RemoteException("( " + operator + ") has different opcodes on the cluster nodes !!");
+            }
+            opcode = resolved;
+        }
+        return opcode;
+    }
+
+    @Override
+    public void pushOperation(String clientId, int opcode) throws RemoteException {
+        node(clientId).pushOperation(clientId, opcode);
+    }
+
+    @Override
+    public long popOperationLong(String clientId, String operator) throws RemoteException {
+        return node(clientId).popOperationLong(clientId, operator);
+    }
+
+    @Override
+    public BigInteger popOperationBig(String clientId, String operator) throws RemoteException {
+        return node(clientId).popOperationBig(clientId, operator);
+    }
+
+    @Override
+    public long peekAggregate(String clientId, String operator) throws RemoteException {
+        return node(clientId).peekAggregate(clientId, operator);
+    }
+
+    @Override
+    public int pop(String clientId) throws RemoteException {
+        return node(clientId).pop(clientId);
+    }
+
+    @Override
+    public int awaitPop(String clientId, long timeoutMillis) throws RemoteException, PopTimeoutException {
+        return node(clientId).awaitPop(clientId, timeoutMillis);
+    }
+
+    @Override
+    public boolean isEmpty(String clientId) throws RemoteException {
+        return node(clientId).isEmpty(clientId);
+    }
+
+    @Override
+    public int size(String clientId) throws RemoteException {
+        return node(clientId).size(clientId);
+    }
+
+    @Override
+    public int delayPop(String clientId, int millis) throws RemoteException {
+        return node(clientId).delayPop(clientId, millis);
+    }
+
+    @Override
+    public void delayPopAsync(String clientId, int millis, PopCallback callback) throws RemoteException {
+        node(clientId).delayPopAsync(clientId, millis, callback);
+    }
+
+    @Override
+    public ScriptResult executeScript(String clientId, List<Command> script) throws RemoteException {
+        return node(clientId).executeScript(clientId, script);
+    }
+
+    // Shared stacks are spread over the nodes by name, like clientIds
+    @Override
+    public void pushShared(String stackName, int val) throws RemoteException {
+        node(stackName).pushShared(stackName, val);
+    }
+
+    @Override
+    public int popShared(String stackName) throws RemoteException {
+        return node(stackName).popShared(stackName);
+    }
+
+    @Override
+    public boolean isSharedEmpty(String stackName) throws RemoteException {
+        return node(stackName).isSharedEmpty(stackName);
+    }
+
+    @Override
+    public long beginReduce(String clientId, String operator) throws RemoteException {
+        Node node = nodes.get(ring.owner(clientId));
+        long stream = nextReduceStream.getAndIncrement();
+        reduceStreams.put(stream, new Session(clientId, node, node.calc.beginReduce(clientId, operator)));
+        return stream;
+    }
+
+    @Override
+    public void reduceChunk(long stream, int[] values) throws RemoteException {
+        Session s = reduceStream(stream);
+        s.node.calc.reduceChunk(s.handle, values);
+    }
+
+    @Override
+    public void endReduce(long stream) throws RemoteException {
+        Session s = reduceStream(stream);
+        Node owner = nodes.get(ring.owner(s.clientId));
+        if (owner == s.node) {
+            s.node.calc.endReduce(s.handle);
+            reduceStreams.remove(stream);
+            return;
+        }
+        long result = endReduceLong(stream);
+        if (result != (int) result) {
+            throw new RemoteException("Client " + s.clientId + ": Streamed result " + result + " does not fit in an int !!");
+        }
+        owner.calc.pushValue(s.clientId, (int) result);
+    }
+
+    @Override
+    public long endReduceLong(long stream) throws RemoteException {
+        Session s = reduceStream(stream);
+        try {
+            return s.node.calc.endReduceLong(s.handle);
+        } finally {
+            reduceStreams.remove(stream);
+        }
+    }
+
+    private Session reduceStream(long stream) throws RemoteException {
+        Session s = reduceStreams.get(stream);
+        if (s == null) {
+            throw new RemoteException("Reduce stream " + stream + " is not open !!");
+        }
+        return s;
+    }
+
+    @Override
+    public long openSession(String clientId) throws RemoteException {
+        Node node = nodes.get(ring.owner(clientId));
+        long session = nextSession.getAndIncrement();
+        sessions.put(session, new Session(clientId, node, node.calc.openSession(clientId)));
+        return session;
+    }
+
+    @Override
+    public void closeSession(long session) throws RemoteException {
+        Session s = sessions.remove(session);
+        if (s != null) {
+            s.node.calc.closeSession(s.handle);
+        }
+    }
+
+    @Override
+    public void pushValue(long session, int val) throws RemoteException {
+        Session s = session(session);
+        s.node.calc.pushValue(s.handle, val);
+    }
+
+    @Override
+    public void pushOperation(long session, int opcode) throws RemoteException {
+        Session s = session(session);
+        s.node.calc.pushOperation(s.handle, opcode);
+    }
+
+    @Override
+    public int pop(long session) throws RemoteException {
+        Session s = session(session);
+        return s.node.calc.pop(s.handle);
+    }
+
+    @Override
+    public boolean isEmpty(long session) throws RemoteException {
+        Session s = session(session);
+        return s.node.calc.isEmpty(s.handle);
+    }
+
+    @Override
+    public int delayPop(long session, int millis) throws RemoteException {
+        Session s = session(session);
+        return s.node.calc.delayPop(s.handle, millis);
+    }
+}
@@ -0,0 +1,57 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/*
+  ClusterNode is the remote interface a calculator server offers to ClusterCalculator for
+  moving client stacks between nodes when the cluster changes. It is a separate remote object
+  (ClusterNodeImplementation) bound as "ClusterNode", and only on servers started with
+  calculator.clusterNode=on: the stub bound as "Calculator" cannot list or move other clients' stacks.
+
+  A move is copyStack on the old node, putStack on the new one, then takeStack on the old one.
+  Every step can be repeated with the same StackMove without duplicating or losing values.
+ */
+public interface ClusterNode extends Remote {
+    /*
+      The clientIds that have a stack on this node.
+      @return the clientIds, in no particular order
+      @throws RemoteException if remote communication fails
+     */
+    List<String> clientIds() throws RemoteException;
+
+    /*
+      The values of the stack of clientId, leaving the stack unchanged, under a move id that
+      stays the same for every copy until the stack is taken.
+      @return the move (id 0 and no values if the client has no stack here)
+      @throws RemoteException if remote communication fails
+     */
+    StackMove copyStack(String clientId) throws RemoteException;
+
+    /*
+      Remove the stack of clientId from this node, if it still starts with the values of move.
+      @return the values pushed on top of them since the copy, bottom to top (often none)
+      @throws RemoteException if remote communication fails, or the stack was popped, changed
+              or dropped since the copy (it is then left here unchanged)
+     */
+    int[] takeStack(String clientId, StackMove move) throws RemoteException;
+
+    /*
+      Add the values of move to the stack of clientId, below any values it already has here
+      (those were pushed after the move started, so they stay on top). Putting the same move
+      again replaces the values it put before.
+      void no return value
+      @throws RemoteException if remote communication fails, move is null, the maxStackDepth
+              limit would be exceeded, or values put by this move were popped meanwhile
+              (the stack is then left unchanged)
+     */
+    void putStack(String clientId, StackMove move) throws RemoteException;
+
+    /*
+      Undo putStack of a move that will not be completed: remove the values it put, leaving any
+      values pushed on top of them. Does nothing if the last move put for clientId has another id.
+      void no return value
+      @throws RemoteException if remote communication fails, or values put by this move were
+              popped meanwhile
+     */
+    void dropMove(String clientId, long moveId) throws RemoteException;
+}
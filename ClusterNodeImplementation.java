@@ -0,0 +1,50 @@
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+
+/*
+  ClusterNodeImplementation exports the ClusterNode operations of a CalculatorImplementation as
+  a remote object of its own, bound as "ClusterNode" next to "Calculator" only when
+  calculator.clusterNode is on. Listing every clientId and taking or replacing their stacks are
+  administrative operations: on the public Calculator stub any client could reach the stacks of
+  all others, so a server that is not a cluster node does not offer them at all.
+
+  Special cases:
+    - Exported like the calculator (exportPort and socket factories of the config), so one
+      firewall rule covers both; keep the registry port of cluster nodes reachable only from
+      hosts that run ClusterCalculator.
+ */
+public class ClusterNodeImplementation extends UnicastRemoteObject implements ClusterNode {
+
+    private final CalculatorImplementation calc;
+
+    public ClusterNodeImplementation(CalculatorImplementation calc, CalculatorConfig config) throws RemoteException {
+        super(config.getExportPort(), TunedSocketFactory.forConfig(config), TunedSocketFactory.forConfig(config));
+        this.calc = calc;
+    }
+
+    @Override
+    public List<String> clientIds() throws RemoteException {
+        return calc.clientIds();
+    }
+
+    @Override
+    public StackMove copyStack(String clientId) throws RemoteException {
+        return calc.copyStack(clientId);
+    }
+
+    @Override
+    public int[] takeStack(String clientId, StackMove move) throws RemoteException {
+        return calc.takeStack(clientId, move);
+    }
+
+    @Override
+    public void putStack(String clientId, StackMove move) throws RemoteException {
+        calc.putStack(clientId, move);
+    }
+
+    @Override
+    public void dropMove(String clientId, long moveId) throws RemoteException {
+        calc.dropMove(clientId, moveId);
+    }
+}
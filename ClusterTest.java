@@ -0,0 +1,163 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class ClusterTest {
+    /*
+      Test of ClusterCalculator against three calculator server JVMs started on this host
+      (LocalCluster), plus a fourth that joins and then leaves.
+
+      Steps:
+        1. 600 clients pushed through the proxy: each stack is only on the node owning its
+           clientId, and every node owns between 20% and 47% of them.
+        2. A fourth node joins: about a quarter of the stacks move to it, all values are kept
+           in order, and nothing moves between the old nodes.
+        3. A session opened through the proxy keeps working across the join.
+        4. A fifth node whose depth limit rejects every moved stack joins: addNode fails, the ring
+           is unchanged, the node holds no copies and every stack is still whole on its owner;
+           the node then leaves again.
+        5. The fourth node leaves: its stacks move back and all values are kept.
+        6. The move steps on two in-process calculators: putting the same move twice, as a
+           retry after a failed take does, keeps one copy; a pop on the old node after the copy
+           makes the take fail with the stack left in place; dropMove undoes a put.
+
+      Outputs:
+        - PASS/FAIL per step.
+
+      Special cases:
+        - The node JVMs are killed at the end, also when a step throws.
+        - The log of the in-process calculators is off unless -Dcalculator.log is given.
+     */
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("calculator.log") == null) {
+            System.setProperty("calculator.log", "off");
+        }
+        int clients = 600;
+        String prefix = "ClusterTest-" + UUID.randomUUID() + "-";
+        System.out.println("Cluster test (" + clients + " clients)");
+        try (LocalCluster cluster = new LocalCluster(List.of())) {
+            for (int i = 0; i < 3; i++) cluster.start();
+            ClusterCalculator calc = new ClusterCalculator(cluster.nodes());
+            Map<String, Calculator> direct = new HashMap<>();
+            for (String node : cluster.nodes()) direct.put(node, new ClusterCalculator(List.of(node)));
+
+            // 1. Routing
+            for (int i = 0; i < clients; i++) {
+                calc.pushValues(prefix + i, new int[] {i, i + 1, i + 2});
+            }
+            Map<String, Integer> owned = new HashMap<>();
+            boolean routed = true;
+            for (int i = 0; i < clients; i++) {
+                String owner = calc.ownerOf(prefix + i);
+                owned.merge(owner, 1, Integer::sum);
+                for (Map.Entry<String, Calculator> node : direct.entrySet()) {
+                    routed &= node.getValue().size(prefix + i) == (node.getKey().equals(owner) ? 3 : 0);
+                }
+            }
+            boolean balanced = owned.size() == 3;
+            for (int count : owned.values()) balanced &= count >= clients * 20 / 100 && count <= clients * 47 / 100;
+            System.out.println("1. Stacks on their owner: " + (routed ? "PASS" : "FAIL")
+                    + ", shards balanced " + owned.values() + ": " + (balanced ? "PASS" : "FAIL"));
+
+            // 2. Join
+            List<String> before = new ArrayList<>();
+            for (int i = 0; i < clients; i++) before.add(calc.ownerOf(prefix + i));
+            long session = calc.openSession(prefix + "session");
+            calc.pushValue(session, 41);
+            String joined = cluster.start();
+            int moved = calc.addNode(joined);
+            direct.put(joined, new ClusterCalculator(List.of(joined)));
+            boolean onlyToNew = true;
+            int movedCount = 0;
+            for (int i = 0; i < clients; i++) {
+                String owner = calc.ownerOf(prefix + i);
+                if (!owner.equals(before.get(i))) {
+                    movedCount++;
+                    onlyToNew &= owner.equals(joined);
+                }
+                onlyToNew &= direct.get(owner).size(prefix + i) == 3;
+            }
+            boolean quarter = moved >= movedCount && movedCount >= clients * 15 / 100 && movedCount <= clients * 35 / 100;
+            System.out.println("2. Join moved " + movedCount + " stacks, all to the new node: " + (onlyToNew ? "PASS" : "FAIL")
+                    + ", about a quarter: " + (quarter ? "PASS" : "FAIL"));
+
+            // 3. Session across the join
+            calc.pushValue(session, 1);
+            calc.pushOperation(session, calc.resolveOperator("sum"));
+            boolean sessionKept = calc.pop(session) == 42 && calc.isEmpty(session);
+            calc.closeSession(session);
+            System.out.println("3. Session kept across the join: " + (sessionKept ? "PASS" : "FAIL"));
+
+            // 4. Rejected join
+            try (LocalCluster limited = new LocalCluster(List.of("-Dcalculator.maxStackDepth=2"))) {
+                String full = limited.start();
+                List<String> owners = new ArrayList<>();
+                for (int i = 0; i < clients; i++) owners.add(calc.ownerOf(prefix + i));
+                boolean rejected = false;
+                try {
+                    calc.addNode(full);
+                } catch (RemoteException e) {
+                    rejected = true;
+                }
+                boolean whole = true;
+                Calculator fullNode = new ClusterCalculator(List.of(full));
+                for (int i = 0; i < clients; i++) {
+                    whole &= direct.get(owners.get(i)).size(prefix + i) == 3
+                            && calc.ownerOf(prefix + i).equals(owners.get(i)) && fullNode.size(prefix + i) == 0;
+                }
+                calc.removeNode(full);
+                for (int i = 0; i < clients; i++) {
+                    whole &= calc.ownerOf(prefix + i).equals(owners.get(i)) && calc.size(prefix + i) == 3;
+                }
+                System.out.println("4. Rejected join failed: " + (rejected ? "PASS" : "FAIL")
+                        + ", every stack kept whole: " + (whole ? "PASS" : "FAIL"));
+            }
+
+            // 5. Leave
+            calc.removeNode(joined);
+            boolean kept = true;
+            for (int i = 0; i < clients; i++) {
+                String clientId = prefix + i;
+                kept &= calc.ownerOf(clientId).equals(before.get(i));
+                kept &= calc.pop(clientId) == i + 2 && calc.pop(clientId) == i + 1 && calc.pop(clientId) == i
+                        && calc.isEmpty(clientId);
+            }
+            kept &= direct.get(joined).size(prefix + 0) == 0;
+            System.out.println("5. Leave kept every value in order: " + (kept ? "PASS" : "FAIL"));
+        }
+
+        // 6. Move steps
+        CalculatorImplementation from = new CalculatorImplementation(new CalculatorConfig().setMetricsEnabled(false));
+        CalculatorImplementation to = new CalculatorImplementation(new CalculatorConfig().setMetricsEnabled(false));
+        try {
+            from.pushValues("m", new int[] {1, 2, 3});
+            StackMove move = from.copyStack("m");
+            to.putStack("m", move);
+            to.pushValue("m", 9);
+            // A retry copies again under the same id and replaces the first copy
+            StackMove again = from.copyStack("m");
+            to.putStack("m", again);
+            boolean once = again.getMoveId() == move.getMoveId() && to.size("m") == 4
+                    && to.pop("m") == 9 && to.size("m") == 3;
+
+            from.pop("m");
+            boolean loud = false;
+            try {
+                from.takeStack("m", again);
+            } catch (RemoteException e) {
+                loud = from.size("m") == 2;
+            }
+            to.dropMove("m", again.getMoveId());
+            boolean undone = to.getClientCount() == 0;
+            System.out.println("6. Repeated put kept one copy: " + (once ? "PASS" : "FAIL")
+                    + ", pop during the move failed the take: " + (loud ? "PASS" : "FAIL")
+                    + ", dropMove undid the put: " + (undone ? "PASS" : "FAIL"));
+        } finally {
+            from.shutdown();
+            to.shutdown();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.Serializable;
+import java.util.Objects;
+
+/*
+  Command is one step of a script sent to Calculator.executeScript.
+  Each command mirrors one of the single-call remote methods
+  (pushValue, pushOperation, pop, isEmpty) and is created through the static factories below.
+ */
+public final class Command implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // The kind of step, matching the remote method it stands for
+    public enum Type { PUSH, OPERATION, POP, IS_EMPTY }
+
+    private static final Command POP = new Command(Type.POP, 0, null);
+    private static final Command IS_EMPTY = new Command(Type.IS_EMPTY, 0, null);
+
+    private final Type type;
+    private final int value;
+    private final String operator;
+
+    private Command(Type type, int value, String operator) {
+        this.type = type;
+        this.value = value;
+        this.operator = operator;
+    }
+
+    // Same as pushValue(clientId, val)
+    public static Command push(int val) {
+        return new Command(Type.PUSH, val, null);
+    }
+
+    // Same as pushOperation(clientId, operator)
+    public static Command operation(String operator) {
+        return new Command(Type.OPERATION, 0, Objects.requireNonNull(operator, "operator"));
+    }
+
+    // Same as pop(clientId); the popped value is added to the script results
+    public static Command pop() {
+        return POP;
+    }
+
+    // Same as isEmpty(clientId); the answer is added to the script results as 1 (empty) or 0
+    public static Command isEmpty() {
+        return IS_EMPTY;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public String getOperator() {
+        return operator;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case PUSH: return "push(" + value + ")";
+            case OPERATION: return "operation(" + operator + ")";
+            case POP: return "pop()";
+            default: return "isEmpty()";
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+  ConsistentHashRing assigns clientIds to cluster nodes (named "host:port") by consistent hashing.
+  Each node is placed on a 64-bit ring at VIRTUAL_NODES points; a clientId belongs to the node
+  of the first point at or after its own hash, wrapping around. Adding a node therefore only
+  moves the clientIds that now fall on its points, about 1/n of them, all from other nodes to it.
+
+  The hash (FNV-1a over the chars, then a 64-bit finalizer) depends only on the strings, so every
+  client and server JVM computes the same owner for a clientId.
+
+  Special cases:
+    - Immutable: withNode and withoutNode return a new ring, so lookups need no lock.
+    - owner() on an empty ring throws IllegalStateException.
+ */
+final class ConsistentHashRing {
+
+    // Points per node; enough to keep shard sizes within a few percent of each other
+    static final int VIRTUAL_NODES = 160;
+
+    private final List<String> nodes;
+    // Sorted ring positions and the node owning each
+    private final long[] points;
+    private final String[] owners;
+
+    ConsistentHashRing(List<String> nodes) {
+        List<String> distinct = new ArrayList<>();
+        for (String node : nodes) {
+            if (!distinct.contains(node)) distinct.add(node);
+        }
+        this.nodes = Collections.unmodifiableList(distinct);
+        long[] keys = new long[distinct.size() * VIRTUAL_NODES];
+        String[] keyOwners = new String[keys.length];
+        int k = 0;
+        for (String node : distinct) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                keys[k] = hash(node + "#" + i);
+                keyOwners[k] = node;
+                k++;
+            }
+        }
+        // Sort the positions and carry their owners along
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+        points = new long[keys.length];
+        owners = new String[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = keys[order[i]];
+            owners[i] = keyOwners[order[i]];
+        }
+    }
+
+    // Nodes of the ring in the order they were added
+    List<String> nodes() {
+        return nodes;
+    }
+
+    // The node owning clientId
+    String owner(String clientId) {
+        if (points.length == 0) {
+            throw new IllegalStateException("No nodes in the cluster");
+        }
+        int i = Arrays.binarySearch(points, hash(clientId));
+        if (i < 0) {
+            i = -i - 1;
+            if (i == points.length) i = 0;
+        }
+        return owners[i];
+    }
+
+    ConsistentHashRing withNode(String node) {
+        List<String> grown = new ArrayList<>(nodes);
+        grown.add(node);
+        return new ConsistentHashRing(grown);
+    }
+
+    ConsistentHashRing withoutNode(String node) {
+        List<String> shrunk = new ArrayList<>(nodes);
+        shrunk.remove(node);
+        return new ConsistentHashRing(shrunk);
+    }
+
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        // FNV alone clusters similar keys ("node#1", "node#2"); spread them over the ring
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
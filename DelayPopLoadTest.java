@@ -0,0 +1,235 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DelayPopLoadTest {
+    /*
+      Load test showing that delayPopAsync keeps the server's thread count flat
+      while the number of concurrently waiting delayPops climbs to 10000.
+
+      Steps:
+        - Starts its own registry and CalculatorImplementation in this JVM (no separate server needed),
+          so the JVM thread count covers both the server and the client side.
+        - For 100, 1000 and 10000 concurrent waits: pushes that many values, fires that many
+          delayPopAsync(2000ms) calls from a few client threads, and samples the thread count
+          until every callback has arrived.
+        - For contrast, runs 200 blocking delayPop calls, which need one client thread
+          and one server thread each.
+        - With 64 callbacks of two clients that never return, on a second calculator with a 200 ms
+          idle TTL: every delayPopAsync still pops on time and idle stacks are still evicted, because
+          callbacks are delivered off the scheduler, and a third client's result still arrives within
+          500 ms, because each client's callbacks hold at most one callback thread.
+
+      Inputs:
+        - args[0] (optional): registry port, default 1100 (so it can run next to CalculatorServer)
+
+      Outputs:
+        - Peak thread count per level, a PASS/FAIL per level for value correctness,
+          a PASS/FAIL for the thread count staying flat, and a PASS/FAIL for stuck callbacks.
+     */
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    // Client-side callback counting and summing the popped values
+    static class CountingCallback extends UnicastRemoteObject implements PopCallback {
+        private static final long serialVersionUID = 1L;
+        private final CountDownLatch done;
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        CountingCallback(int expected) throws RemoteException {
+            super();
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void popped(int val) {
+            sum.addAndGet(val);
+            done.countDown();
+        }
+
+        @Override
+        public void failed(String message) {
+            failures.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 1100;
+        // Keep the server log out of the report unless asked for
+        if (System.getProperty("calculator.log") == null) {
+            System.setProperty("calculator.log", "off");
+        }
+        Registry registry = LocateRegistry.createRegistry(port);
+        CalculatorImplementation impl = new CalculatorImplementation();
+        registry.rebind("Calculator", impl);
+        Calculator calc = (Calculator) LocateRegistry.getRegistry("localhost", port).lookup("Calculator");
+
+        System.out.println("delayPopAsync load test (delay 2000 ms)");
+        System.out.printf("%-26s %12s %12s %10s%n", "waiting delayPops", "peak threads", "elapsed ms", "result");
+        int firstPeak = 0, lastPeak = 0;
+        for (int level : new int[] {100, 1000, 10000}) {
+            int peak = runAsync(calc, level);
+            if (firstPeak == 0) firstPeak = peak;
+            lastPeak = peak;
+        }
+        int blockingPeak = runBlocking(calc, 200);
+
+        boolean flat = lastPeak - firstPeak < 32;
+        System.out.println("\nThread count flat from 100 to 10000 async waits: " + (flat ? "PASS" : "FAIL")
+                + " (" + firstPeak + " -> " + lastPeak + ", blocking x200 peaked at " + blockingPeak + ")");
+        System.out.println("Scheduler and other clients keep running with 64 stuck callbacks: " + (runStuck(64) ? "PASS" : "FAIL"));
+
+        impl.shutdown();
+        UnicastRemoteObject.unexportObject(registry, true);
+        System.exit(0);
+    }
+
+    // Fire count delayPopAsync calls and wait for all callbacks; returns the peak thread count
+    private static int runAsync(Calculator calc, int count) throws Exception {
+        String clientId = "DelayPopLoadTest-" + UUID.randomUUID();
+        int[] values = new int[count];
+        long expectedSum = 0;
+        for (int i = 0; i < count; i++) {
+            values[i] = i;
+            expectedSum += i;
+        }
+        calc.pushValues(clientId, values);
+        CountingCallback callback = new CountingCallback(count);
+
+        Sampler sampler = new Sampler();
+        sampler.start();
+        long start = System.currentTimeMillis();
+        Thread[] senders = new Thread[4];
+        for (int t = 0; t < senders.length; t++) {
+            int first = t;
+            senders[t] = new Thread(() -> {
+                try {
+                    for (int i = first; i < count; i += senders.length) {
+                        calc.delayPopAsync(clientId, 2000, callback);
+                    }
+                } catch (RemoteException e) {
+                    System.out.println("   delayPopAsync error: " + e.getMessage());
+                }
+            });
+            senders[t].start();
+        }
+        for (Thread t : senders) t.join();
+        boolean arrived = callback.done.await(60, TimeUnit.SECONDS);
+        long elapsed = System.currentTimeMillis() - start;
+        int peak = sampler.finish();
+        UnicastRemoteObject.unexportObject(callback, true);
+
+        boolean pass = arrived && callback.failures.get() == 0 && callback.sum.get() == expectedSum
+                && calc.isEmpty(clientId) && elapsed >= 2000;
+        System.out.printf("%-26s %12d %12d %10s%n", "async x" + count, peak, elapsed, pass ? "PASS" : "FAIL");
+        return peak;
+    }
+
+    // Fire count delayPopAsync calls for two clients whose callbacks block; true if pops and eviction
+    // go on meanwhile and another client's result still arrives on time
+    private static boolean runStuck(int count) throws Exception {
+        CalculatorImplementation evicting = new CalculatorImplementation(new CalculatorConfig()
+                .setIdleTtlMillis(200).setSweepIntervalMillis(50));
+        CountDownLatch release = new CountDownLatch(1);
+        PopCallback stuck = new PopCallback() {
+            @Override
+            public void popped(int val) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void failed(String message) {
+                popped(0);
+            }
+        };
+        CountingCallback other = new CountingCallback(1);
+        try {
+            String[] stuckIds = {"DelayPopLoadTest-" + UUID.randomUUID(), "DelayPopLoadTest-" + UUID.randomUUID()};
+            for (String clientId : stuckIds) {
+                evicting.pushValues(clientId, new int[count / 2]);
+            }
+            for (int i = 0; i < count; i++) {
+                evicting.delayPopAsync(stuckIds[i % 2], 0, stuck);
+            }
+            Thread.sleep(100);
+            String otherId = "DelayPopLoadTest-" + UUID.randomUUID();
+            evicting.pushValue(otherId, 7);
+            evicting.delayPopAsync(otherId, 0, other);
+            boolean onTime = other.done.await(500, TimeUnit.MILLISECONDS) && other.sum.get() == 7;
+            evicting.pushValue(otherId + "-idle", 1);
+            Thread.sleep(1000);
+            return onTime && evicting.getClientCount() == 0;
+        } finally {
+            release.countDown();
+            UnicastRemoteObject.unexportObject(other, true);
+            evicting.shutdown();
+        }
+    }
+
+    // Run count blocking delayPop calls, one client thread each; returns the peak thread count
+    private static int runBlocking(Calculator calc, int count) throws Exception {
+        String clientId = "DelayPopLoadTest-" + UUID.randomUUID();
+        int[] values = new int[count];
+        calc.pushValues(clientId, values);
+        Sampler sampler = new Sampler();
+        sampler.start();
+        long start = System.currentTimeMillis();
+        Thread[] clients = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            clients[i] = new Thread(() -> {
+                try {
+                    calc.delayPop(clientId, 2000);
+                } catch (RemoteException e) {
+                    System.out.println("   delayPop error: " + e.getMessage());
+                }
+            });
+            clients[i].start();
+        }
+        for (Thread t : clients) t.join();
+        long elapsed = System.currentTimeMillis() - start;
+        int peak = sampler.finish();
+        System.out.printf("%-26s %12d %12d %10s%n", "blocking x" + count, peak, elapsed,
+                calc.isEmpty(clientId) ? "PASS" : "FAIL");
+        return peak;
+    }
+
+    // Samples the JVM thread count every 10 ms until finish() is called
+    static class Sampler extends Thread {
+        private volatile boolean running = true;
+        private volatile int peak;
+
+        Sampler() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                peak = Math.max(peak, THREADS.getThreadCount());
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        int finish() throws InterruptedException {
+            running = false;
+            join();
+            return Math.max(peak, THREADS.getThreadCount());
+        }
+    }
+}
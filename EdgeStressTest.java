@@ -80,9 +80,11 @@ public class EdgeStressTest {
                 threads[i] = new Thread(() -> {
                     String threadId = clientId + "-T" + t;
                     try {
-                        for (int j = 0; j < 100; j++) {
-                            calc.pushValue(threadId, j);
+                        int[] values = new int[100];
+                        for (int j = 0; j < values.length; j++) {
+                            values[j] = j;
                         }
+                        calc.pushValues(threadId, values);
                         calc.pushOperation(threadId, "max");
                         int max = calc.pop(threadId);
                         System.out.println("   " + threadId + ": " + (max == 99 ? "PASS" : "FAIL") + " (max=" + max + ")");
@@ -103,6 +105,34 @@ public class EdgeStressTest {
             }
             System.out.println("Stress test completed.\n");
 
+            // 8. Bulk push stress (single pushValues call)
+            System.out.println("8. Bulk push stress test (100000 values in one call)");
+            int[] bulk = new int[100000];
+            for (int i = 0; i < bulk.length; i++) {
+                bulk[i] = i;
+            }
+            start = System.currentTimeMillis();
+            calc.pushValues(clientId, bulk);
+            calc.pushOperation(clientId, "max");
+            int bulkMax = calc.pop(clientId);
+            elapsed = System.currentTimeMillis() - start;
+            System.out.println("   Bulk push max: " + (bulkMax == bulk.length - 1 && calc.isEmpty(clientId) ? "PASS" : "FAIL") +
+                               " (max=" + bulkMax + ", elapsed=" + elapsed + "ms)");
+            System.out.println();
+
+            // 9. LCM overflow detection and widened results
+            System.out.println("9. LCM overflow and widened results");
+            calc.pushValues(clientId, new int[] {100000, 99999});
+            try {
+                calc.pushOperation(clientId, "lcm");
+                System.out.println("   LCM int overflow: FAIL (expected exception)");
+            } catch (RemoteException e) {
+                System.out.println("   LCM int overflow: PASS (caught expected exception)");
+            }
+            long lcmLong = calc.popOperationLong(clientId, "lcm");
+            System.out.println("   LCM long result: " + (lcmLong == 9999900000L ? "PASS" : "FAIL") + " (value=" + lcmLong + ")");
+            System.out.println();
+
         } catch (Exception e) {
             System.err.println("Stress Test failed: " + e.getMessage());
             e.printStackTrace();
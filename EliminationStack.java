@@ -0,0 +1,163 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.EmptyStackException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+  EliminationStack is a lock-free stack of ints shared by many threads: the named shared stacks
+  of CalculatorImplementation (pushShared, popShared, isSharedEmpty).
+
+  Treiber stack: the values are an immutable linked list and the top is swapped with one CAS
+  per push or pop, so no thread ever waits for another to release a lock.
+
+  Elimination backoff: a push or pop whose CAS on the top fails (another thread changed it
+  meanwhile) does not retry straight away. A push offers its value in a random slot of a small
+  elimination array and waits briefly; a pop looks in a random slot and takes an offer it finds.
+  Such a pair cancels out (the push immediately followed by the pop) without touching the top,
+  so under heavy contention the pairs spread over the slots instead of all fighting for one word.
+
+  Special cases:
+    - Each node stores the depth below and including it, so size() is exact and O(1).
+    - pop() on an empty stack throws EmptyStackException, like IntStack.
+    - A push waits at most SPINS iterations in a slot before withdrawing its offer; a pop
+      never waits, and only looks for offers after losing a race for the top.
+    - retireIfEmpty() swaps an empty top for the RETIRED marker, so the stack can be dropped
+      from its map without a lock: a push that finds the marker returns false and the caller
+      looks the name up again, and the stack reads as empty from then on.
+ */
+final class EliminationStack {
+
+    private static final int SPINS = 64;
+
+    private static final class Node {
+        final int value;
+        final Node next;
+        final int depth;
+
+        Node(int value, Node next) {
+            this.value = value;
+            this.next = next;
+            this.depth = next == null ? 1 : next.depth + 1;
+        }
+    }
+
+    // A pushed value waiting in a slot; taken by a pop that swaps it out of the slot
+    private static final class Offer {
+        final int value;
+
+        Offer(int value) {
+            this.value = value;
+        }
+    }
+
+    private static final VarHandle TOP;
+
+    static {
+        try {
+            TOP = MethodHandles.lookup().findVarHandle(EliminationStack.class, "top", Node.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Top of a stack dropped by retireIfEmpty; never part of the values
+    private static final Node RETIRED = new Node(0, null);
+
+    private volatile Node top;
+    private final AtomicReferenceArray<Offer> slots;
+
+    EliminationStack() {
+        this(Math.max(2, Math.min(16, Runtime.getRuntime().availableProcessors())));
+    }
+
+    // slotCount: size of the elimination array, about the number of threads that contend at once
+    // (0 gives a plain Treiber stack that retries the top after every failed CAS)
+    EliminationStack(int slotCount) {
+        slots = new AtomicReferenceArray<>(slotCount);
+    }
+
+    // false, with nothing pushed, if the stack was retired
+    boolean push(int value) {
+        Node node = null;
+        for (;;) {
+            Node current = top;
+            if (current == RETIRED) {
+                return false;
+            }
+            if (node == null || node.next != current) {
+                node = new Node(value, current);
+            }
+            if (TOP.compareAndSet(this, current, node)) {
+                return true;
+            }
+            if (eliminatePush(value)) {
+                return true;
+            }
+        }
+    }
+
+    int pop() {
+        for (;;) {
+            Node current = top;
+            if (current == null || current == RETIRED) {
+                throw new EmptyStackException();
+            }
+            if (TOP.compareAndSet(this, current, current.next)) {
+                return current.value;
+            }
+            Offer offer = eliminatePop();
+            if (offer != null) {
+                return offer.value;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        Node current = top;
+        return current == null || current == RETIRED;
+    }
+
+    int size() {
+        Node current = top;
+        return current == null || current == RETIRED ? 0 : current.depth;
+    }
+
+    // Mark an empty stack as dropped; true if it is retired (now or before)
+    boolean retireIfEmpty() {
+        return TOP.compareAndSet(this, null, RETIRED) || top == RETIRED;
+    }
+
+    // Offer value in a random free slot; true if a pop took it
+    private boolean eliminatePush(int value) {
+        if (slots.length() == 0) {
+            return false;
+        }
+        int index = ThreadLocalRandom.current().nextInt(slots.length());
+        Offer offer = new Offer(value);
+        if (!slots.compareAndSet(index, null, offer)) {
+            return false;
+        }
+        for (int i = 0; i < SPINS; i++) {
+            if (slots.get(index) != offer) {
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+        // Withdraw; failing means a pop took the offer just now
+        return !slots.compareAndSet(index, offer, null);
+    }
+
+    // Take the offer in a random slot, if there is one
+    private Offer eliminatePop() {
+        if (slots.length() == 0) {
+            return null;
+        }
+        int index = ThreadLocalRandom.current().nextInt(slots.length());
+        Offer offer = slots.get(index);
+        if (offer != null && slots.compareAndSet(index, offer, null)) {
+            return offer;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,175 @@
+import java.rmi.RemoteException;
+import java.util.UUID;
+
+public class EvictionSoakTest {
+    /*
+      Soak test of idle-stack eviction and memory bounds, run in-process against
+      CalculatorImplementation (no RMI, no separate server needed).
+
+      Steps:
+        1. isEmpty/pop probes with millions of fresh clientIds must not create any stack.
+        2. Millions of distinct clientIds each push and pop once; with a 200 ms idle TTL
+           the sweeper must keep the client count and the used heap flat.
+        3. maxClients and maxStackDepth reject calls beyond the limits; 8 threads creating
+           clients, shared stacks and reduce streams at once stop at exactly maxClients of each.
+           Emptied shared stacks give their slots back to new names.
+        4. A session in use survives eviction sweeps; an idle one is closed with its stack,
+           except a pinned session (binary protocol), which only loses its values.
+
+      Inputs:
+        - args[0] (optional): number of distinct clientIds per phase, default 2000000
+
+      Outputs:
+        - Heap usage and client count at checkpoints, and PASS/FAIL per step.
+
+      Special cases:
+        - The server log is off unless -Dcalculator.log is given, to keep the output readable.
+     */
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        if (System.getProperty("calculator.log") == null) {
+            System.setProperty("calculator.log", "off");
+        }
+        System.out.println("Eviction soak test (" + clients + " clientIds per phase)");
+
+        CalculatorImplementation calc = new CalculatorImplementation(new CalculatorConfig()
+                .setIdleTtlMillis(200).setSweepIntervalMillis(50));
+        String prefix = "EvictionSoakTest-" + UUID.randomUUID() + "-";
+        try {
+            // 1. Read-only probes never allocate
+            for (int i = 0; i < clients; i++) {
+                String clientId = prefix + "probe-" + i;
+                calc.isEmpty(clientId);
+                try {
+                    calc.pop(clientId);
+                } catch (RemoteException expected) {
+                    // empty stack
+                }
+            }
+            System.out.println("1. Probes left " + calc.getClientCount() + " stacks: "
+                    + (calc.getClientCount() == 0 ? "PASS" : "FAIL"));
+
+            // 2. Push/pop churn with distinct clientIds, heap sampled at checkpoints
+            long firstHeap = 0, maxHeap = 0;
+            int maxClientsSeen = 0;
+            int checkpoint = Math.max(1, clients / 5);
+            for (int i = 0; i < clients; i++) {
+                String clientId = prefix + "churn-" + i;
+                calc.pushValue(clientId, i);
+                calc.pushValue(clientId, i + 1);
+                calc.pop(clientId);
+                if ((i + 1) % checkpoint == 0) {
+                    // Let the sweeper catch up with the idle stacks of this slice
+                    Thread.sleep(500);
+                    long heap = usedHeapAfterGc();
+                    if (firstHeap == 0) firstHeap = heap;
+                    maxHeap = Math.max(maxHeap, heap);
+                    maxClientsSeen = Math.max(maxClientsSeen, calc.getClientCount());
+                    System.out.printf("   after %,d clients: %,d live stacks, %,d evicted, heap %,d KB%n",
+                            i + 1, calc.getClientCount(), calc.getEvictedClientCount(), heap / 1024);
+                }
+            }
+            boolean flat = maxHeap < firstHeap + 16 * 1024 * 1024 && maxClientsSeen < checkpoint;
+            System.out.println("2. Heap flat across " + clients + " clientIds: " + (flat ? "PASS" : "FAIL")
+                    + " (first " + firstHeap / 1024 + " KB, max " + maxHeap / 1024 + " KB)");
+        } finally {
+            calc.shutdown();
+        }
+
+        // 3. Limits
+        CalculatorImplementation limited = new CalculatorImplementation(new CalculatorConfig()
+                .setMaxClients(2).setMaxStackDepth(3));
+        boolean clientLimit, depthLimit, sharedReuse;
+        try {
+            limited.pushValue(prefix + "a", 1);
+            limited.pushValue(prefix + "b", 1);
+            clientLimit = rejects(() -> limited.pushValue(prefix + "c", 1)) && limited.getRejectedClientCount() == 1;
+            limited.pushValues(prefix + "a", new int[] {2, 3});
+            depthLimit = rejects(() -> limited.pushValue(prefix + "a", 4))
+                    && rejects(() -> limited.pushValues(prefix + "b", new int[] {1, 2, 3}))
+                    && limited.pop(prefix + "a") == 3 && limited.getRejectedPushCount() == 2;
+            limited.pushShared(prefix + "s1", 1);
+            limited.pushShared(prefix + "s2", 2);
+            boolean full = rejects(() -> limited.pushShared(prefix + "s3", 3));
+            limited.popShared(prefix + "s1");
+            limited.pushShared(prefix + "s3", 3);
+            sharedReuse = full && limited.getSharedStackCount() == 2 && limited.popShared(prefix + "s3") == 3
+                    && limited.popShared(prefix + "s2") == 2 && limited.isSharedEmpty(prefix + "s1");
+        } finally {
+            limited.shutdown();
+        }
+        CalculatorImplementation raced = new CalculatorImplementation(new CalculatorConfig().setMaxClients(100));
+        boolean raceLimit;
+        try {
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                int thread = t;
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        String name = prefix + "race-" + thread + "-" + i;
+                        rejects(() -> raced.pushValue(name, 1));
+                        rejects(() -> raced.pushShared(name, 1));
+                        rejects(() -> raced.beginReduce(name, "sum"));
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) thread.join();
+            raceLimit = raced.getClientCount() == 100 && raced.getSharedStackCount() == 100
+                    && raced.getReduceStreamCount() == 100;
+        } finally {
+            raced.shutdown();
+        }
+        System.out.println("3. maxClients limit: " + (clientLimit ? "PASS" : "FAIL")
+                + ", maxStackDepth limit: " + (depthLimit ? "PASS" : "FAIL")
+                + ", emptied shared stacks reused: " + (sharedReuse ? "PASS" : "FAIL")
+                + ", limit under concurrent creation: " + (raceLimit ? "PASS" : "FAIL"));
+
+        // 4. Sessions and eviction
+        CalculatorImplementation sessions = new CalculatorImplementation(new CalculatorConfig()
+                .setIdleTtlMillis(200).setSweepIntervalMillis(50));
+        boolean used, idle, pinned;
+        try {
+            long active = sessions.openSession(prefix + "active");
+            used = true;
+            for (int i = 0; i < 10; i++) {
+                sessions.pushValue(active, i);
+                used &= sessions.pop(active) == i;
+                Thread.sleep(100);
+            }
+            long dormant = sessions.openSession(prefix + "dormant");
+            sessions.pushValue(dormant, 1);
+            long kept = sessions.openPinnedSession(prefix + "pinned");
+            sessions.pushValue(kept, 1);
+            Thread.sleep(600);
+            idle = rejects(() -> sessions.isEmpty(dormant)) && sessions.getClientCount() == 0;
+            sessions.pushValue(kept, 2);
+            pinned = sessions.pop(kept) == 2 && sessions.isEmpty(kept) && sessions.getSessionCount() == 1;
+        } finally {
+            sessions.shutdown();
+        }
+        System.out.println("4. Session kept while used: " + (used ? "PASS" : "FAIL")
+                + ", idle session closed: " + (idle ? "PASS" : "FAIL")
+                + ", pinned session kept: " + (pinned ? "PASS" : "FAIL"));
+    }
+
+    private interface RemoteCall {
+        void run() throws RemoteException;
+    }
+
+    // true if the call was rejected with a RemoteException
+    private static boolean rejects(RemoteCall call) {
+        try {
+            call.run();
+            return false;
+        } catch (RemoteException e) {
+            return true;
+        }
+    }
+
+    private static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,376 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.EmptyStackException;
+
+/*
+  IntStack is a growable last-in-first-out stack of primitive ints backed by an int[].
+  It replaces java.util.Stack<Integer> for the per-client stacks so pushes and pops
+  never box values.
+
+  Running aggregates: the stack keeps min(), max() and gcd() of all its values up to date,
+  in O(1) per push and pop, so reading them is O(1) at any depth.
+    - min and max: a stack of the positions of the values that set a new minimum (maximum)
+      when they were pushed. The top one is the current minimum; a pop that removes it
+      exposes the previous one. Usually a handful of entries, at most one per value.
+    - gcd: the positions where the running gcd from the bottom changed, with its new value.
+      After the first two values the gcd only changes to a proper divisor, so there are
+      at most about 33 entries.
+
+  Special cases:
+    - Capacity grows by half its size when full (amortized O(1) push).
+    - clear() drops a grown backing array and goes back to the initial capacity,
+      so a client that once pushed many values does not keep the memory.
+    - Not thread safe: callers guard each instance with synchronized(stack),
+      as CalculatorImplementation does. The one exception is depth(), which any
+      thread may call without the lock.
+    - OffHeapIntStack overrides every value method to keep the values off the heap;
+      it allocates none of the arrays below.
+ */
+public class IntStack {
+    static final int INITIAL_CAPACITY = 8;
+
+    // replaceWith keeps a backing array up to this size instead of reallocating it
+    private static final int RETAIN_CAPACITY = 64;
+
+    // Largest array size the JVM reliably allows
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private int[] data;
+    private int size;
+
+    // Positions in data of the values that set a new minimum / maximum, bottom to top
+    private int[] minAt;
+    private int minCount;
+    private int[] maxAt;
+    private int maxCount;
+
+    // Positions where the running gcd changed and its value from there on (as a long: the gcd
+    // of ints can be 2^31). The first entry is data[0] as pushed, like Reductions.gcdLong.
+    private int[] gcdAt;
+    private long[] gcdValue;
+    private int gcdCount;
+
+    // Copy of size published after every mutation, for lock-free readers of depth()
+    private volatile int depth;
+    private static final VarHandle DEPTH;
+
+    static {
+        try {
+            DEPTH = MethodHandles.lookup().findVarHandle(IntStack.class, "depth", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Bookkeeping for CalculatorImplementation, guarded by the stack's monitor like the values
+    long lastAccessMillis;  // last call that used this stack, for idle eviction (isEmpty/size also set it unlocked)
+    int waiters;            // awaitPop callers waiting on this stack; never evicted while > 0
+    boolean retired;        // dropped from the client map by eviction; holders must look the client up again
+    long lastLsn;           // LSN of the last write-ahead log record of this stack (see StackStore)
+    boolean holdDepth;      // set during executeScript: depth() keeps the size from before the script
+    long moveOutId;         // id of the move copying this stack to another node, 0 if none (StackMove)
+    long moveInId;          // id of the last move put into this stack, how many values it put at the
+    int moveInCount;        //   bottom and their Arrays.hashCode (putStack replaces them when the same
+    int moveInHash;         //   move comes again, if they are still there)
+
+    public IntStack() {
+        this(true);
+    }
+
+    // heapStorage false is for subclasses that store the values themselves: no backing arrays
+    IntStack(boolean heapStorage) {
+        if (heapStorage) {
+            allocate(INITIAL_CAPACITY);
+        }
+        lastAccessMillis = System.currentTimeMillis();
+    }
+
+    // Push one value on top of the stack
+    public void push(int val) {
+        if (size == data.length) {
+            grow(size + 1);
+        }
+        data[size] = val;
+        extendAggregates(size, size + 1);
+        size++;
+        publish();
+    }
+
+    // Push all values in array order, so the last element ends up on top
+    public void pushAll(int[] values) {
+        int newSize = size + values.length;
+        if (newSize < 0) {
+            throw new OutOfMemoryError("IntStack size overflow");
+        }
+        if (newSize > data.length) {
+            grow(newSize);
+        }
+        System.arraycopy(values, 0, data, size, values.length);
+        extendAggregates(size, newSize);
+        size = newSize;
+        publish();
+    }
+
+    /*
+      Remove and return the top value.
+      @throws EmptyStackException if the stack is empty
+     */
+    public int pop() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        int val = data[--size];
+        dropAggregates();
+        publish();
+        return val;
+    }
+
+    /*
+      Return the top value without removing it.
+      @throws EmptyStackException if the stack is empty
+     */
+    public int peek() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        return data[size - 1];
+    }
+
+    /*
+      Return the value at a position counted from the bottom of the stack (0 is the oldest value).
+      @throws IndexOutOfBoundsException if index is not in [0, size)
+     */
+    public int get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return data[index];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+      Number of values as of the last completed mutation, or as before them while holdDepth
+      is set. Safe to call without holding the stack's lock, and never blocks: pollers of
+      isEmpty and size do not contend with writers.
+     */
+    public int depth() {
+        return depth;
+    }
+
+    /*
+      Smallest value on the stack, in O(1).
+      @throws EmptyStackException if the stack is empty
+     */
+    public int min() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        return data[minAt[minCount - 1]];
+    }
+
+    /*
+      Largest value on the stack, in O(1).
+      @throws EmptyStackException if the stack is empty
+     */
+    public int max() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        return data[maxAt[maxCount - 1]];
+    }
+
+    /*
+      Greatest common divisor of the values on the stack, in O(1).
+      Same result as Reductions.gcdLong over the values: a single value is returned unchanged.
+      @throws EmptyStackException if the stack is empty
+     */
+    public long gcd() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        return gcdValue[gcdCount - 1];
+    }
+
+    // Remove all values and release a grown backing array
+    public void clear() {
+        size = 0;
+        minCount = 0;
+        maxCount = 0;
+        gcdCount = 0;
+        publish();
+        if (data.length > INITIAL_CAPACITY) {
+            data = new int[INITIAL_CAPACITY];
+        }
+        if (minAt.length > INITIAL_CAPACITY || maxAt.length > INITIAL_CAPACITY) {
+            allocateAggregates();
+        }
+    }
+
+    /*
+      Replace the whole contents with a single value in O(1).
+      Used after a reduction; a large backing array is released like in clear().
+     */
+    public void replaceWith(int val) {
+        if (data.length > RETAIN_CAPACITY) {
+            data = new int[INITIAL_CAPACITY];
+        }
+        if (minAt.length > RETAIN_CAPACITY || maxAt.length > RETAIN_CAPACITY) {
+            allocateAggregates();
+        }
+        data[0] = val;
+        minCount = 0;
+        maxCount = 0;
+        gcdCount = 0;
+        extendAggregates(0, 1);
+        size = 1;
+        publish();
+    }
+
+    /*
+      The backing array itself, holding the values from bottom to top in [0, size()).
+      Only valid until the next mutation; lets reductions walk the storage without copying.
+     */
+    int[] elements() {
+        return data;
+    }
+
+    // Copy of the values from bottom to top
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    /*
+      Make the current size visible to depth(). A release store is enough: readers only need
+      to see some recent completed mutation, and it avoids a full fence on every push and pop.
+     */
+    private void publish() {
+        publishDepth(size);
+    }
+
+    // publish() for subclasses that keep their own size
+    final void publishDepth(int size) {
+        if (!holdDepth) {
+            DEPTH.setRelease(this, size);
+        }
+    }
+
+    // End holdDepth and publish the size the held mutations left
+    void releaseDepth() {
+        holdDepth = false;
+        publishDepth(size());
+    }
+
+    // Grow the backing array to hold at least minCapacity values
+    private void grow(int minCapacity) {
+        if (minCapacity > MAX_CAPACITY) {
+            throw new OutOfMemoryError("IntStack capacity exceeded");
+        }
+        int newCapacity = data.length + (data.length >> 1) + 1;
+        if (newCapacity < minCapacity || newCapacity > MAX_CAPACITY) {
+            newCapacity = Math.max(minCapacity, Math.min(newCapacity, MAX_CAPACITY));
+        }
+        data = Arrays.copyOf(data, newCapacity);
+    }
+
+    private void allocate(int capacity) {
+        data = new int[capacity];
+        allocateAggregates();
+    }
+
+    private void allocateAggregates() {
+        minAt = new int[INITIAL_CAPACITY];
+        maxAt = new int[INITIAL_CAPACITY];
+        gcdAt = new int[INITIAL_CAPACITY];
+        gcdValue = new long[INITIAL_CAPACITY];
+    }
+
+    // Record the aggregates of the values at [from, to), just written to data
+    private void extendAggregates(int from, int to) {
+        int i = from;
+        if (i == 0) {
+            minAt[0] = 0;
+            maxAt[0] = 0;
+            minCount = 1;
+            maxCount = 1;
+            gcdAt[0] = 0;
+            gcdValue[0] = data[0];
+            gcdCount = 1;
+            i++;
+        }
+        if (i >= to) {
+            return;
+        }
+        int lo = data[minAt[minCount - 1]];
+        int hi = data[maxAt[maxCount - 1]];
+        long g = gcdValue[gcdCount - 1];
+        long magic = divisibilityMagic(g);
+        for (; i < to; i++) {
+            int val = data[i];
+            if (val < lo) {
+                lo = val;
+                minAt = append(minAt, minCount++, i);
+            }
+            if (val > hi) {
+                hi = val;
+                maxAt = append(maxAt, maxCount++, i);
+            }
+            // The running gcd only changes when it does not divide the new value (or it is the
+            // second value and the first was negative); that check is much cheaper than Stein's loop
+            if (g != 1 && (magic == 0 || Long.compareUnsigned(Math.abs((long) val) * magic, magic - 1) > 0)) {
+                long next = Reductions.gcd(g, val);
+                if (next != g) {
+                    g = next;
+                    magic = divisibilityMagic(g);
+                    gcdAt = append(gcdAt, gcdCount, i);
+                    if (gcdCount == gcdValue.length) {
+                        gcdValue = Arrays.copyOf(gcdValue, gcdCount * 2);
+                    }
+                    gcdValue[gcdCount++] = g;
+                }
+            }
+        }
+    }
+
+    /*
+      Constant for testing divisibility by d with one multiplication (Lemire, Kaser and Kurz,
+      "Faster remainder by direct computation"): n is a multiple of d exactly when
+      n * magic <= magic - 1 as unsigned longs, for any n and d in [1, 2^32).
+      Returns 0 when d is outside [2, 2^32), in which case the caller falls back to Stein's gcd.
+     */
+    private static long divisibilityMagic(long d) {
+        if (d < 2 || d >= (1L << 32)) {
+            return 0;
+        }
+        return Long.divideUnsigned(-1L, d) + 1;
+    }
+
+    // Forget the aggregate entries of the value just popped from position size
+    private void dropAggregates() {
+        if (minAt[minCount - 1] == size) {
+            minCount--;
+        }
+        if (maxAt[maxCount - 1] == size) {
+            maxCount--;
+        }
+        if (gcdAt[gcdCount - 1] == size) {
+            gcdCount--;
+        }
+    }
+
+    // Store value at index of array, growing the array if it is full
+    private static int[] append(int[] array, int index, int value) {
+        if (index == array.length) {
+            array = Arrays.copyOf(array, index + (index >> 1) + 1);
+        }
+        array[index] = value;
+        return array;
+    }
+}
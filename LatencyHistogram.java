@@ -0,0 +1,100 @@
+/*
+  LatencyHistogram records latencies (or any positive long values) into log-linear buckets,
+  in the style of HdrHistogram: 128 sub-buckets per power of two keep every recorded value
+  within 1/128 (under 1%) of its bucket's upper bound, over the full long range, in a fixed
+  ~60 KB array.
+
+  Special cases:
+    - Not thread safe: give each recording thread its own histogram and merge them with add().
+    - Negative values are recorded as 0.
+    - Percentiles report the highest value of the bucket they fall in (never under-reports).
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 8;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF = SUB_COUNT / 2;
+    private static final int MAX_SHIFT = 64 - SUB_BITS;
+
+    private final long[] counts = new long[MAX_SHIFT * HALF + SUB_COUNT];
+    private long totalCount;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+    }
+
+    // Merge another histogram into this one
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    /*
+      Value at a percentile (0 to 100), such as 99.9 for p999.
+      @return the upper bound of the bucket holding that percentile, capped at the recorded max
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), max);
+            }
+        }
+        return max;
+    }
+
+    // Bucket of a value: exact below SUB_COUNT, then HALF buckets per power of two
+    static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    // Largest value that falls in the bucket at index
+    static long highestValueAt(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long mantissa = index - (long) shift * HALF;
+        long lowest = mantissa << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
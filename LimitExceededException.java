@@ -0,0 +1,21 @@
+import java.rmi.RemoteException;
+
+/*
+  LimitExceededException is thrown when a call is refused by a server limit (maxClients,
+  maxStackDepth, open sessions or streams) before it changed anything, so the caller knows it can
+  retry it, or push fewer values, without applying anything twice.
+  It is a RemoteException, so existing callers catch it as before. Over RMI it reaches the client
+  wrapped in a ServerException, like every RemoteException the server throws; see isCause.
+ */
+public class LimitExceededException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    public LimitExceededException(String message) {
+        super(message);
+    }
+
+    // True if e is a LimitExceededException, directly or as the detail of an RMI ServerException
+    public static boolean isCause(RemoteException e) {
+        return e instanceof LimitExceededException || e.getCause() instanceof LimitExceededException;
+    }
+}
@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator {
+    /*
+      End-to-end load generator for a running CalculatorServer.
+      Drives N concurrent clients (one thread and one clientId each) with a configurable mix
+      of push, pop, operation and delayPop calls, and reports throughput and latency percentiles.
+
+      Usage:
+        java LoadGenerator [--host localhost] [--port 1099] [--clients 8] [--duration 10] [--warmup 2]
+                           [--mix push=50,pop=40,operation=9,delayPop=1] [--operator max] [--delay 10]
+                           [--rate 0] [--format csv|json] [--out file]
+
+      Modes:
+        - Closed loop (--rate 0, default): every client sends its next call as soon as the previous returns.
+        - Open loop (--rate R): calls are scheduled at a fixed total rate of R per second, spread over the
+          clients. Latency is measured from the scheduled start, so a slow server also shows the queueing
+          delay it causes (no coordinated omission).
+
+      Outputs:
+        - Per operation and overall: calls, calls/sec, errors, mean/p50/p90/p99/p999/max latency in microseconds.
+        - The same table as CSV or JSON on stdout, or in --out file.
+
+      Special cases:
+        - Only loopback hosts are accepted; the tool refuses to load a remote server.
+        - Each client tracks its own stack depth and pushes instead of popping (or operating) on an
+          empty stack, so the mix does not turn into errors.
+        - Pushed values are 1..1000, so gcd and small lcm chains stay within int range.
+     */
+    private static final String[] OPS = {"push", "pop", "operation", "delayPop"};
+
+    private static String host = "localhost";
+    private static int port = 1099;
+    private static int clients = 8;
+    private static int durationSeconds = 10;
+    private static int warmupSeconds = 2;
+    private static int[] mix = {50, 40, 9, 1};
+    private static String operator = "max";
+    private static int delayMillis = 10;
+    private static double rate = 0;
+    private static String format = "csv";
+    private static String out = null;
+
+    // Per-client results, merged after the run
+    static class ClientStats {
+        final LatencyHistogram[] histograms = new LatencyHistogram[OPS.length];
+        final long[] errors = new long[OPS.length];
+
+        ClientStats() {
+            for (int i = 0; i < OPS.length; i++) histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        parseArgs(args);
+        InetAddress address = InetAddress.getByName(host);
+        if (!address.isLoopbackAddress()) {
+            System.err.println("Refusing to generate load against non-loopback host " + host + " (" + address + ")");
+            System.exit(2);
+        }
+        Registry registry = LocateRegistry.getRegistry(host, port);
+        Calculator calc = (Calculator) registry.lookup("Calculator");
+
+        System.out.println("Load: " + clients + " clients, " + durationSeconds + "s (+" + warmupSeconds + "s warmup), mix push="
+                + mix[0] + " pop=" + mix[1] + " operation=" + mix[2] + " delayPop=" + mix[3] + ", "
+                + (rate > 0 ? "open loop at " + rate + " calls/s" : "closed loop"));
+
+        ClientStats[] stats = new ClientStats[clients];
+        Thread[] threads = new Thread[clients];
+        CyclicBarrier start = new CyclicBarrier(clients);
+        for (int c = 0; c < clients; c++) {
+            int index = c;
+            stats[c] = new ClientStats();
+            threads[c] = new Thread(() -> runClient(calc, index, stats[index], start), "load-client-" + c);
+            threads[c].start();
+        }
+        for (Thread t : threads) t.join();
+
+        ClientStats total = new ClientStats();
+        for (ClientStats s : stats) {
+            for (int i = 0; i < OPS.length; i++) {
+                total.histograms[i].add(s.histograms[i]);
+                total.errors[i] += s.errors[i];
+            }
+        }
+        report(total);
+    }
+
+    private static void runClient(Calculator calc, int index, ClientStats stats, CyclicBarrier start) {
+        String clientId = "LoadGenerator-" + UUID.randomUUID();
+        Random random = new Random(index);
+        int depth = 0;
+        // Open loop: this client's share of the total rate
+        long intervalNanos = rate > 0 ? (long) (1e9 * clients / rate) : 0;
+        try {
+            start.await();
+        } catch (Exception e) {
+            return;
+        }
+        long begin = System.nanoTime();
+        long measureFrom = begin + warmupSeconds * 1_000_000_000L;
+        long end = measureFrom + durationSeconds * 1_000_000_000L;
+        // Stagger clients so open-loop calls are spread over the interval
+        long next = begin + (intervalNanos * index) / clients;
+        while (true) {
+            long scheduled;
+            if (intervalNanos > 0) {
+                scheduled = next;
+                next += intervalNanos;
+                long wait = scheduled - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+            } else {
+                scheduled = System.nanoTime();
+            }
+            if (scheduled >= end) break;
+
+            int op = pick(random);
+            if (op != 0 && depth == 0) op = 0;
+            try {
+                switch (op) {
+                    case 0: calc.pushValue(clientId, 1 + random.nextInt(1000)); depth++; break;
+                    case 1: calc.pop(clientId); depth--; break;
+                    case 2: calc.pushOperation(clientId, operator); depth = 1; break;
+                    default: calc.delayPop(clientId, delayMillis); depth--; break;
+                }
+                if (scheduled >= measureFrom) {
+                    stats.histograms[op].record(System.nanoTime() - scheduled);
+                }
+            } catch (RemoteException e) {
+                if (scheduled >= measureFrom) stats.errors[op]++;
+                depth = 0;
+                try {
+                    while (!calc.isEmpty(clientId)) calc.pop(clientId);
+                } catch (RemoteException ignored) {
+                    // reported through the error count
+                }
+            }
+        }
+    }
+
+    // Pick an operation index according to the mix weights
+    private static int pick(Random random) {
+        int total = 0;
+        for (int w : mix) total += w;
+        int r = random.nextInt(total);
+        for (int i = 0; i < mix.length; i++) {
+            r -= mix[i];
+            if (r < 0) return i;
+        }
+        return 0;
+    }
+
+    private static void report(ClientStats total) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        LatencyHistogram all = new LatencyHistogram();
+        long allErrors = 0;
+        for (int i = 0; i < OPS.length; i++) {
+            if (total.histograms[i].getTotalCount() == 0 && total.errors[i] == 0) continue;
+            rows.add(row(OPS[i], total.histograms[i], total.errors[i]));
+            all.add(total.histograms[i]);
+            allErrors += total.errors[i];
+        }
+        rows.add(row("all", all, allErrors));
+
+        String[] header = {"op", "calls", "calls_per_sec", "errors", "mean_us", "p50_us", "p90_us", "p99_us", "p999_us", "max_us"};
+        System.out.printf("%n%-10s %10s %14s %8s %10s %10s %10s %10s %10s %10s%n", (Object[]) header);
+        for (String[] r : rows) System.out.printf("%-10s %10s %14s %8s %10s %10s %10s %10s %10s %10s%n", (Object[]) r);
+
+        StringBuilder text = new StringBuilder();
+        if (format.equals("json")) {
+            text.append("[\n");
+            for (int r = 0; r < rows.size(); r++) {
+                text.append("  {");
+                for (int c = 0; c < header.length; c++) {
+                    text.append('"').append(header[c]).append("\": ");
+                    text.append(c == 0 ? "\"" + rows.get(r)[c] + "\"" : rows.get(r)[c]);
+                    if (c < header.length - 1) text.append(", ");
+                }
+                text.append(r < rows.size() - 1 ? "},\n" : "}\n");
+            }
+            text.append("]\n");
+        } else {
+            text.append(String.join(",", header)).append('\n');
+            for (String[] r : rows) text.append(String.join(",", r)).append('\n');
+        }
+        if (out != null) {
+            Files.write(Paths.get(out), text.toString().getBytes());
+            System.out.println("\nResults written to " + out);
+        } else {
+            System.out.println();
+            System.out.print(text);
+        }
+    }
+
+    private static String[] row(String op, LatencyHistogram h, long errors) {
+        return new String[] {
+            op,
+            String.valueOf(h.getTotalCount()),
+            String.format(Locale.ROOT, "%.1f", h.getTotalCount() / (double) durationSeconds),
+            String.valueOf(errors),
+            micros(h.getMean()),
+            micros(h.getValueAtPercentile(50)),
+            micros(h.getValueAtPercentile(90)),
+            micros(h.getValueAtPercentile(99)),
+            micros(h.getValueAtPercentile(99.9)),
+            micros(h.getMax())
+        };
+    }
+
+    private static String micros(double nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+    }
+
+    private static void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--host": host = value; break;
+                case "--port": port = Integer.parseInt(value); break;
+                case "--clients": clients = Integer.parseInt(value); break;
+                case "--duration": durationSeconds = Integer.parseInt(value); break;
+                case "--warmup": warmupSeconds = Integer.parseInt(value); break;
+                case "--operator": operator = value; break;
+                case "--delay": delayMillis = Integer.parseInt(value); break;
+                case "--rate": rate = Double.parseDouble(value); break;
+                case "--format": format = value; break;
+                case "--out": out = value; break;
+                case "--mix": {
+                    mix = new int[OPS.length];
+                    for (String part : value.split(",")) {
+                        String[] kv = part.split("=");
+                        int op = indexOf(kv[0].trim());
+                        if (op < 0) throw new IllegalArgumentException("Unknown operation in --mix: " + kv[0]);
+                        mix[op] = Integer.parseInt(kv[1].trim());
+                    }
+                    break;
+                }
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+            i++;
+        }
+        if (!format.equals("csv") && !format.equals("json")) {
+            throw new IllegalArgumentException("--format must be csv or json");
+        }
+    }
+
+    private static int indexOf(String op) {
+        for (int i = 0; i < OPS.length; i++) if (OPS[i].equalsIgnoreCase(op)) return i;
+        return -1;
+    }
+}
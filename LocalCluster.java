@@ -0,0 +1,89 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+  LocalCluster starts calculator servers as separate JVMs on this host, each with its own
+  registry port, for ClusterTest and ClusterBenchmark. The node JVMs use the class path and
+  java binary of the current JVM, and are killed by close().
+
+  Special cases:
+    - Ports are picked free just before a node starts; start() fails if the node does not
+      print its "running" line within 30 seconds.
+    - Node output is read and dropped; the server log is off unless jvmOptions turn it on.
+ */
+final class LocalCluster implements Closeable {
+
+    private final List<Process> processes = new ArrayList<>();
+    private final List<String> nodes = new ArrayList<>();
+    private final List<String> jvmOptions;
+
+    // jvmOptions are passed to every node (-D settings such as calculator.metrics=off)
+    LocalCluster(List<String> jvmOptions) {
+        this.jvmOptions = jvmOptions;
+    }
+
+    // Start one more node; returns its name "localhost:port"
+    String start() throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dcalculator.log=off");
+        command.add("-Dcalculator.clusterNode=on");
+        command.addAll(jvmOptions);
+        command.add("CalculatorServer");
+        command.add(String.valueOf(port));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        processes.add(process);
+
+        CountDownLatch running = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = out.readLine()) != null) {
+                    if (line.startsWith("Calculator server is running")) running.countDown();
+                }
+            } catch (IOException ignored) {
+                // node stopped
+            }
+        }, "cluster-node-" + port);
+        reader.setDaemon(true);
+        reader.start();
+        if (!running.await(30, TimeUnit.SECONDS)) {
+            throw new IOException("Calculator node on port " + port + " did not start");
+        }
+        String node = "localhost:" + port;
+        nodes.add(node);
+        return node;
+    }
+
+    // Names of the started nodes
+    List<String> nodes() {
+        return nodes;
+    }
+
+    @Override
+    public void close() {
+        for (Process process : processes) {
+            process.destroyForcibly();
+        }
+        for (Process process : processes) {
+            try {
+                process.waitFor(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
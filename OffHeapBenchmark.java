@@ -0,0 +1,122 @@
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class OffHeapBenchmark {
+    /*
+      Heap footprint and garbage collection pauses of a server holding many client stacks, with
+      the values in int arrays (IntStack, the default) and off the heap (calculator.offHeap).
+      Each mode and client count runs in its own JVM, so the heap holds nothing else.
+
+      Inputs:
+        - args[0] (optional): comma-separated client counts, default 1000000,10000000
+        - args[1] (optional): values per client stack, default 4
+        - args[2] (optional): maximum heap (and direct memory) of each JVM, default 8g
+        - args[3] (optional): milliseconds of the churn phase, default 10000
+
+      Outputs, per client count and mode:
+        - heap MB: live heap after a full collection; off-heap MB: direct memory in use
+        - full GC ms: average time of System.gc() over three runs (the collector traces every
+          live object, so this grows with the number of heap objects)
+        - young GCs and their average and total ms during the churn phase: random pushes and pops
+          on random clients, each call also allocating a 256-byte request buffer as the RMI layer
+          would. The young generation is fixed at 64 MB so there are enough collections to average.
+
+      Special cases:
+        - Calls go straight to CalculatorImplementation (no RMI); metrics, the log and idle
+          eviction are off. ClientIds look like "client-123456", shorter than CalculatorClient's.
+        - The JVM of a count that does not fit in the heap fails with OutOfMemoryError and its
+          row is missing; raise args[2] or lower the count.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--child")) {
+            child(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), Long.parseLong(args[4]));
+            return;
+        }
+        String counts = args.length > 0 ? args[0] : "1000000,10000000";
+        String depth = args.length > 1 ? args[1] : "4";
+        String heap = args.length > 2 ? args[2] : "8g";
+        String churn = args.length > 3 ? args[3] : "10000";
+        List<String> collectors = new ArrayList<>();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) collectors.add(gc.getName());
+        System.out.println("Off-heap benchmark: " + depth + " values per client, -Xmx" + heap + ", collectors " + collectors);
+        System.out.printf("%-8s %10s %9s %11s %11s %9s %12s %12s%n",
+                "mode", "clients", "heap MB", "off-heap MB", "full GC ms", "young GCs", "young avg ms", "young tot ms");
+        for (String clients : counts.split(",")) {
+            for (String mode : new String[] {"heap", "offheap"}) {
+                List<String> command = new ArrayList<>(List.of(
+                        ProcessHandle.current().info().command().orElse("java"),
+                        "-Xmx" + heap, "-Xms" + heap, "-Xmn64m", "-XX:MaxDirectMemorySize=" + heap,
+                        "-cp", System.getProperty("java.class.path"),
+                        "OffHeapBenchmark", "--child", mode, clients, depth, churn));
+                int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+                if (exit != 0) {
+                    System.out.printf("%-8s %10s   failed (exit %d)%n", mode, clients, exit);
+                }
+            }
+        }
+    }
+
+    private static void child(String mode, int clients, int depth, long churnMillis) throws Exception {
+        System.setProperty("calculator.log", "off");
+        CalculatorImplementation calc = new CalculatorImplementation(new CalculatorConfig().setMetricsEnabled(false)
+                .setIdleTtlMillis(0).setParallelThreshold(0).setOffHeap(mode.equals("offheap")));
+        String[] ids = new String[clients];
+        int[] values = new int[depth];
+        for (int i = 0; i < clients; i++) {
+            ids[i] = "client-" + i;
+            for (int j = 0; j < depth; j++) values[j] = i + j;
+            calc.pushValues(ids[i], values);
+        }
+
+        long fullGcNanos = 0;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            System.gc();
+            fullGcNanos += System.nanoTime() - start;
+        }
+        long heapBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long directBytes = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) directBytes = pool.getMemoryUsed();
+        }
+
+        long[] before = youngGcs();
+        long end = System.currentTimeMillis() + churnMillis;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[][] requests = new byte[64][];
+        long sink = 0;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < 1000; i++) {
+                String id = ids[random.nextInt(clients)];
+                // Kept for a while, as a request in flight is, so it is really allocated
+                requests[i & 63] = new byte[256];
+                calc.pushValue(id, i);
+                sink += calc.pop(id);
+            }
+        }
+        long[] after = youngGcs();
+        long count = after[0] - before[0];
+        long millis = after[1] - before[1];
+        System.out.printf("%-8s %10d %9.0f %11.0f %11.1f %9d %12.2f %12d%n", mode, clients, heapBytes / 1e6,
+                directBytes / 1e6, fullGcNanos / 3e6, count, count == 0 ? 0.0 : (double) millis / count, millis);
+        if (sink == 42) System.out.println();
+        calc.shutdown();
+    }
+
+    // Collection count and milliseconds of the young-generation collector
+    private static long[] youngGcs() {
+        long[] total = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String name = gc.getName();
+            if (name.contains("Young") || name.contains("Scavenge") || name.equals("Copy")) {
+                total[0] += gc.getCollectionCount();
+                total[1] += gc.getCollectionTime();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,243 @@
+import java.nio.ByteBuffer;
+import java.util.EmptyStackException;
+
+/*
+  OffHeapIntStack is an IntStack whose values live in a block of off-heap memory from a
+  SlabAllocator instead of an int[], for servers holding millions of client stacks
+  (calculator.offHeap). On the heap each stack is this one object: no arrays, so the garbage
+  collector has one small object per client to trace instead of six. It refers to its block by
+  address only, not to the slab's ByteBuffer: a stack in the old generation pointing at a slab
+  allocated since would give every young collection that stack's card to scan.
+
+  Layout: one ENTRY_BYTES entry per value, bottom to top, read and written in place:
+      value | min | max | gcd      (4 ints)
+  min, max and gcd are those of the values from the bottom up to and including the entry, so
+  min(), max() and gcd() read the top entry in O(1) and a pop just forgets it. The gcd of two or
+  more ints is never negative and at most 2^31, so it is stored as an unsigned int; the first
+  entry's gcd is its value as pushed, like Reductions.gcdLong.
+
+  Special cases:
+    - An empty stack that never held a value owns no block. Capacity grows by half its size into
+      a larger block, and clear() gives the block back, like IntStack's backing array.
+    - elements() returns a copy of the values on the heap, so reductions over all values
+      (sum, lcm, median, snapshots) allocate a short-lived array.
+    - At most SlabAllocator.MAX_BLOCK_BYTES / ENTRY_BYTES values (64M); pushing more throws
+      OutOfMemoryError.
+    - Guarded by synchronized(stack) like IntStack.
+ */
+final class OffHeapIntStack extends IntStack {
+    static final int ENTRY_BYTES = 16;
+
+    private static final int VALUE = 0;
+    private static final int MIN = 4;
+    private static final int MAX = 8;
+    private static final int GCD = 12;
+
+    // replaceWith keeps a block up to this many values instead of reallocating it
+    private static final int RETAIN_CAPACITY = 64;
+
+    private final SlabAllocator slabs;
+    private long block = -1;     // address from slabs, -1 when there is none
+    private int base;            // byte offset of the block in its slab
+    private int sizeClass;
+    private int capacity;
+    private int size;
+
+    OffHeapIntStack(SlabAllocator slabs) {
+        super(false);
+        this.slabs = slabs;
+    }
+
+    // Off-heap copy of a recovered heap stack, with its bookkeeping
+    static OffHeapIntStack copyOf(IntStack stack, SlabAllocator slabs) {
+        OffHeapIntStack copy = new OffHeapIntStack(slabs);
+        copy.pushAll(stack.toArray());
+        copy.lastAccessMillis = stack.lastAccessMillis;
+        copy.lastLsn = stack.lastLsn;
+        return copy;
+    }
+
+    @Override
+    public void push(int val) {
+        if (size == capacity) {
+            grow(size + 1L);
+        }
+        write(buffer(), size, val);
+        size++;
+        publishDepth(size);
+    }
+
+    @Override
+    public void pushAll(int[] values) {
+        long newSize = (long) size + values.length;
+        if (newSize > capacity) {
+            grow(newSize);
+        }
+        ByteBuffer buffer = buffer();
+        for (int val : values) {
+            write(buffer, size++, val);
+        }
+        publishDepth(size);
+    }
+
+    @Override
+    public int pop() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        int val = buffer().getInt(at(--size) + VALUE);
+        publishDepth(size);
+        return val;
+    }
+
+    @Override
+    public int peek() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        return buffer().getInt(at(size - 1) + VALUE);
+    }
+
+    @Override
+    public int get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return buffer().getInt(at(index) + VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int min() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        return buffer().getInt(at(size - 1) + MIN);
+    }
+
+    @Override
+    public int max() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        return buffer().getInt(at(size - 1) + MAX);
+    }
+
+    @Override
+    public long gcd() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        return gcdAt(buffer(), size - 1);
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        publishDepth(0);
+        release();
+    }
+
+    @Override
+    public void replaceWith(int val) {
+        if (capacity > RETAIN_CAPACITY) {
+            release();
+        }
+        size = 0;
+        if (capacity == 0) {
+            grow(1);
+        }
+        write(buffer(), 0, val);
+        size = 1;
+        publishDepth(1);
+    }
+
+    @Override
+    int[] elements() {
+        return toArray();
+    }
+
+    @Override
+    public int[] toArray() {
+        int[] values = new int[size];
+        ByteBuffer buffer = buffer();
+        for (int i = 0; i < size; i++) {
+            values[i] = buffer.getInt(at(i) + VALUE);
+        }
+        return values;
+    }
+
+    // Slab of the block, null when there is none (only read for at least one value)
+    private ByteBuffer buffer() {
+        return block < 0 ? null : slabs.slab(sizeClass, block);
+    }
+
+    private int at(int index) {
+        return base + index * ENTRY_BYTES;
+    }
+
+    private long gcdAt(ByteBuffer buffer, int index) {
+        return index == 0 ? buffer.getInt(base + VALUE) : Integer.toUnsignedLong(buffer.getInt(at(index) + GCD));
+    }
+
+    // Write val and the aggregates up to it at index, on top of the entry below it
+    private void write(ByteBuffer buffer, int index, int val) {
+        int entry = at(index);
+        buffer.putInt(entry + VALUE, val);
+        if (index == 0) {
+            buffer.putInt(entry + MIN, val);
+            buffer.putInt(entry + MAX, val);
+            return;
+        }
+        int below = entry - ENTRY_BYTES;
+        buffer.putInt(entry + MIN, Math.min(buffer.getInt(below + MIN), val));
+        buffer.putInt(entry + MAX, Math.max(buffer.getInt(below + MAX), val));
+        long g = gcdAt(buffer, index - 1);
+        // The running gcd only changes when it does not divide the new value, or when it is
+        // still the negative first value
+        if (g < 0 || (g != 1 && (g == 0 || val % g != 0))) {
+            g = Reductions.gcd(g, val);
+        }
+        buffer.putInt(entry + GCD, (int) g);
+    }
+
+    // Move the values to a block holding at least minCapacity of them
+    private void grow(long minCapacity) {
+        long wanted = Math.max(minCapacity, capacity + (capacity >> 1) + 1L);
+        int newClass = SlabAllocator.sizeClass(Math.min(wanted, SlabAllocator.MAX_BLOCK_BYTES / ENTRY_BYTES) * ENTRY_BYTES);
+        int newCapacity = SlabAllocator.blockBytes(newClass) / ENTRY_BYTES;
+        if (newCapacity < minCapacity) {
+            throw new OutOfMemoryError("OffHeapIntStack capacity exceeded");
+        }
+        long newBlock = slabs.allocate(newClass);
+        ByteBuffer newBuffer = slabs.slab(newClass, newBlock);
+        int newBase = SlabAllocator.offset(newBlock);
+        if (size > 0) {
+            newBuffer.put(newBase, buffer(), base, size * ENTRY_BYTES);
+        }
+        release();
+        block = newBlock;
+        base = newBase;
+        sizeClass = newClass;
+        capacity = newCapacity;
+    }
+
+    // Give the block back to the allocator
+    private void release() {
+        if (block >= 0) {
+            slabs.free(sizeClass, block);
+            block = -1;
+            base = 0;
+            capacity = 0;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+import java.math.BigInteger;
+
+/*
+  Operator is one reduction that pushOperation, popOperationLong, popOperationBig and
+  peekAggregate can apply to all values of a client stack.
+  Operators are registered once in an OperatorRegistry and looked up by name or opcode,
+  so adding one does not touch CalculatorImplementation.
+
+  Inputs:
+    - stack: a non-empty stack, locked by the caller for the whole call; an operator
+      reads it (elements(), size(), or the running aggregates) and never changes it.
+
+  Special cases:
+    - reduceInt and reduceLong throw ArithmeticException when the result does not fit;
+      reduceBig is exact. By default reduceInt narrows reduceLong and reduceBig widens it.
+    - An operator that can fold values in chunks returns an Accumulator, used by the streaming
+      reduce (Calculator.beginReduce); one that needs all values at once (median) returns null.
+ */
+public interface Operator {
+
+    // Name clients pass to pushOperation (matched case-insensitively)
+    String name();
+
+    /*
+      Result over the whole stack as a long.
+      @throws ArithmeticException if the result does not fit in a long
+     */
+    long reduceLong(IntStack stack);
+
+    /*
+      Result over the whole stack as an int, for pushOperation.
+      @throws ArithmeticException if the result does not fit in an int
+     */
+    default int reduceInt(IntStack stack) {
+        return Math.toIntExact(reduceLong(stack));
+    }
+
+    // Exact result over the whole stack
+    default BigInteger reduceBig(IntStack stack) {
+        return BigInteger.valueOf(reduceLong(stack));
+    }
+
+    // New running result for a streamed reduction, or null if this operator cannot be streamed
+    default Accumulator accumulator() {
+        return null;
+    }
+
+    /*
+      Running result of one streamed reduction, in O(1) memory. Folding values chunk by chunk
+      gives the same result as reduceLong over all of them on a stack, in the same order.
+      Not thread safe: the caller locks it.
+     */
+    interface Accumulator {
+        /*
+          Fold values[from, to) into the running result.
+          @throws ArithmeticException if the running result no longer fits in a long
+         */
+        void add(int[] values, int from, int to);
+
+        // Result over the values folded so far; only called after at least one value
+        long result();
+    }
+}
@@ -0,0 +1,428 @@
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+  OperatorRegistry maps operator names to pre-built Operator objects and small integer opcodes.
+  CalculatorImplementation resolves every operation through it instead of switching on strings.
+
+  Standard operators (opcodes in this order, starting at 0):
+    - min, max, gcd: read from the stack's running aggregates in O(1)
+    - lcm: one pass (on a ForkJoinPool for very deep stacks)
+    - sum, product, avg (sum / count rounded down), median, popcount (total one bits), xor
+  All but median also fold streamed chunks (Operator.accumulator).
+
+  Lookup:
+    - Names match case-insensitively without allocating: the hash is computed over case-folded
+      characters and candidates are compared with equalsIgnoreCase.
+    - The table is open-addressed and rebuilt on register(), so lookups never lock.
+
+  Special cases:
+    - register() rejects a name that is already taken; opcodes are never reused.
+    - Opcodes are only valid on the server that returned them (see Calculator.resolveOperator).
+ */
+public final class OperatorRegistry {
+
+    // Immutable lookup state, replaced as a whole by register()
+    private static final class Table {
+        final Operator[] operators;   // by opcode
+        final int[] slots;            // opcode + 1 per hash slot, 0 when empty
+        final int mask;
+
+        Table(Operator[] operators) {
+            this.operators = operators;
+            int capacity = Integer.highestOneBit(Math.max(4, operators.length * 4 - 1)) << 1;
+            slots = new int[capacity];
+            mask = capacity - 1;
+            for (int opcode = 0; opcode < operators.length; opcode++) {
+                int slot = hash(operators[opcode].name()) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = opcode + 1;
+            }
+        }
+    }
+
+    private volatile Table table = new Table(new Operator[0]);
+
+    /*
+      Registry holding the standard operators.
+      @param pool pool for lcm over very deep stacks, or null to always reduce on the calling thread
+      @param parallelThreshold stack depth from which lcm uses the pool
+     */
+    public static OperatorRegistry standard(ForkJoinPool pool, int parallelThreshold) {
+        OperatorRegistry registry = new OperatorRegistry();
+        registry.register(new Min());
+        registry.register(new Max());
+        registry.register(new Gcd());
+        registry.register(new Lcm(pool, parallelThreshold));
+        registry.register(new Sum());
+        registry.register(new Product());
+        registry.register(new Avg());
+        registry.register(new Median());
+        registry.register(new Popcount());
+        registry.register(new Xor());
+        return registry;
+    }
+
+    /*
+      Add an operator under its name.
+      @return its opcode
+      @throws IllegalArgumentException if an operator with the same name (ignoring case) exists
+     */
+    public synchronized int register(Operator operator) {
+        if (resolve(operator.name()) >= 0) {
+            throw new IllegalArgumentException("Operator already registered: " + operator.name());
+        }
+        Operator[] current = table.operators;
+        Operator[] operators = Arrays.copyOf(current, current.length + 1);
+        operators[current.length] = operator;
+        table = new Table(operators);
+        return current.length;
+    }
+
+    // Opcode of the operator with this name (any case), or -1 if there is none
+    public int resolve(String name) {
+        if (name == null) {
+            return -1;
+        }
+        Table t = table;
+        int slot = hash(name) & t.mask;
+        for (;;) {
+            int entry = t.slots[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (t.operators[entry - 1].name().equalsIgnoreCase(name)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & t.mask;
+        }
+    }
+
+    // Operator with this name (any case), or null
+    public Operator lookup(String name) {
+        int opcode = resolve(name);
+        return opcode < 0 ? null : table.operators[opcode];
+    }
+
+    // Operator with this opcode, or null
+    public Operator get(int opcode) {
+        Operator[] operators = table.operators;
+        return opcode >= 0 && opcode < operators.length ? operators[opcode] : null;
+    }
+
+    // Registered names, by opcode
+    public String[] names() {
+        Operator[] operators = table.operators;
+        String[] names = new String[operators.length];
+        for (int i = 0; i < operators.length; i++) names[i] = operators[i].name();
+        return names;
+    }
+
+    // Hash of a name with its characters case-folded the way equalsIgnoreCase compares them
+    private static int hash(String name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < 128) {
+                c = (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+            } else {
+                c = Character.toLowerCase(Character.toUpperCase(c));
+            }
+            h = 31 * h + c;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Min implements Operator {
+        public String name() {
+            return "min";
+        }
+
+        public long reduceLong(IntStack stack) {
+            return stack.min();
+        }
+
+        public int reduceInt(IntStack stack) {
+            return stack.min();
+        }
+
+        public Accumulator accumulator() {
+            return new Accumulator() {
+                int min = Integer.MAX_VALUE;
+
+                public void add(int[] values, int from, int to) {
+                    if (from < to) min = Math.min(min, Reductions.min(values, from, to));
+                }
+
+                public long result() {
+                    return min;
+                }
+            };
+        }
+    }
+
+    private static final class Max implements Operator {
+        public String name() {
+            return "max";
+        }
+
+        public long reduceLong(IntStack stack) {
+            return stack.max();
+        }
+
+        public int reduceInt(IntStack stack) {
+            return stack.max();
+        }
+
+        public Accumulator accumulator() {
+            return new Accumulator() {
+                int max = Integer.MIN_VALUE;
+
+                public void add(int[] values, int from, int to) {
+                    if (from < to) max = Math.max(max, Reductions.max(values, from, to));
+                }
+
+                public long result() {
+                    return max;
+                }
+            };
+        }
+    }
+
+    private static final class Gcd implements Operator {
+        public String name() {
+            return "gcd";
+        }
+
+        public long reduceLong(IntStack stack) {
+            return stack.gcd();
+        }
+
+        // Continues Reductions.gcdLong: the first value as pushed, then stops folding at 1
+        public Accumulator accumulator() {
+            return new Accumulator() {
+                long gcd;
+                boolean started;
+
+                public void add(int[] values, int from, int to) {
+                    int i = from;
+                    if (!started && i < to) {
+                        gcd = values[i++];
+                        started = true;
+                    }
+                    for (; i < to && gcd != 1; i++) {
+                        gcd = Reductions.gcd(gcd, values[i]);
+                    }
+                }
+
+                public long result() {
+                    return gcd;
+                }
+            };
+        }
+    }
+
+    private static final class Lcm implements Operator {
+        private final ForkJoinPool pool;
+        private final int parallelThreshold;
+
+        Lcm(ForkJoinPool pool, int parallelThreshold) {
+            this.pool = pool;
+            this.parallelThreshold = parallelThreshold;
+        }
+
+        public String name() {
+            return "lcm";
+        }
+
+        // Deep enough to split over the pool
+        private boolean parallel(IntStack stack) {
+            return pool != null && parallelThreshold > 0 && stack.size() >= parallelThreshold;
+        }
+
+        public long reduceLong(IntStack stack) {
+            return parallel(stack)
+                    ? Reductions.lcmParallel(stack.elements(), 0, stack.size(), Long.MAX_VALUE, pool)
+                    : Reductions.lcmLong(stack.elements(), 0, stack.size());
+        }
+
+        // Fails as soon as the running lcm leaves the int range instead of folding on in longs
+        public int reduceInt(IntStack stack) {
+            return parallel(stack)
+                    ? (int) Reductions.lcmParallel(stack.elements(), 0, stack.size(), Integer.MAX_VALUE, pool)
+                    : Reductions.lcm(stack.elements(), 0, stack.size());
+        }
+
+        public BigInteger reduceBig(IntStack stack) {
+            return parallel(stack)
+                    ? Reductions.lcmBigParallel(stack.elements(), 0, stack.size(), pool)
+                    : Reductions.lcmBig(stack.elements(), 0, stack.size());
+        }
+
+        // Continues Reductions.lcmLong: the first value as pushed, then stops folding at 0
+        public Accumulator accumulator() {
+            return new Accumulator() {
+                long lcm;
+                boolean started;
+
+                public void add(int[] values, int from, int to) {
+                    int i = from;
+                    if (!started && i < to) {
+                        lcm = values[i++];
+                        started = true;
+                    }
+                    for (; i < to && lcm != 0; i++) {
+                        lcm = Reductions.lcm(lcm, values[i]);
+                    }
+                }
+
+                public long result() {
+                    return lcm;
+                }
+            };
+        }
+    }
+
+    private static final class Sum implements Operator {
+        public String name() {
+            return "sum";
+        }
+
+        public long reduceLong(IntStack stack) {
+            return Reductions.sum(stack.elements(), 0, stack.size());
+        }
+
+        // A stream can hold more than 2^31 values, so the sum can overflow a long after all
+        public Accumulator accumulator() {
+            return new Accumulator() {
+                long sum;
+
+                public void add(int[] values, int from, int to) {
+                    sum = Math.addExact(sum, Reductions.sum(values, from, to));
+                }
+
+                public long result() {
+                    return sum;
+                }
+            };
+        }
+    }
+
+    private static final class Product implements Operator {
+        public String name() {
+            return "product";
+        }
+
+        public long reduceLong(IntStack stack) {
+            return Reductions.productLong(stack.elements(), 0, stack.size());
+        }
+
+        public BigInteger reduceBig(IntStack stack) {
+            return Reductions.productBig(stack.elements(), 0, stack.size());
+        }
+
+        // Continues Reductions.productLong: stops at the first zero
+        public Accumulator accumulator() {
+            return new Accumulator() {
+                long product = 1;
+
+                public void add(int[] values, int from, int to) {
+                    for (int i = from; i < to && product != 0; i++) {
+                        product = Math.multiplyExact(product, values[i]);
+                    }
+                }
+
+                public long result() {
+                    return product;
+                }
+            };
+        }
+    }
+
+    private static final class Avg implements Operator {
+        public String name() {
+            return "avg";
+        }
+
+        public long reduceLong(IntStack stack) {
+            return Math.floorDiv(Reductions.sum(stack.elements(), 0, stack.size()), stack.size());
+        }
+
+        public Accumulator accumulator() {
+            return new Accumulator() {
+                long sum;
+                long count;
+
+                public void add(int[] values, int from, int to) {
+                    sum = Math.addExact(sum, Reductions.sum(values, from, to));
+                    count += to - from;
+                }
+
+                public long result() {
+                    return Math.floorDiv(sum, count);
+                }
+            };
+        }
+    }
+
+    private static final class Median implements Operator {
+        public String name() {
+            return "median";
+        }
+
+        public long reduceLong(IntStack stack) {
+            return Reductions.median(stack.elements(), 0, stack.size());
+        }
+    }
+
+    private static final class Popcount implements Operator {
+        public String name() {
+            return "popcount";
+        }
+
+        public long reduceLong(IntStack stack) {
+            return Reductions.popcount(stack.elements(), 0, stack.size());
+        }
+
+        public Accumulator accumulator() {
+            return new Accumulator() {
+                long bits;
+
+                public void add(int[] values, int from, int to) {
+                    bits += Reductions.popcount(values, from, to);
+                }
+
+                public long result() {
+                    return bits;
+                }
+            };
+        }
+    }
+
+    private static final class Xor implements Operator {
+        public String name() {
+            return "xor";
+        }
+
+        public long reduceLong(IntStack stack) {
+            return Reductions.xor(stack.elements(), 0, stack.size());
+        }
+
+        public Accumulator accumulator() {
+            return new Accumulator() {
+                int xor;
+
+                public void add(int[] values, int from, int to) {
+                    xor ^= Reductions.xor(values, from, to);
+                }
+
+                public long result() {
+                    return xor;
+                }
+            };
+        }
+    }
+}
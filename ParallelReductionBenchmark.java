@@ -0,0 +1,83 @@
+import java.util.concurrent.ForkJoinPool;
+
+public class ParallelReductionBenchmark {
+    /*
+      In-process benchmark of the parallel lcm reduction (Reductions.lcmParallel) against the
+      sequential one (Reductions.lcmLong), to pick calculator.parallelThreshold for a host.
+
+      Inputs:
+        - args[0] (optional): largest stack depth as a power of two, default 24 (2^14 .. 2^24)
+        - args[1] (optional): comma-separated pool sizes, default 2,4,8 and the number of CPUs
+
+      Outputs:
+        - One line per depth: average ns per reduction sequentially and on each pool size,
+          with the speedup over sequential.
+        - Per pool size, the crossover: the smallest depth from which the parallel reduction
+          is faster at every measured depth.
+
+      Special cases:
+        - Values are multiples of 6 built from {6,12}, so lcm stays at 12 and every run walks
+          the whole range, like ReductionBenchmark.
+        - Depths below Reductions.MIN_PARALLEL_CHUNK always run sequentially, so they are not measured.
+        - On a host with fewer CPUs than a pool's size the extra workers only time-slice;
+          expect no speedup there.
+     */
+    public static void main(String[] args) {
+        int maxExponent = args.length > 0 ? Integer.parseInt(args[0]) : 24;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        String sizes = args.length > 1 ? args[1] : "2,4,8," + cpus;
+        int[] parallelism = java.util.Arrays.stream(sizes.split(",")).mapToInt(Integer::parseInt).distinct().sorted().toArray();
+        ForkJoinPool[] pools = new ForkJoinPool[parallelism.length];
+        for (int p = 0; p < pools.length; p++) pools[p] = new ForkJoinPool(parallelism[p]);
+        int[] pattern = {6, 12, 6, 12, 6, 12, 12, 6};
+        int minExponent = Integer.numberOfTrailingZeros(Reductions.MIN_PARALLEL_CHUNK) + 1;
+
+        // Results are summed into a checksum so the JIT cannot drop the reductions
+        long checksum = 0;
+        int[] crossover = new int[pools.length];
+        System.out.printf("CPUs: %d%n%-10s %14s", cpus, "depth", "sequential ns");
+        for (int p : parallelism) System.out.printf(" %14s %8s", "pool(" + p + ") ns", "speedup");
+        System.out.println();
+        for (int exponent = minExponent; exponent <= maxExponent; exponent++) {
+            int depth = 1 << exponent;
+            int[] values = new int[depth];
+            for (int i = 0; i < depth; i++) values[i] = pattern[i % pattern.length];
+            // Fewer runs for deep stacks, with a floor so every depth gets a stable average
+            int runs = Math.max(5, Math.min(2000, 50_000_000 / depth));
+
+            long sequentialNanos = 0;
+            long[] parallelNanos = new long[pools.length];
+            for (int r = 0; r < runs * 2; r++) {
+                long start = System.nanoTime();
+                checksum += Reductions.lcmLong(values, 0, depth);
+                long elapsed = System.nanoTime() - start;
+                // First half of the runs is warmup
+                if (r >= runs) sequentialNanos += elapsed;
+                for (int p = 0; p < pools.length; p++) {
+                    start = System.nanoTime();
+                    checksum += Reductions.lcmParallel(values, 0, depth, Long.MAX_VALUE, pools[p]);
+                    elapsed = System.nanoTime() - start;
+                    if (r >= runs) parallelNanos[p] += elapsed;
+                }
+            }
+            double sequentialAvg = (double) sequentialNanos / runs;
+            System.out.printf("%-10d %14.0f", depth, sequentialAvg);
+            for (int p = 0; p < pools.length; p++) {
+                double parallelAvg = (double) parallelNanos[p] / runs;
+                System.out.printf(" %14.0f %7.2fx", parallelAvg, sequentialAvg / parallelAvg);
+                if (parallelAvg >= sequentialAvg) {
+                    crossover[p] = 0;
+                } else if (crossover[p] == 0) {
+                    crossover[p] = depth;
+                }
+            }
+            System.out.println();
+        }
+        for (int p = 0; p < pools.length; p++) {
+            System.out.println("pool(" + parallelism[p] + ") crossover: "
+                    + (crossover[p] == 0 ? "none up to 2^" + maxExponent : "depth " + crossover[p]));
+            pools[p].shutdown();
+        }
+        System.out.println("checksum: " + checksum);
+    }
+}
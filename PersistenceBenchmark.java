@@ -0,0 +1,146 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+public class PersistenceBenchmark {
+    /*
+      In-process benchmark of persistence (StackStore): write throughput with the write-ahead log
+      and the recovery time of a restart, against a CalculatorImplementation (RMI bypassed).
+
+      Inputs:
+        - args[0] (optional): clients for the recovery part, default 1000000
+        - args[1] (optional): comma-separated thread counts for the write part, default 1,4,16,64
+        - args[2] (optional): milliseconds per write measurement, default 2000
+
+      Outputs:
+        - Write part: pushValue calls per second in memory only, with the log and no fsync,
+          and with an fsync per group commit; for the log modes the average records per write.
+        - Recovery part: clients * 4 values written, then the restart time from the log alone,
+          and from a snapshot plus a log tail of clients / 10 records.
+
+      Special cases:
+        - Files go to a temporary directory (java.io.tmpdir) that is deleted at the end; with fsync
+          the numbers depend entirely on that disk.
+        - The recovery part holds every client's stack in memory; use -Xmx3g for 1M clients.
+     */
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        String threadList = args.length > 1 ? args[1] : "1,4,16,64";
+        long millis = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+        System.setProperty("calculator.log", "off");
+        int[] threadCounts = java.util.Arrays.stream(threadList.split(",")).mapToInt(Integer::parseInt).toArray();
+
+        System.out.printf("%-14s %8s %14s %16s%n", "mode", "threads", "pushes/s", "records/write");
+        for (String mode : new String[] {"memory", "log", "log+fsync"}) {
+            for (int threads : threadCounts) {
+                Path dir = Files.createTempDirectory("calculator-bench");
+                CalculatorConfig config = new CalculatorConfig().setMetricsEnabled(false).setSnapshotIntervalMillis(0);
+                if (!mode.equals("memory")) {
+                    config.setPersistenceDir(dir.toString()).setWalSync(mode.equals("log+fsync"));
+                }
+                CalculatorImplementation calc = new CalculatorImplementation(config);
+                try {
+                    double rate = pushRate(calc, threads, millis);
+                    StackStore store = calc.getStore();
+                    String group = store == null ? "-"
+                            : String.format("%.1f", (double) store.getRecordCount() / Math.max(1, store.getBatchCount()));
+                    System.out.printf("%-14s %8d %14.0f %16s%n", mode, threads, rate, group);
+                } finally {
+                    calc.shutdown();
+                    delete(dir);
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.printf("Recovery of %,d clients with 4 values each%n", clients);
+        Path dir = Files.createTempDirectory("calculator-bench");
+        try {
+            CalculatorConfig config = new CalculatorConfig().setMetricsEnabled(false).setSnapshotIntervalMillis(0)
+                    .setIdleTtlMillis(0).setPersistenceDir(dir.toString()).setWalSync(false);
+            CalculatorImplementation calc = new CalculatorImplementation(config);
+            int[] values = {12, 18, 30, 42};
+            long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                calc.pushValues("client-" + i, values);
+            }
+            System.out.printf("  written in %,d ms (log %,d KB)%n", (System.nanoTime() - start) / 1_000_000, size(dir) / 1024);
+            calc.shutdown();
+            calc = null;
+
+            calc = reopen(config, "log only");
+            start = System.nanoTime();
+            long stacks = calc.snapshot();
+            System.out.printf("  snapshot of %,d stacks in %,d ms (%,d KB)%n", stacks, (System.nanoTime() - start) / 1_000_000, size(dir) / 1024);
+            for (int i = 0; i < clients / 10; i++) {
+                calc.pushValue("client-" + i * 10, i);
+            }
+            calc.shutdown();
+            calc = null;
+
+            calc = reopen(config, "snapshot + tail");
+            calc.shutdown();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    // pushValue calls per second over all threads, each thread on its own client
+    private static double pushRate(CalculatorImplementation calc, int threads, long millis) throws Exception {
+        LongAdder pushes = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long warmupEnd = System.currentTimeMillis() + millis / 4;
+        long end = warmupEnd + millis;
+        for (int t = 0; t < threads; t++) {
+            String clientId = "writer-" + t;
+            new Thread(() -> {
+                try {
+                    int i = 0;
+                    while (System.currentTimeMillis() < warmupEnd) {
+                        calc.pushValue(clientId, i++);
+                        if ((i & 1023) == 0) calc.popOperationLong(clientId, "min");
+                    }
+                    long n = 0;
+                    while (System.currentTimeMillis() < end) {
+                        calc.pushValue(clientId, i++);
+                        if ((i & 1023) == 0) calc.popOperationLong(clientId, "min");
+                        n++;
+                    }
+                    pushes.add(n);
+                } catch (Exception e) {
+                    System.out.println("writer failed: " + e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        return pushes.sum() * 1000.0 / millis;
+    }
+
+    private static CalculatorImplementation reopen(CalculatorConfig config, String label) throws Exception {
+        System.gc();
+        long start = System.nanoTime();
+        CalculatorImplementation calc = new CalculatorImplementation(config);
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        StackStore store = calc.getStore();
+        System.out.printf("  restart from %-16s %,8d ms: %,d clients, %,d log records replayed%n",
+                label + ":", elapsed, store.getRecoveredClients(), store.getReplayedRecords());
+        return calc;
+    }
+
+    private static long size(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private static void delete(Path dir) throws Exception {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class PersistenceTest {
+    /*
+      Restart test of the write-ahead log and snapshots, run in-process against
+      CalculatorImplementation (no RMI, no separate server needed).
+      Each step shuts the calculator down and opens a new one on the same directory.
+
+      Steps:
+        1. Changes of every kind (pushes, operations, pops, scripts) survive a restart
+           from the log alone.
+        2. A snapshot followed by more changes and an idle eviction: the restart loads the
+           snapshot, replays only the newer records and drops the old segments.
+        3. A torn record at the end of the log (crash during a write) is ignored.
+        4. Many threads pushing at once share fsyncs (group commit) and nothing is lost.
+        5. A clientId longer than the log's 65535-byte limit is rejected before anything is
+           logged; one at the limit survives a snapshot and a restart.
+
+      Outputs:
+        - PASS/FAIL per step.
+
+      Special cases:
+        - The server log is off unless -Dcalculator.log is given, to keep the output readable.
+        - Files go to a temporary directory that is deleted at the end.
+     */
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("calculator.log") == null) {
+            System.setProperty("calculator.log", "off");
+        }
+        Path dir = Files.createTempDirectory("calculator-persistence-test");
+        System.out.println("Persistence test (" + dir + ")");
+        try {
+            // 1. Log only
+            CalculatorImplementation calc = open(dir);
+            calc.pushValues("a", new int[] {12, 18, 30});
+            calc.pushOperation("a", "gcd");            // a: [6]
+            calc.pushValue("a", 4);
+            calc.pushValue("a", 9);
+            calc.pop("a");                              // a: [6, 4]
+            calc.pushValues("b", new int[] {1, 2, 3});
+            calc.popOperationLong("b", "sum");          // b: []
+            calc.pushValue("b", 7);
+            calc.executeScript("c", Arrays.asList(Command.push(5), Command.push(8),
+                    Command.operation("max"), Command.push(1), Command.pop()));  // c: [8]
+            calc.shutdown();
+
+            calc = open(dir);
+            boolean logOnly = Arrays.equals(stack(calc, "a"), new int[] {6, 4})
+                    && Arrays.equals(stack(calc, "b"), new int[] {7})
+                    && Arrays.equals(stack(calc, "c"), new int[] {8})
+                    && calc.getStore().getReplayedRecords() == 13;
+            System.out.println("1. Restart from the log: " + (logOnly ? "PASS" : "FAIL"));
+
+            // 2. Snapshot plus tail; stack() popped everything, so push it back
+            calc.pushValues("a", new int[] {6, 4});
+            calc.pushValue("b", 7);
+            calc.pushValue("c", 8);
+            long written = calc.snapshot();
+            calc.pushValue("a", 3);
+            calc.pop("c");
+            calc.pushValues("d", new int[] {10, 20});
+            calc.shutdown();
+
+            calc = open(dir);
+            boolean snapshot = written == 3
+                    && calc.getStore().getReplayedRecords() == 3
+                    && segments(dir).size() == 2
+                    && Arrays.equals(stack(calc, "a"), new int[] {6, 4, 3})
+                    && Arrays.equals(stack(calc, "b"), new int[] {7})
+                    && calc.isEmpty("c")
+                    && Arrays.equals(stack(calc, "d"), new int[] {10, 20});
+            calc.shutdown();
+
+            // Eviction is logged too
+            CalculatorImplementation evicting = new CalculatorImplementation(new CalculatorConfig()
+                    .setPersistenceDir(dir.toString()).setIdleTtlMillis(1).setSweepIntervalMillis(60_000));
+            evicting.pushValue("e", 1);
+            Thread.sleep(20);
+            int evicted = evicting.evictIdleStacks();
+            evicting.shutdown();
+            calc = open(dir);
+            boolean eviction = evicted > 0 && calc.getClientCount() == 0;
+            System.out.println("2. Snapshot and log tail: " + (snapshot ? "PASS" : "FAIL")
+                    + ", eviction: " + (eviction ? "PASS" : "FAIL"));
+
+            // 3. Torn tail
+            calc.pushValues("f", new int[] {1, 2});
+            calc.pushValue("f", 3);
+            calc.shutdown();
+            Path last = segments(dir).get(segments(dir).size() - 1);
+            try (FileChannel out = FileChannel.open(last, StandardOpenOption.WRITE)) {
+                long size = out.size();
+                out.truncate(size - 2);  // half of the last record's value
+                out.position(size - 2);
+                out.write(ByteBuffer.wrap(new byte[] {0x7f}));
+            }
+            calc = open(dir);
+            boolean torn = Arrays.equals(stack(calc, "f"), new int[] {1, 2});
+            System.out.println("3. Torn record at the end of the log ignored: " + (torn ? "PASS" : "FAIL"));
+
+            // 4. Concurrent pushes share fsyncs
+            int threads = 16, pushes = 200;
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String clientId = "g" + t;
+                CalculatorImplementation target = calc;
+                workers.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < pushes; i++) target.pushValue(clientId, i);
+                    } catch (Exception e) {
+                        System.out.println("   push failed: " + e);
+                    }
+                }));
+            }
+            for (Thread w : workers) w.start();
+            for (Thread w : workers) w.join();
+            long records = calc.getStore().getRecordCount();
+            long batches = calc.getStore().getBatchCount();
+            calc.shutdown();
+            calc = open(dir);
+            boolean all = true;
+            for (int t = 0; t < threads; t++) {
+                all &= calc.size("g" + t) == pushes;
+            }
+            boolean grouped = records >= threads * pushes && batches < records;
+            System.out.println("4. Concurrent pushes recovered: " + (all ? "PASS" : "FAIL")
+                    + ", group commit: " + (grouped ? "PASS" : "FAIL")
+                    + " (" + records + " records in " + batches + " fsyncs)");
+
+            // 5. Long clientIds
+            String tooLong = "x".repeat(70_000);
+            String longest = "y".repeat(WriteAheadLog.MAX_CLIENT_ID);
+            boolean rejected;
+            try {
+                calc.pushValue(tooLong, 1);
+                rejected = false;
+            } catch (RemoteException e) {
+                rejected = true;
+            }
+            calc.pushValue(longest, 1);
+            calc.snapshot();
+            calc.pushValue(longest, 2);
+            calc.shutdown();
+            calc = open(dir);
+            boolean restarted = Arrays.equals(stack(calc, longest), new int[] {1, 2}) && calc.isEmpty(tooLong);
+            calc.shutdown();
+            System.out.println("5. Over-long clientId rejected: " + (rejected ? "PASS" : "FAIL")
+                    + ", restart with the longest clientId: " + (restarted ? "PASS" : "FAIL"));
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    private static CalculatorImplementation open(Path dir) throws IOException {
+        return new CalculatorImplementation(new CalculatorConfig().setPersistenceDir(dir.toString()));
+    }
+
+    // Values of a client stack from bottom to top; pops them all
+    private static int[] stack(CalculatorImplementation calc, String clientId) throws IOException {
+        int[] values = new int[calc.size(clientId)];
+        for (int i = values.length - 1; i >= 0; i--) {
+            values[i] = calc.pop(clientId);
+        }
+        return values;
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "wal-*.log")) {
+            files.forEach(result::add);
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,22 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/*
+  PopCallback is exported by a client and passed to Calculator.delayPopAsync.
+  The server calls back exactly one of the two methods once the delay has passed.
+ */
+public interface PopCallback extends Remote {
+    /*
+      Called with the value popped after the delay.
+      @param val the popped integer value
+      @throws RemoteException if remote communication fails
+     */
+    void popped(int val) throws RemoteException;
+
+    /*
+      Called instead of popped when the pop failed (such as an empty stack).
+      @param message the reason of the failure
+      @throws RemoteException if remote communication fails
+     */
+    void failed(String message) throws RemoteException;
+}
@@ -0,0 +1,14 @@
+/*
+  PopTimeoutException is thrown by Calculator.awaitPop when no value was pushed
+  to the client's stack before the timeout expired.
+  It is a checked application exception rather than a RemoteException: RMI wraps
+  RemoteExceptions thrown by the server in a ServerException, while declared
+  application exceptions reach the client as they are and can be caught on their own.
+ */
+public class PopTimeoutException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public PopTimeoutException(String message) {
+        super(message);
+    }
+}
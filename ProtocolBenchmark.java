@@ -0,0 +1,127 @@
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ProtocolBenchmark {
+    /*
+      Side-by-side throughput of the two front ends on localhost: RMI (CalculatorServer) and the
+      binary protocol (BinaryCalculatorServer), serving one in-process CalculatorImplementation.
+      Both go through loopback TCP; only the protocol differs.
+
+      Inputs:
+        - args[0] (optional): comma-separated thread counts, default 1,4,16
+        - args[1] (optional): milliseconds per measurement, default 3000
+        - args[2] (optional): requests in flight per connection when pipelining, default 64
+
+      Outputs:
+        - pushValue/pop pairs per second for each thread count over:
+            rmi       one blocking RMI call after another
+            rmi-session the same RMI calls with a session handle (Calculator.openSession) instead of the clientId
+            binary    one blocking binary call after another (one connection per thread)
+            pipelined the same calls sent in batches of the pipeline depth, one flush per batch
+
+      Special cases:
+        - Each thread uses its own UUID-length clientId, like CalculatorClient, so stack locks do not contend.
+        - The RMI registry is created on a free port and the server log is off.
+     */
+    public static void main(String[] args) throws Exception {
+        String threadList = args.length > 0 ? args[0] : "1,4,16";
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 3000;
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        System.setProperty("calculator.log", "off");
+        int[] threadCounts = java.util.Arrays.stream(threadList.split(",")).mapToInt(Integer::parseInt).toArray();
+
+        CalculatorImplementation calc = new CalculatorImplementation(new CalculatorConfig().setMetricsEnabled(false));
+        int rmiPort = 20000 + (int) (ProcessHandle.current().pid() % 10000);
+        Registry registry = LocateRegistry.createRegistry(rmiPort);
+        registry.bind("Calculator", calc);
+        Calculator rmi = (Calculator) LocateRegistry.getRegistry("localhost", rmiPort).lookup("Calculator");
+        BinaryCalculatorServer binary = new BinaryCalculatorServer(calc, 0);
+        try {
+            System.out.printf("%-12s %8s %16s%n", "protocol", "threads", "push+pop/s");
+            for (String mode : new String[] {"rmi", "rmi-session", "binary", "pipelined"}) {
+                for (int threads : threadCounts) {
+                    double rate = run(threads, millis, t -> {
+                        String clientId = "protocol-" + mode + "-" + t + "-" + java.util.UUID.randomUUID();
+                        if (mode.equals("rmi")) {
+                            return () -> {
+                                rmi.pushValue(clientId, t);
+                                rmi.pop(clientId);
+                                return 1;
+                            };
+                        }
+                        if (mode.equals("rmi-session")) {
+                            long session = rmi.openSession(clientId);
+                            return () -> {
+                                rmi.pushValue(session, t);
+                                rmi.pop(session);
+                                return 1;
+                            };
+                        }
+                        BinaryCalculatorClient client = new BinaryCalculatorClient("localhost", binary.getPort());
+                        int handle = client.open(clientId);
+                        if (mode.equals("binary")) {
+                            return () -> {
+                                client.pushValue(handle, t);
+                                client.pop(handle);
+                                return 1;
+                            };
+                        }
+                        return () -> {
+                            CompletableFuture<Integer> last = null;
+                            for (int i = 0; i < depth / 2; i++) {
+                                client.pushValueAsync(handle, i);
+                                last = client.popAsync(handle);
+                            }
+                            client.flush();
+                            last.get();
+                            return depth / 2;
+                        };
+                    });
+                    System.out.printf("%-12s %8d %16.0f%n", mode, threads, rate);
+                }
+            }
+        } finally {
+            binary.close();
+            registry.unbind("Calculator");
+            java.rmi.server.UnicastRemoteObject.unexportObject(registry, true);
+            calc.shutdown();
+        }
+    }
+
+    private interface Body {
+        // One round; returns the push+pop pairs it made
+        int run() throws Exception;
+    }
+
+    private interface Setup {
+        Body create(int thread) throws Exception;
+    }
+
+    // Pairs per second over all threads, after a warmup of a quarter of the time
+    private static double run(int threads, long millis, Setup setup) throws Exception {
+        LongAdder pairs = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long warmupEnd = System.currentTimeMillis() + millis / 4;
+        long end = warmupEnd + millis;
+        for (int t = 0; t < threads; t++) {
+            Body body = setup.create(t);
+            new Thread(() -> {
+                try {
+                    while (System.currentTimeMillis() < warmupEnd) body.run();
+                    long n = 0;
+                    while (System.currentTimeMillis() < end) n += body.run();
+                    pairs.add(n);
+                } catch (Exception e) {
+                    System.out.println("benchmark thread failed: " + e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        return pairs.sum() * 1000.0 / millis;
+    }
+}
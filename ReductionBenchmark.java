@@ -0,0 +1,106 @@
+import java.util.Stack;
+
+public class ReductionBenchmark {
+    /*
+      In-process benchmark of the pushOperation reductions, without RMI.
+      Compares the previous Stack<Integer> approach (stream().min/max, pop-by-pop gcd/lcm, clear)
+      against IntStack + Reductions (one pass over the backing int[] and an O(1) replace).
+
+      Inputs:
+        - args[0] (optional): largest stack depth as a power of ten, default 7 (10 .. 10^7)
+
+      Outputs:
+        - One line per depth and operator: average ns per reduction for both versions and the speedup.
+
+      Special cases:
+        - Values are multiples of 6 built from {1,2,3,4,6,12}, so gcd never reaches 1 early
+          and lcm stays at 12 without overflow: both versions walk the whole stack.
+        - Refilling the stack between runs is not measured.
+     */
+    public static void main(String[] args) {
+        int maxExponent = args.length > 0 ? Integer.parseInt(args[0]) : 7;
+        String[] operators = {"min", "max", "gcd", "lcm"};
+        int[] pattern = {6, 12, 6, 12, 6, 12, 12, 6};
+
+        // Results are summed into a checksum so the JIT cannot drop the reductions
+        long checksum = 0;
+        System.out.printf("%-10s %-4s %16s %16s %9s%n", "depth", "op", "Stack ns/op", "IntStack ns/op", "speedup");
+        for (int exponent = 1; exponent <= maxExponent; exponent++) {
+            int depth = (int) Math.pow(10, exponent);
+            int[] values = new int[depth];
+            for (int i = 0; i < depth; i++) values[i] = pattern[i % pattern.length];
+            // Fewer runs for deep stacks, with a floor so every depth gets a stable average
+            int runs = Math.max(5, Math.min(2000, 20_000_000 / depth));
+
+            for (String op : operators) {
+                long legacyNanos = 0, primitiveNanos = 0;
+                for (int r = 0; r < runs * 2; r++) {
+                    Stack<Integer> legacy = new Stack<>();
+                    for (int v : values) legacy.push(v);
+                    long start = System.nanoTime();
+                    checksum += legacyReduce(legacy, op);
+                    long elapsed = System.nanoTime() - start;
+                    // First half of the runs is warmup
+                    if (r >= runs) legacyNanos += elapsed;
+
+                    IntStack stack = new IntStack();
+                    stack.pushAll(values);
+                    start = System.nanoTime();
+                    checksum += reduce(stack, op);
+                    elapsed = System.nanoTime() - start;
+                    if (r >= runs) primitiveNanos += elapsed;
+                }
+                double legacyAvg = (double) legacyNanos / runs;
+                double primitiveAvg = (double) primitiveNanos / runs;
+                System.out.printf("%-10d %-4s %16.0f %16.0f %8.1fx%n", depth, op, legacyAvg, primitiveAvg,
+                        legacyAvg / primitiveAvg);
+            }
+        }
+        System.out.println("checksum: " + checksum);
+    }
+
+    // The reduction pushOperation runs now
+    private static int reduce(IntStack stack, String op) {
+        int[] values = stack.elements();
+        int size = stack.size();
+        int result;
+        switch (op) {
+            case "min": result = Reductions.min(values, 0, size); break;
+            case "max": result = Reductions.max(values, 0, size); break;
+            case "gcd": result = Reductions.gcd(values, 0, size); break;
+            default: result = Reductions.lcm(values, 0, size); break;
+        }
+        stack.replaceWith(result);
+        return result;
+    }
+
+    // The reduction pushOperation ran on Stack<Integer> before IntStack
+    private static int legacyReduce(Stack<Integer> stack, String op) {
+        int result;
+        switch (op) {
+            case "min": result = stack.stream().min(Integer::compare).get(); break;
+            case "max": result = stack.stream().max(Integer::compare).get(); break;
+            case "gcd":
+                result = stack.pop();
+                while (!stack.isEmpty()) result = legacyGcd(result, stack.pop());
+                break;
+            default:
+                result = stack.pop();
+                while (!stack.isEmpty()) result = legacyLcm(result, stack.pop());
+                break;
+        }
+        stack.clear();
+        stack.push(result);
+        return result;
+    }
+
+    // Recursive gcd the server used before Reductions
+    private static int legacyGcd(int a, int b) {
+        return b == 0 ? Math.abs(a) : legacyGcd(b, a % b);
+    }
+
+    // 32-bit lcm the server used before Reductions
+    private static int legacyLcm(int a, int b) {
+        return Math.abs(a * b) / legacyGcd(a, b);
+    }
+}
@@ -0,0 +1,415 @@
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+  Reductions folds a range of a primitive int array into one value.
+  Each method walks values[from, to) once and allocates nothing (except the BigInteger modes
+  and median, which sorts a copy), so pushOperation can run directly over an IntStack's
+  backing storage. OperatorRegistry maps operator names to these reductions.
+
+  Inputs:
+    - values: the backing array, from: first index (inclusive), to: last index (exclusive).
+    - The range must not be empty.
+
+  Special cases:
+    - A single-value range reduces to that value unchanged (except for popcount).
+    - gcd and lcm are computed in 64-bit arithmetic; the int versions throw ArithmeticException
+      instead of silently overflowing when the result does not fit in an int.
+    - lcm with a zero operand is 0.
+    - lcmParallel and lcmBigParallel split very deep ranges into chunks reduced on a ForkJoinPool;
+      they return (or throw) exactly what the sequential versions do.
+ */
+public final class Reductions {
+
+    private Reductions() {
+    }
+
+    // Smallest value in the range
+    public static int min(int[] values, int from, int to) {
+        int result = values[from];
+        for (int i = from + 1; i < to; i++) {
+            int v = values[i];
+            if (v < result) {
+                result = v;
+            }
+        }
+        return result;
+    }
+
+    // Largest value in the range
+    public static int max(int[] values, int from, int to) {
+        int result = values[from];
+        for (int i = from + 1; i < to; i++) {
+            int v = values[i];
+            if (v > result) {
+                result = v;
+            }
+        }
+        return result;
+    }
+
+    /*
+      Greatest common divisor of the range as an int.
+      @throws ArithmeticException if the gcd is 2^31 (only for Integer.MIN_VALUE and zeros)
+     */
+    public static int gcd(int[] values, int from, int to) {
+        return Math.toIntExact(gcdLong(values, from, to));
+    }
+
+    /*
+      Greatest common divisor of the range.
+      Stops early once the running gcd reaches 1, since no later value can change it.
+     */
+    public static long gcdLong(int[] values, int from, int to) {
+        long result = values[from];
+        for (int i = from + 1; i < to && result != 1; i++) {
+            result = gcd(result, values[i]);
+        }
+        return result;
+    }
+
+    /*
+      Least common multiple of the range as an int.
+      @throws ArithmeticException as soon as the running lcm no longer fits in an int
+     */
+    public static int lcm(int[] values, int from, int to) {
+        long result = values[from];
+        for (int i = from + 1; i < to && result != 0; i++) {
+            result = lcm(result, values[i]);
+            if (result > Integer.MAX_VALUE) {
+                throw new ArithmeticException("lcm overflows int");
+            }
+        }
+        return (int) result;
+    }
+
+    /*
+      Least common multiple of the range as a long.
+      @throws ArithmeticException if the lcm does not fit in a long
+     */
+    public static long lcmLong(int[] values, int from, int to) {
+        long result = values[from];
+        for (int i = from + 1; i < to && result != 0; i++) {
+            result = lcm(result, values[i]);
+        }
+        return result;
+    }
+
+    /*
+      Least common multiple of the range, exact for any size.
+      Runs in long arithmetic and only switches to BigInteger once the running lcm overflows a long.
+     */
+    public static BigInteger lcmBig(int[] values, int from, int to) {
+        long result = values[from];
+        int i = from + 1;
+        try {
+            for (; i < to && result != 0; i++) {
+                result = lcm(result, values[i]);
+            }
+            return BigInteger.valueOf(result);
+        } catch (ArithmeticException overflow) {
+            // values[i] did not fit; continue from it in BigInteger
+            BigInteger big = BigInteger.valueOf(result);
+            for (; i < to && big.signum() != 0; i++) {
+                BigInteger b = BigInteger.valueOf(values[i]).abs();
+                if (b.signum() == 0) {
+                    return BigInteger.ZERO;
+                }
+                big = big.divide(big.gcd(b)).multiply(b);
+            }
+            return big;
+        }
+    }
+
+    // Sum of the range; cannot overflow a long (at most 2^31 values of at most 2^31 each)
+    public static long sum(int[] values, int from, int to) {
+        long result = 0;
+        for (int i = from; i < to; i++) {
+            result += values[i];
+        }
+        return result;
+    }
+
+    /*
+      Product of the range as a long. Stops at the first zero.
+      @throws ArithmeticException as soon as the running product no longer fits in a long
+     */
+    public static long productLong(int[] values, int from, int to) {
+        long result = 1;
+        for (int i = from; i < to && result != 0; i++) {
+            result = Math.multiplyExact(result, values[i]);
+        }
+        return result;
+    }
+
+    /*
+      Product of the range, exact for any size.
+      Runs in long arithmetic and only switches to BigInteger once the running product overflows a long.
+     */
+    public static BigInteger productBig(int[] values, int from, int to) {
+        long result = 1;
+        int i = from;
+        for (; i < to && result != 0; i++) {
+            long next = result * values[i];
+            if (Math.multiplyHigh(result, values[i]) != (next >> 63)) {
+                break;
+            }
+            result = next;
+        }
+        if (i == to || result == 0) {
+            return BigInteger.valueOf(result);
+        }
+        BigInteger big = BigInteger.valueOf(result);
+        for (; i < to && big.signum() != 0; i++) {
+            big = big.multiply(BigInteger.valueOf(values[i]));
+        }
+        return big;
+    }
+
+    // Bitwise exclusive or of the range
+    public static int xor(int[] values, int from, int to) {
+        int result = 0;
+        for (int i = from; i < to; i++) {
+            result ^= values[i];
+        }
+        return result;
+    }
+
+    // Total number of one bits over the range (two's complement, so -1 counts 32)
+    public static long popcount(int[] values, int from, int to) {
+        long result = 0;
+        for (int i = from; i < to; i++) {
+            result += Integer.bitCount(values[i]);
+        }
+        return result;
+    }
+
+    /*
+      Median of the range: the middle value, or for an even count the mean of the two middle
+      values rounded down. Sorts a copy of the range, so it is O(n log n) and allocates n ints.
+     */
+    public static int median(int[] values, int from, int to) {
+        int[] sorted = Arrays.copyOfRange(values, from, to);
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        if ((n & 1) == 1) {
+            return sorted[n / 2];
+        }
+        return (int) Math.floorDiv((long) sorted[n / 2 - 1] + sorted[n / 2], 2);
+    }
+
+    // Smallest chunk a parallel reduction hands to one task
+    static final int MIN_PARALLEL_CHUNK = 1 << 14;
+
+    /*
+      Least common multiple of the range, reduced in parallel on pool.
+      Same result and exceptions as lcm (limit Integer.MAX_VALUE) or lcmLong (limit Long.MAX_VALUE):
+      the sequential fold throws as soon as the running lcm exceeds the limit and stops at the
+      first zero operand, so each chunk reports its lcm up to its first zero and whether that overflowed,
+      and chunks are combined left to right with the same rules.
+      @param limit largest allowed result, Integer.MAX_VALUE or Long.MAX_VALUE
+      @throws ArithmeticException if the running lcm exceeds limit before a zero operand
+     */
+    public static long lcmParallel(int[] values, int from, int to, long limit, ForkJoinPool pool) {
+        if (to - from <= MIN_PARALLEL_CHUNK) {
+            return limit == Integer.MAX_VALUE ? lcm(values, from, to) : lcmLong(values, from, to);
+        }
+        LcmChunk total = pool.invoke(new LcmTask(values, from, to, limit, chunkSize(to - from, pool)));
+        if (total.overflow) {
+            throw new ArithmeticException("lcm overflows " + (limit == Integer.MAX_VALUE ? "int" : "long"));
+        }
+        return total.zero ? 0 : total.lcm;
+    }
+
+    /*
+      Least common multiple of the range, exact for any size, reduced in parallel on pool.
+      Same result as lcmBig.
+     */
+    public static BigInteger lcmBigParallel(int[] values, int from, int to, ForkJoinPool pool) {
+        if (to - from <= MIN_PARALLEL_CHUNK) {
+            return lcmBig(values, from, to);
+        }
+        return pool.invoke(new LcmBigTask(values, from, to, chunkSize(to - from, pool)));
+    }
+
+    // About four chunks per worker, so an uneven split still keeps every worker busy
+    private static int chunkSize(int length, ForkJoinPool pool) {
+        return Math.max(MIN_PARALLEL_CHUNK, length / (4 * pool.getParallelism()));
+    }
+
+    /*
+      Summary of a chunk for lcmParallel: the lcm of its values before its first zero
+      (count of them), whether a zero follows, and whether that lcm exceeded the limit.
+      A single value is kept as its absolute value; only a whole range of one value keeps its sign,
+      and lcmParallel never reduces such a range in parallel.
+     */
+    private static final class LcmChunk {
+        final long lcm;
+        final int count;
+        final boolean zero;
+        final boolean overflow;
+
+        LcmChunk(long lcm, int count, boolean zero, boolean overflow) {
+            this.lcm = lcm;
+            this.count = count;
+            this.zero = zero;
+            this.overflow = overflow;
+        }
+
+        // The chunk made of this one followed by next
+        LcmChunk then(LcmChunk next, long limit) {
+            // The sequential fold never gets past a zero or an overflow
+            if (zero || overflow) {
+                return this;
+            }
+            if (next.overflow) {
+                return next;
+            }
+            // next starts with a zero: the fold stops right there
+            if (next.count == 0) {
+                return new LcmChunk(lcm, count, true, false);
+            }
+            long combined;
+            try {
+                combined = lcm(lcm, next.lcm);
+            } catch (ArithmeticException e) {
+                return new LcmChunk(0, count + next.count, next.zero, true);
+            }
+            return new LcmChunk(combined, count + next.count, next.zero, combined > limit);
+        }
+    }
+
+    private static final class LcmTask extends RecursiveTask<LcmChunk> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] values;
+        private final int from, to, chunk;
+        private final long limit;
+
+        LcmTask(int[] values, int from, int to, long limit, int chunk) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+            this.limit = limit;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected LcmChunk compute() {
+            if (to - from <= chunk) {
+                return leaf();
+            }
+            int mid = (from + to) >>> 1;
+            LcmTask right = new LcmTask(values, mid, to, limit, chunk);
+            right.fork();
+            LcmChunk left = new LcmTask(values, from, mid, limit, chunk).compute();
+            return left.then(right.join(), limit);
+        }
+
+        // Sequential fold of the chunk up to its first zero, recording overflow instead of throwing
+        private LcmChunk leaf() {
+            long result = 0;
+            int i = from;
+            for (; i < to; i++) {
+                int v = values[i];
+                if (v == 0) {
+                    return new LcmChunk(result, i - from, true, false);
+                }
+                if (i == from) {
+                    result = Math.abs((long) v);
+                    continue;
+                }
+                try {
+                    result = lcm(result, v);
+                } catch (ArithmeticException e) {
+                    return new LcmChunk(0, i - from, false, true);
+                }
+                if (result > limit) {
+                    return new LcmChunk(0, i - from, false, true);
+                }
+            }
+            return new LcmChunk(result, to - from, false, false);
+        }
+    }
+
+    private static final class LcmBigTask extends RecursiveTask<BigInteger> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] values;
+        private final int from, to, chunk;
+
+        LcmBigTask(int[] values, int from, int to, int chunk) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected BigInteger compute() {
+            if (to - from <= chunk) {
+                return lcmBig(values, from, to).abs();
+            }
+            int mid = (from + to) >>> 1;
+            LcmBigTask right = new LcmBigTask(values, mid, to, chunk);
+            right.fork();
+            BigInteger left = new LcmBigTask(values, from, mid, chunk).compute();
+            BigInteger rest = right.join();
+            // A zero anywhere makes the lcm 0
+            if (left.signum() == 0 || rest.signum() == 0) {
+                return BigInteger.ZERO;
+            }
+            return left.divide(left.gcd(rest)).multiply(rest);
+        }
+    }
+
+    /*
+     Calculate the Greatest Common Divisor (gcd) of two integers with the iterative binary (Stein's) algorithm.
+     It only uses shifts and subtraction, and strips common factors of two with numberOfTrailingZeros.
+     @param a first integer, must not be Long.MIN_VALUE
+     @param b second integer, must not be Long.MIN_VALUE
+     @return the gcd of |a| and |b|, 0 if both are 0
+    */
+    static long gcd(long a, long b) {
+        a = Math.abs(a);
+        b = Math.abs(b);
+        if (a == 0) {
+            return b;
+        }
+        if (b == 0) {
+            return a;
+        }
+        int shift = Long.numberOfTrailingZeros(a | b);
+        a >>= Long.numberOfTrailingZeros(a);
+        do {
+            b >>= Long.numberOfTrailingZeros(b);
+            if (a > b) {
+                long t = b;
+                b = a;
+                a = t;
+            }
+            b -= a;
+        } while (b != 0);
+        return a << shift;
+    }
+
+    /*
+    Calculate the Least Common Multiple (lcm) of two integers.
+    The lcm is the smallest positive integer that is divisible by both numbers.
+    Uses lcm(a,b) = |a| / gcd(a,b) * |b|, dividing first so only the result itself can overflow.
+    @param a first integer
+    @param b second integer
+    @return the lcm of a and b, 0 if either is 0
+    @throws ArithmeticException if the lcm does not fit in a long
+    */
+    static long lcm(long a, long b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        a = Math.abs(a);
+        b = Math.abs(b);
+        return Math.multiplyExact(a / gcd(a, b), b);
+    }
+}
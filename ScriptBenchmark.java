@@ -0,0 +1,124 @@
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class ScriptBenchmark {
+    /*
+      Compares the chatty one-call-per-step pattern against a single executeScript call
+      on a running Calculator RMI service.
+
+      Workloads:
+        - "push/pop": the EdgeStressTest section 7 loop (push i, pop) repeated 1000 times.
+        - "push N + gcd + pop": push 1000 values, pushOperation(gcd), pop.
+          Also run chatty through a BufferedCalculator, which sends the pushes as one batch.
+
+      Inputs:
+        - args[0] (optional): number of measured rounds per workload, default 20
+        - connects to localhost RMI registry at port 1099
+      
+      Outputs:
+        - Average time per round for each pattern and the speedup of the script (or buffered) version.
+        - A PASS/FAIL line per workload checking both patterns returned the same values.
+
+      Special cases:
+        - The first rounds are run as warmup and not measured.
+     */
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int warmup = Math.max(1, rounds / 4);
+
+        Registry registry = LocateRegistry.getRegistry("localhost", 1099);
+        Calculator calc = (Calculator) registry.lookup("Calculator");
+        String clientId = "ScriptBenchmark-" + UUID.randomUUID();
+
+        System.out.println("Script vs chatty call benchmark (" + rounds + " rounds)");
+
+        // Workload 1: EdgeStressTest section 7, push then pop 1000 times
+        final int iterations = 1000;
+        List<Command> pushPopScript = new ArrayList<>();
+        for (int i = 0; i < iterations; i++) {
+            pushPopScript.add(Command.push(i));
+            pushPopScript.add(Command.pop());
+        }
+        long chatty = 0, script = 0;
+        boolean same = true;
+        for (int r = 0; r < warmup + rounds; r++) {
+            long start = System.nanoTime();
+            long sum = 0;
+            for (int i = 0; i < iterations; i++) {
+                calc.pushValue(clientId, i);
+                sum += calc.pop(clientId);
+            }
+            long mid = System.nanoTime();
+            ScriptResult result = calc.executeScript(clientId, pushPopScript);
+            long end = System.nanoTime();
+            long scriptSum = 0;
+            for (int v : result.getResults()) scriptSum += v;
+            same &= result.isComplete() && sum == scriptSum;
+            if (r >= warmup) {
+                chatty += mid - start;
+                script += end - mid;
+            }
+        }
+        report("push/pop x" + iterations, "script", chatty, script, rounds, same);
+
+        // Workload 2: push N values, gcd, pop
+        final int values = 1000;
+        List<Command> gcdScript = new ArrayList<>();
+        for (int i = 1; i <= values; i++) gcdScript.add(Command.push(i * 6));
+        gcdScript.add(Command.operation("gcd"));
+        gcdScript.add(Command.pop());
+        chatty = 0;
+        script = 0;
+        same = true;
+        for (int r = 0; r < warmup + rounds; r++) {
+            long start = System.nanoTime();
+            for (int i = 1; i <= values; i++) calc.pushValue(clientId, i * 6);
+            calc.pushOperation(clientId, "gcd");
+            int gcd = calc.pop(clientId);
+            long mid = System.nanoTime();
+            ScriptResult result = calc.executeScript(clientId, gcdScript);
+            long end = System.nanoTime();
+            same &= result.isComplete() && result.getResults()[0] == gcd && gcd == 6;
+            if (r >= warmup) {
+                chatty += mid - start;
+                script += end - mid;
+            }
+        }
+        report("push " + values + " + gcd + pop", "script", chatty, script, rounds, same);
+
+        // Workload 2 again, the chatty calls unchanged but through a write-behind proxy
+        BufferedCalculator buffered = new BufferedCalculator(calc);
+        chatty = 0;
+        long bufferedNanos = 0;
+        same = true;
+        for (int r = 0; r < warmup + rounds; r++) {
+            long start = System.nanoTime();
+            for (int i = 1; i <= values; i++) calc.pushValue(clientId, i * 6);
+            calc.pushOperation(clientId, "gcd");
+            int gcd = calc.pop(clientId);
+            long mid = System.nanoTime();
+            for (int i = 1; i <= values; i++) buffered.pushValue(clientId, i * 6);
+            buffered.pushOperation(clientId, "gcd");
+            int bufferedGcd = buffered.pop(clientId);
+            long end = System.nanoTime();
+            same &= gcd == 6 && bufferedGcd == 6;
+            if (r >= warmup) {
+                chatty += mid - start;
+                bufferedNanos += end - mid;
+            }
+        }
+        buffered.close();
+        report("push " + values + " + gcd + pop", "buffered", chatty, bufferedNanos, rounds, same);
+    }
+
+    // Print average ms per round for both patterns and the speedup
+    private static void report(String name, String pattern, long chattyNanos, long scriptNanos, int rounds, boolean same) {
+        double chattyMs = chattyNanos / 1e6 / rounds;
+        double scriptMs = scriptNanos / 1e6 / rounds;
+        System.out.printf("%-24s chatty: %9.3f ms/round   %8s: %8.3f ms/round   speedup: %6.1fx   %s%n",
+                name, chattyMs, pattern, scriptMs, chattyMs / scriptMs, same ? "PASS" : "FAIL");
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.Serializable;
+
+/*
+  ScriptResult is the single reply frame returned by Calculator.executeScript.
+  It holds, in script order, one int per pop (the popped value) and per isEmpty
+  (1 for empty, 0 for not empty) command that ran.
+
+  Special cases:
+    - If a step fails (such as pop on an empty stack), the steps before it stay applied,
+      the failing step has no effect and the remaining steps are not run.
+      getCompletedSteps() then tells how many steps ran and getError() why the next one failed.
+ */
+public final class ScriptResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] results;
+    private final int completedSteps;
+    private final int totalSteps;
+    private final String error;
+
+    public ScriptResult(int[] results, int completedSteps, int totalSteps, String error) {
+        this.results = results;
+        this.completedSteps = completedSteps;
+        this.totalSteps = totalSteps;
+        this.error = error;
+    }
+
+    // Pop values and isEmpty answers (1/0) in script order
+    public int[] getResults() {
+        return results.clone();
+    }
+
+    public int getCompletedSteps() {
+        return completedSteps;
+    }
+
+    public int getTotalSteps() {
+        return totalSteps;
+    }
+
+    // true when every step of the script ran
+    public boolean isComplete() {
+        return error == null;
+    }
+
+    // Index of the step that failed, or -1 if the script completed
+    public int getFailedStep() {
+        return error == null ? -1 : completedSteps;
+    }
+
+    // Failure message of the failed step, or null if the script completed
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "ScriptResult[" + completedSteps + "/" + totalSteps + " steps, " + results.length + " result(s)"
+                + (error == null ? "" : ", failed: " + error) + "]";
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+  ServerLog is the server's asynchronous, level-gated log.
+  Callers append lines to a lock-free ring buffer and a background writer thread
+  prints them to System.out in batches, so no call ever waits on the stdout monitor.
+
+  Usage:
+    if (ServerLog.INFO) ServerLog.info("Client " + clientId + ": Pushed value: " + val);
+  INFO and WARN are constants fixed at startup, so when a level is disabled the JIT
+  removes the whole statement, including the string concatenation.
+
+  Settings (system property calculator.log):
+    - off:  no server log at all
+    - warn: only failures (empty stack, invalid operator, unreachable callback)
+    - info: every call, like the original println output (default)
+
+  Special cases:
+    - When the buffer is full, new lines are dropped and counted instead of blocking the caller.
+    - Pending lines are written by a shutdown hook when the JVM exits.
+ */
+public final class ServerLog {
+
+    public static final boolean WARN;
+    public static final boolean INFO;
+
+    static {
+        String level = System.getProperty("calculator.log", "info").trim().toLowerCase();
+        INFO = level.equals("info");
+        WARN = INFO || level.equals("warn");
+    }
+
+    // Ring buffer capacity, a power of two
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+
+    // Largest number of lines printed in one write
+    private static final int BATCH = 1024;
+
+    private static final AtomicReferenceArray<String> SLOTS = new AtomicReferenceArray<>(CAPACITY);
+
+    // Next slot to claim (producers) and next slot to drain (writer)
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static volatile long head;
+
+    private static final LongAdder DROPPED = new LongAdder();
+
+    static {
+        if (WARN) {
+            Thread writer = new Thread(ServerLog::drainLoop, "calculator-log-writer");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(ServerLog::flush, "calculator-log-flush"));
+        }
+    }
+
+    private ServerLog() {
+    }
+
+    // Log a per-call line; check INFO before building the message
+    public static void info(String message) {
+        if (INFO) {
+            append(message);
+        }
+    }
+
+    // Log a failure line; check WARN before building the message
+    public static void warn(String message) {
+        if (WARN) {
+            append(message);
+        }
+    }
+
+    // Lines dropped because the buffer was full
+    public static long getDroppedCount() {
+        return DROPPED.sum();
+    }
+
+    // Claim the next slot with a CAS on the tail and publish the line into it
+    private static void append(String message) {
+        long tail;
+        do {
+            tail = TAIL.get();
+            if (tail - head >= CAPACITY) {
+                DROPPED.increment();
+                return;
+            }
+        } while (!TAIL.compareAndSet(tail, tail + 1));
+        SLOTS.lazySet((int) (tail & MASK), message);
+    }
+
+    private static void drainLoop() {
+        StringBuilder batch = new StringBuilder(16 * 1024);
+        while (true) {
+            if (drain(batch) == 0) {
+                LockSupport.parkNanos(1_000_000L);
+            }
+        }
+    }
+
+    /*
+      Print up to BATCH published lines with a single write.
+      Only the writer thread and the shutdown hook call it, never at the same time.
+      @return the number of lines printed
+     */
+    private static synchronized int drain(StringBuilder batch) {
+        long next = head;
+        int count = 0;
+        while (count < BATCH) {
+            int index = (int) (next & MASK);
+            String message = SLOTS.get(index);
+            if (message == null) {
+                // Not claimed yet, or claimed but not published yet
+                break;
+            }
+            SLOTS.lazySet(index, null);
+            batch.append(message).append(System.lineSeparator());
+            next++;
+            count++;
+        }
+        if (count > 0) {
+            head = next;
+            PrintStream out = System.out;
+            out.print(batch);
+            out.flush();
+            batch.setLength(0);
+        }
+        return count;
+    }
+
+    // Write everything published so far
+    public static void flush() {
+        StringBuilder batch = new StringBuilder();
+        while (drain(batch) > 0) {
+            // keep draining
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.rmi.RemoteException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+  SessionTable maps the long session handles of Calculator.openSession to their clientId and stack.
+  A call with a handle indexes straight into an array instead of hashing and comparing the
+  clientId string in the client map.
+
+  Handles: the low 24 bits are the slot, the next 7 bits count how often the slot was reused, and
+  the 32 bits above them are a random tag from a SecureRandom. A handle is a capability for its
+  client's stack, like an unguessable clientId: without the tag, trying 0, 1, 2, ... would reach
+  other clients' sessions. A lookup compares the whole handle, so a closed handle, or a guessed
+  one, is rejected instead of reaching the session that took its slot. Handles are never negative.
+
+  Special cases:
+    - Lookups take no lock; open, close and sweep are synchronized.
+    - A session caches its stack. When idle eviction retires that stack, the next call looks the
+      clientId up again; the sweeper (sweep) closes sessions whose stack was retired and not
+      looked up since, so a session that is never closed lives as long as an idle stack would.
+      Pinned sessions are skipped by the sweeper: their owner (a binary protocol connection)
+      closes them itself.
+ */
+final class SessionTable {
+
+    private static final int INDEX_BITS = 24;
+    private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+    private static final int REUSE_MASK = 0x7f;
+    private static final int TAG_SHIFT = 31;
+
+    private final SecureRandom random = new SecureRandom();
+
+    static final class Session {
+        final long handle;
+        final String clientId;
+        final boolean pinned;
+        // Last stack seen for clientId; replaced when it is retired
+        volatile IntStack stack;
+
+        Session(long handle, String clientId, boolean pinned, IntStack stack) {
+            this.handle = handle;
+            this.clientId = clientId;
+            this.pinned = pinned;
+            this.stack = stack;
+        }
+    }
+
+    private volatile AtomicReferenceArray<Session> slots = new AtomicReferenceArray<>(64);
+
+    // Guarded by this
+    private int[] reuse = new int[64];
+    private int[] free = new int[64];
+    private int freeCount;
+    private int used;     // slots ever handed out
+    private int open;
+
+    /*
+      Open a session for clientId, whose stack is stack; pinned sessions are never swept.
+      @throws RemoteException if all 16M slots are in use
+     */
+    synchronized Session open(String clientId, boolean pinned, IntStack stack) throws RemoteException {
+        int index;
+        if (freeCount > 0) {
+            index = free[--freeCount];
+        } else {
+            if (used > INDEX_MASK) {
+                throw new LimitExceededException("Client " + clientId + ": " + "Too many open sessions !!");
+            }
+            index = used++;
+            if (index == slots.length()) {
+                grow();
+            }
+        }
+        long tag = random.nextInt() & 0xffffffffL;
+        Session session = new Session(tag << TAG_SHIFT | reuse[index] << INDEX_BITS | index, clientId, pinned, stack);
+        slots.set(index, session);
+        open++;
+        return session;
+    }
+
+    /*
+      The open session of handle.
+      @throws RemoteException if the handle was never opened or has been closed
+     */
+    Session get(long handle) throws RemoteException {
+        AtomicReferenceArray<Session> current = slots;
+        int index = (int) handle & INDEX_MASK;
+        Session session = handle >= 0 && index < current.length() ? current.get(index) : null;
+        if (session == null || session.handle != handle) {
+            throw new RemoteException("Unknown or closed session " + handle + " !!");
+        }
+        return session;
+    }
+
+    // Close the session of handle; false if it was not open
+    synchronized boolean close(long handle) {
+        int index = (int) handle & INDEX_MASK;
+        if (handle < 0 || index >= used) {
+            return false;
+        }
+        Session session = slots.get(index);
+        if (session == null || session.handle != handle) {
+            return false;
+        }
+        release(index);
+        return true;
+    }
+
+    // Close every unpinned session whose stack was retired by idle eviction; returns how many
+    synchronized int sweep() {
+        int closed = 0;
+        for (int index = 0; index < used; index++) {
+            Session session = slots.get(index);
+            if (session != null && !session.pinned && session.stack.retired) {
+                release(index);
+                closed++;
+            }
+        }
+        return closed;
+    }
+
+    // Sessions currently open
+    synchronized int size() {
+        return open;
+    }
+
+    private void release(int index) {
+        slots.set(index, null);
+        reuse[index] = (reuse[index] + 1) & REUSE_MASK;
+        if (freeCount == free.length) {
+            free = java.util.Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCount++] = index;
+        open--;
+    }
+
+    private void grow() {
+        AtomicReferenceArray<Session> current = slots;
+        AtomicReferenceArray<Session> grown = new AtomicReferenceArray<>(current.length() * 2);
+        for (int i = 0; i < current.length(); i++) {
+            grown.set(i, current.get(i));
+        }
+        reuse = java.util.Arrays.copyOf(reuse, grown.length());
+        slots = grown;
+    }
+}
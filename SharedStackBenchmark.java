@@ -0,0 +1,98 @@
+import java.util.EmptyStackException;
+import java.util.Stack;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+public class SharedStackBenchmark {
+    /*
+      In-process scalability of one stack shared by many threads, the structure behind
+      Calculator.pushShared/popShared: a synchronized java.util.Stack, a plain Treiber stack
+      (EliminationStack without slots) and EliminationStack with its elimination array.
+
+      Workload: every thread picks push or pop at random (half each) on the same stack,
+      which starts with 1000 values; a pop on an empty stack counts as an operation.
+
+      Inputs:
+        - args[0] (optional): comma-separated thread counts, default 1,2,4,8,16,32,64
+        - args[1] (optional): milliseconds per measurement, default 2000
+
+      Outputs:
+        - operations per second for each stack and thread count.
+
+      Special cases:
+        - Threads beyond the number of CPUs only add contention through preemption: on a
+          1-CPU host the counts measure the cost of contention, not parallel speedup.
+     */
+    public static void main(String[] args) throws Exception {
+        String threadList = args.length > 0 ? args[0] : "1,2,4,8,16,32,64";
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+        System.out.println("Shared stack benchmark, " + Runtime.getRuntime().availableProcessors() + " CPU(s)");
+        System.out.printf("%8s %16s %16s %16s%n", "threads", "synchronized", "treiber", "elimination");
+        for (String count : threadList.split(",")) {
+            int threads = Integer.parseInt(count);
+            Stack<Integer> locked = new Stack<>();
+            EliminationStack treiber = new EliminationStack(0);
+            EliminationStack elimination = new EliminationStack();
+            for (int i = 0; i < 1000; i++) {
+                locked.push(i);
+                treiber.push(i);
+                elimination.push(i);
+            }
+            double lockedRate = run(threads, millis, push -> {
+                if (push) {
+                    locked.push(1);
+                } else {
+                    try {
+                        locked.pop();
+                    } catch (EmptyStackException ignored) {
+                        // counted like a pop
+                    }
+                }
+            });
+            double treiberRate = run(threads, millis, push -> apply(treiber, push));
+            double eliminationRate = run(threads, millis, push -> apply(elimination, push));
+            System.out.printf("%8d %16.0f %16.0f %16.0f%n", threads, lockedRate, treiberRate, eliminationRate);
+        }
+    }
+
+    private interface Op {
+        void run(boolean push);
+    }
+
+    private static void apply(EliminationStack stack, boolean push) {
+        if (push) {
+            stack.push(1);
+        } else {
+            try {
+                stack.pop();
+            } catch (EmptyStackException ignored) {
+                // counted like a pop
+            }
+        }
+    }
+
+    // Operations per second over all threads, after a warmup of a quarter of the time
+    private static double run(int threads, long millis, Op op) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long warmupEnd = System.currentTimeMillis() + millis / 4;
+        long end = warmupEnd + millis;
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.currentTimeMillis() < warmupEnd) op.run(random.nextBoolean());
+                long n = 0;
+                // The clock is read every 256 operations to keep it out of the measurement
+                while (System.currentTimeMillis() < end) {
+                    for (int i = 0; i < 256; i++) op.run(random.nextBoolean());
+                    n += 256;
+                }
+                ops.add(n);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        return ops.sum() * 1000.0 / millis;
+    }
+}
@@ -0,0 +1,131 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/*
+  SlabAllocator hands out fixed-size blocks of off-heap memory for OffHeapIntStack. Memory is
+  reserved in large direct ByteBuffers (slabs) and cut into blocks of one size class each, so the
+  heap holds a few slab objects however many blocks are in use, and the garbage collector never
+  scans or copies the values.
+
+  Size classes: class c has blocks of MIN_BLOCK_BYTES << c bytes (64 bytes up to 1 GB). A slab is
+  SLAB_BYTES, or a single block for classes larger than that.
+
+  Free lists: a freed block stores the address of the next free block of its class in its first
+  8 bytes, so free lists take no heap either. A block address is the slab number in the high
+  32 bits and the byte offset within the slab in the low 32 bits.
+
+  Special cases:
+    - Slabs are never released: freed blocks are reused by later allocations of their class.
+    - allocate and free lock their size class only; reading and writing a block is up to its owner.
+    - allocate throws OutOfMemoryError when a block of more than MAX_BLOCK_BYTES is asked for,
+      or when the JVM's direct memory limit (-XX:MaxDirectMemorySize) is reached.
+ */
+final class SlabAllocator {
+    static final int MIN_BLOCK_BYTES = 64;
+    static final int MAX_BLOCK_BYTES = 1 << 30;
+    static final int SLAB_BYTES = 1 << 20;
+
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_BLOCK_BYTES / MIN_BLOCK_BYTES) + 1;
+
+    private static final class SizeClass {
+        final int blockBytes;
+        final int slabBytes;
+        // Published copy-on-grow, so owners can read slabs without the lock
+        volatile ByteBuffer[] slabs = new ByteBuffer[0];
+        int nextOffset;          // next never-used block in the newest slab
+        long freeHead = -1;      // address of the first free block, -1 if none
+        long blocksInUse;
+
+        SizeClass(int blockBytes) {
+            this.blockBytes = blockBytes;
+            this.slabBytes = Math.max(SLAB_BYTES, blockBytes);
+            this.nextOffset = slabBytes;
+        }
+    }
+
+    private final SizeClass[] classes = new SizeClass[CLASSES];
+
+    SlabAllocator() {
+        for (int c = 0; c < CLASSES; c++) {
+            classes[c] = new SizeClass(MIN_BLOCK_BYTES << c);
+        }
+    }
+
+    // Smallest size class whose blocks hold at least bytes
+    static int sizeClass(long bytes) {
+        if (bytes > MAX_BLOCK_BYTES) {
+            throw new OutOfMemoryError("Off-heap block of " + bytes + " bytes exceeds " + MAX_BLOCK_BYTES);
+        }
+        if (bytes <= MIN_BLOCK_BYTES) {
+            return 0;
+        }
+        return 64 - Long.numberOfLeadingZeros((bytes - 1) / MIN_BLOCK_BYTES);
+    }
+
+    static int blockBytes(int sizeClass) {
+        return MIN_BLOCK_BYTES << sizeClass;
+    }
+
+    // Address of a free block of sizeClass, zero-filled only if it was never used before
+    long allocate(int sizeClass) {
+        SizeClass sc = classes[sizeClass];
+        synchronized (sc) {
+            long block;
+            if (sc.freeHead >= 0) {
+                block = sc.freeHead;
+                sc.freeHead = slab(sizeClass, block).getLong(offset(block));
+            } else {
+                if (sc.nextOffset + sc.blockBytes > sc.slabBytes) {
+                    ByteBuffer[] grown = Arrays.copyOf(sc.slabs, sc.slabs.length + 1);
+                    grown[sc.slabs.length] = ByteBuffer.allocateDirect(sc.slabBytes).order(ByteOrder.nativeOrder());
+                    sc.slabs = grown;
+                    sc.nextOffset = 0;
+                }
+                block = ((long) (sc.slabs.length - 1) << 32) | sc.nextOffset;
+                sc.nextOffset += sc.blockBytes;
+            }
+            sc.blocksInUse++;
+            return block;
+        }
+    }
+
+    // Give a block from allocate(sizeClass) back; its contents are lost
+    void free(int sizeClass, long block) {
+        SizeClass sc = classes[sizeClass];
+        synchronized (sc) {
+            slab(sizeClass, block).putLong(offset(block), sc.freeHead);
+            sc.freeHead = block;
+            sc.blocksInUse--;
+        }
+    }
+
+    // The slab holding block; read and write the block at offset(block)
+    ByteBuffer slab(int sizeClass, long block) {
+        return classes[sizeClass].slabs[(int) (block >>> 32)];
+    }
+
+    static int offset(long block) {
+        return (int) block;
+    }
+
+    // Off-heap bytes reserved in slabs
+    long reservedBytes() {
+        long bytes = 0;
+        for (SizeClass sc : classes) {
+            bytes += (long) sc.slabs.length * sc.slabBytes;
+        }
+        return bytes;
+    }
+
+    // Off-heap bytes in blocks currently allocated
+    long usedBytes() {
+        long bytes = 0;
+        for (SizeClass sc : classes) {
+            synchronized (sc) {
+                bytes += sc.blocksInUse * sc.blockBytes;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,39 @@
+import java.io.Serializable;
+
+/*
+  StackMove is a copy of one client stack on its way to a new node (ClusterNode.copyStack).
+  The move id is drawn by the old node the first time the stack is copied and kept on the
+  stack until it is taken, so every retry of the same move carries the same id.
+
+  Special cases:
+    - The new node remembers the id of the last move it received for a client, so putting the
+      same move again replaces the values it put before instead of adding them a second time.
+    - takeStack takes the stack only if it still starts with these values, so a value popped
+      on the old node while the stack moved is reported instead of silently lost.
+    - A client without a stack gives id 0 and no values.
+ */
+public final class StackMove implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long moveId;
+    private final int[] values;
+
+    public StackMove(long moveId, int[] values) {
+        this.moveId = moveId;
+        this.values = values;
+    }
+
+    public long getMoveId() {
+        return moveId;
+    }
+
+    // The values from bottom to top
+    public int[] getValues() {
+        return values.clone();
+    }
+
+    // Number of values, without copying them
+    public int size() {
+        return values.length;
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/*
+  StackSnapshot writes and reads a compact binary image of all client stacks.
+  The file is written and read through memory-mapped windows of a FileChannel, so the
+  values of each stack are copied straight between its backing array and the page cache.
+
+  Each stack is copied under its own lock, together with the LSN of its last log record.
+  The snapshot is therefore not a single point in time: replay skips, per client, the
+  records up to that client's LSN (see StackStore).
+
+  File layout (big-endian):
+    header: int MAGIC, int VERSION, long generation, long LSN of the log at rotation
+    entries: int length of the rest of the entry, long lastLsn, short clientId length,
+             clientId (UTF-8), int count, count ints from bottom to top
+    trailer: int 0, long number of entries
+
+  Special cases:
+    - Entries never straddle two windows; an entry larger than a window gets a window of its own.
+    - A file without its trailer (crash while writing) is rejected; StackStore only ever
+      renames complete files into place, so this means the disk was damaged.
+ */
+final class StackSnapshot {
+
+    private static final int MAGIC = 0x43534e50;  // "CSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER = 4 + 4 + 8 + 8;
+    private static final int ENTRY_HEADER = 8 + 2 + 4;
+    private static final int TRAILER = 4 + 8;
+
+    // Size of each mapped window
+    private static final int WINDOW = 64 << 20;
+
+    private StackSnapshot() {
+    }
+
+    static Path file(Path dir, long generation) {
+        return dir.resolve(String.format("snapshot-%010d.snap", generation));
+    }
+
+    /*
+      Write every live stack of stacks to file and force it to disk.
+      @return the number of stacks written
+     */
+    static long write(Path file, long generation, long rotationLsn, Map<String, IntStack> stacks) throws IOException {
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long windowStart = 0;
+            MappedByteBuffer window = out.map(FileChannel.MapMode.READ_WRITE, 0, WINDOW);
+            window.putInt(MAGIC).putInt(VERSION).putLong(generation).putLong(rotationLsn);
+            long entries = 0;
+            for (Map.Entry<String, IntStack> e : stacks.entrySet()) {
+                byte[] id = e.getKey().getBytes(StandardCharsets.UTF_8);
+                if (id.length > WriteAheadLog.MAX_CLIENT_ID) {
+                    throw new IOException("Client id of " + id.length + " bytes too long for a snapshot");
+                }
+                IntStack stack = e.getValue();
+                synchronized (stack) {
+                    if (stack.retired) continue;
+                    int count = stack.size();
+                    long length = ENTRY_HEADER + id.length + 4L * count;
+                    if (length > Integer.MAX_VALUE - 4 - TRAILER) {
+                        throw new IOException("Client " + e.getKey() + ": stack too large for a snapshot");
+                    }
+                    if (window.remaining() < 4 + length + TRAILER) {
+                        window.force();
+                        windowStart += window.position();
+                        window = out.map(FileChannel.MapMode.READ_WRITE, windowStart, Math.max(WINDOW, 4 + length + TRAILER));
+                    }
+                    window.putInt((int) length).putLong(stack.lastLsn).putShort((short) id.length).put(id).putInt(count);
+                    window.asIntBuffer().put(stack.elements(), 0, count);
+                    window.position(window.position() + 4 * count);
+                }
+                entries++;
+            }
+            window.putInt(0).putLong(entries);
+            window.force();
+            out.truncate(windowStart + window.position());
+            out.force(true);
+            return entries;
+        }
+    }
+
+    /*
+      Load the stacks of a snapshot into stacks; each gets the lastLsn it was written with.
+      @return the highest LSN in the snapshot (the rotation LSN if no stack is newer)
+      @throws IOException if the file is not a complete snapshot
+     */
+    static long read(Path file, Map<String, IntStack> stacks) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < HEADER + TRAILER) {
+                throw new IOException("Truncated snapshot " + file);
+            }
+            long windowStart = 0;
+            MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(WINDOW, size));
+            if (window.getInt() != MAGIC || window.getInt() != VERSION) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            window.getLong();
+            long maxLsn = window.getLong();
+            long entries = 0;
+            for (;;) {
+                if (window.remaining() < 4) {
+                    windowStart += window.position();
+                    window = remap(in, windowStart, 4, size, file);
+                }
+                int length = window.getInt();
+                if (length == 0) break;
+                if (length < ENTRY_HEADER || windowStart + window.position() + length > size) {
+                    throw new IOException("Corrupt snapshot entry in " + file);
+                }
+                if (window.remaining() < length) {
+                    windowStart += window.position() - 4;
+                    window = remap(in, windowStart, 4 + length, size, file);
+                    window.getInt();
+                }
+                long lastLsn = window.getLong();
+                byte[] id = new byte[window.getShort() & 0xffff];
+                window.get(id);
+                int[] values = new int[window.getInt()];
+                window.asIntBuffer().get(values);
+                window.position(window.position() + 4 * values.length);
+
+                IntStack stack = new IntStack();
+                stack.pushAll(values);
+                stack.lastLsn = lastLsn;
+                stacks.put(new String(id, StandardCharsets.UTF_8), stack);
+                maxLsn = Math.max(maxLsn, lastLsn);
+                entries++;
+            }
+            if (window.remaining() < 8) {
+                windowStart += window.position();
+                window = remap(in, windowStart, 8, size, file);
+            }
+            if (window.getLong() != entries) {
+                throw new IOException("Corrupt snapshot " + file + ": entry count does not match");
+            }
+            return maxLsn;
+        }
+    }
+
+    // A read-only window at position holding at least needed bytes
+    private static MappedByteBuffer remap(FileChannel in, long position, int needed, long size, Path file) throws IOException {
+        long length = Math.min(Math.max(WINDOW, needed), size - position);
+        if (length < needed) {
+            throw new IOException("Truncated snapshot " + file);
+        }
+        return in.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+}
@@ -0,0 +1,219 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/*
+  StackStore makes the client stacks of CalculatorImplementation survive a restart.
+  Every change is appended to a WriteAheadLog (group commit) and a StackSnapshot of all
+  stacks is written periodically; startup loads the last snapshot and replays the log tail.
+
+  Files in the persistence directory:
+    - wal-<generation>.log: log segments; a new one is started by every snapshot and every startup.
+    - snapshot-<generation>.snap: all stacks as of that generation's rotation point.
+  A snapshot is written to a .tmp file and renamed when complete; only then are the segments
+  and snapshots it makes obsolete deleted.
+
+  Recovery:
+    1. Load the newest snapshot, if any (generation G). Each stack has the LSN of its last record.
+    2. Replay every segment of generation G or newer in order. A record is skipped if its
+       client's stack already holds it (its LSN is not above the stack's lastLsn).
+    3. Open a new segment after the newest one, continuing the LSNs.
+  A stack that was missing from the snapshot was created or evicted after the rotation,
+  so every record that shaped it is in the replayed segments.
+
+  Special cases:
+    - Replay is tolerant: a POP on an empty stack is ignored. Such records can only be read
+      for stacks that the snapshot did not hold, whose older values were dropped anyway.
+    - Callers must append under the stack's lock and wait for durability after releasing it.
+ */
+final class StackStore implements Closeable {
+
+    private final Path dir;
+    private final WriteAheadLog log;
+
+    // Recovery statistics
+    private final int recoveredClients;
+    private final long replayedRecords;
+    private final long recoveryMillis;
+
+    private StackStore(Path dir, WriteAheadLog log, int recoveredClients, long replayedRecords, long recoveryMillis) {
+        this.dir = dir;
+        this.log = log;
+        this.recoveredClients = recoveredClients;
+        this.replayedRecords = replayedRecords;
+        this.recoveryMillis = recoveryMillis;
+    }
+
+    /*
+      Recover the stacks saved in dir into stacks (normally empty) and open the log for new changes.
+      The directory is created if needed.
+      @throws IOException if the directory cannot be used or a snapshot is corrupt
+     */
+    static StackStore open(Path dir, boolean sync, Map<String, IntStack> stacks) throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(dir);
+        List<Long> snapshots = generations(dir, "snapshot-", ".snap");
+        List<Long> segments = generations(dir, "wal-", ".log");
+
+        long base = 0;
+        long maxLsn = 0;
+        if (!snapshots.isEmpty()) {
+            base = snapshots.get(snapshots.size() - 1);
+            maxLsn = StackSnapshot.read(StackSnapshot.file(dir, base), stacks);
+        }
+        long[] replayed = new long[1];
+        long lastGeneration = base;
+        for (long generation : segments) {
+            if (generation < base) continue;
+            long last = WriteAheadLog.replay(WriteAheadLog.segment(dir, generation),
+                    (lsn, clientId, type, values, count) -> {
+                        if (apply(stacks, lsn, clientId, type, values, count)) replayed[0]++;
+                    });
+            maxLsn = Math.max(maxLsn, last);
+            lastGeneration = Math.max(lastGeneration, generation);
+        }
+        deleteBefore(dir, base);
+
+        WriteAheadLog log = new WriteAheadLog(dir, lastGeneration + 1, maxLsn + 1, sync);
+        return new StackStore(dir, log, stacks.size(), replayed[0], (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // Apply one log record during recovery; false if the snapshot already held it
+    private static boolean apply(Map<String, IntStack> stacks, long lsn, String clientId, byte type, int[] values, int count) {
+        IntStack stack = stacks.get(clientId);
+        if (stack != null && lsn <= stack.lastLsn) {
+            return false;
+        }
+        if (type == WriteAheadLog.EVICT) {
+            stacks.remove(clientId);
+            return true;
+        }
+        if (stack == null) {
+            stack = new IntStack();
+            stacks.put(clientId, stack);
+        }
+        switch (type) {
+            case WriteAheadLog.PUSH:
+                for (int i = 0; i < count; i++) {
+                    stack.push(values[i]);
+                }
+                break;
+            case WriteAheadLog.POP:
+                if (!stack.isEmpty()) {
+                    stack.pop();
+                }
+                break;
+            case WriteAheadLog.REPLACE:
+                stack.replaceWith(values[0]);
+                break;
+            case WriteAheadLog.CLEAR:
+                stack.clear();
+                break;
+            default:
+                throw new IllegalStateException("Unknown log record type " + type + " at LSN " + lsn);
+        }
+        stack.lastLsn = lsn;
+        return true;
+    }
+
+    // Log a change without values (POP, CLEAR, EVICT) of the stack of clientId; call under the stack's lock
+    long append(String clientId, IntStack stack, byte type) {
+        return stack.lastLsn = log.append(clientId, type);
+    }
+
+    // Log a change with one value (PUSH, REPLACE); call under the stack's lock
+    long append(String clientId, IntStack stack, byte type, int value) {
+        return stack.lastLsn = log.append(clientId, type, value);
+    }
+
+    // Log a push of several values; call under the stack's lock
+    long appendAll(String clientId, IntStack stack, int[] values) {
+        return stack.lastLsn = log.append(clientId, WriteAheadLog.PUSH, values, 0, values.length);
+    }
+
+    // Wait until the change with this LSN is durable; call after releasing the stack's lock
+    void awaitDurable(long lsn) throws IOException {
+        log.awaitDurable(lsn);
+    }
+
+    /*
+      Write a snapshot of stacks and delete the log segments and snapshots it replaces.
+      One snapshot runs at a time; calls and other snapshots wait for each other only per stack.
+      @return the number of stacks written
+     */
+    synchronized long snapshot(Map<String, IntStack> stacks) throws IOException {
+        long generation = log.rotate();
+        long rotationLsn = log.lastLsn();
+        Path tmp = dir.resolve(StackSnapshot.file(dir, generation).getFileName() + ".tmp");
+        long written = StackSnapshot.write(tmp, generation, rotationLsn, stacks);
+        Files.move(tmp, StackSnapshot.file(dir, generation), StandardCopyOption.ATOMIC_MOVE);
+        // The writer has switched segments once everything up to now is durable
+        log.awaitDurable(log.lastLsn());
+        deleteBefore(dir, generation);
+        return written;
+    }
+
+    int getRecoveredClients() {
+        return recoveredClients;
+    }
+
+    long getReplayedRecords() {
+        return replayedRecords;
+    }
+
+    long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    long getRecordCount() {
+        return log.getRecordCount();
+    }
+
+    long getBatchCount() {
+        return log.getBatchCount();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    // Generations of the files named prefix<generation>suffix in dir, in ascending order
+    private static List<Long> generations(Path dir, String prefix, String suffix) throws IOException {
+        List<Long> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    result.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // not ours
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    // Delete segments and snapshots older than generation, and unfinished snapshots
+    private static void deleteBefore(Path dir, long generation) throws IOException {
+        for (long g : generations(dir, "wal-", ".log")) {
+            if (g < generation) Files.deleteIfExists(WriteAheadLog.segment(dir, g));
+        }
+        for (long g : generations(dir, "snapshot-", ".snap")) {
+            if (g < generation) Files.deleteIfExists(StackSnapshot.file(dir, g));
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "snapshot-*.snap.tmp")) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.lang.management.ManagementFactory;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.Random;
+
+public class StreamingReduceBenchmark {
+    /*
+      Reduces one large operand set over RMI on localhost in two ways:
+        stack   pushValues in chunks, then pushOperation and pop (the server holds every value)
+        stream  beginReduce, reduceChunk per chunk, endReduce and pop (the server holds one chunk)
+
+      Inputs:
+        - args[0] (optional): number of values, default 20000000
+        - args[1] (optional): values per chunk (per remote call), default 65536
+        - args[2] (optional): operator, default sum
+
+      Outputs, per way:
+        - server MB: heap in use after a full collection, with every chunk sent but not yet reduced
+        - values/s over the whole reduction, and the result (both ways must agree: PASS/FAIL)
+
+      Special cases:
+        - The calculator runs in this JVM behind a registry on a free port, so the heap measured is
+          the server's plus this client's one chunk. Run with a heap large enough for the stack way
+          (about 4 bytes per value, more while its array grows).
+        - Values are random in [-1000, 1000], so sum and xor fit in an int.
+     */
+    public static void main(String[] args) throws Exception {
+        long count = args.length > 0 ? Long.parseLong(args[0]) : 20_000_000L;
+        int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : 65536;
+        String operator = args.length > 2 ? args[2] : "sum";
+        System.setProperty("calculator.log", "off");
+
+        CalculatorImplementation calc = new CalculatorImplementation(new CalculatorConfig().setMetricsEnabled(false));
+        int rmiPort = 20000 + (int) (ProcessHandle.current().pid() % 10000);
+        Registry registry = LocateRegistry.createRegistry(rmiPort);
+        registry.bind("Calculator", calc);
+        Calculator rmi = (Calculator) LocateRegistry.getRegistry("localhost", rmiPort).lookup("Calculator");
+        try {
+            System.out.println("Streaming reduce benchmark: " + count + " values, chunks of " + chunkSize + ", " + operator);
+            System.out.printf("%-8s %10s %12s %12s%n", "way", "server MB", "values/s", "result");
+            int[] results = new int[2];
+            for (int way = 0; way < 2; way++) {
+                String clientId = "StreamingReduceBenchmark-" + way + "-" + java.util.UUID.randomUUID();
+                long baseline = usedHeap();
+                // The same values both ways
+                Random random = new Random(42);
+                int[] chunk = new int[chunkSize];
+                long start = System.nanoTime();
+                long stream = way == 0 ? -1 : rmi.beginReduce(clientId, operator);
+                for (long sent = 0; sent < count; ) {
+                    int n = (int) Math.min(chunkSize, count - sent);
+                    int[] values = n == chunkSize ? chunk : new int[n];
+                    for (int i = 0; i < n; i++) values[i] = random.nextInt(2001) - 1000;
+                    if (way == 0) {
+                        rmi.pushValues(clientId, values);
+                    } else {
+                        rmi.reduceChunk(stream, values);
+                    }
+                    sent += n;
+                }
+                // Measured outside the timed part
+                long paused = System.nanoTime();
+                long heap = Math.max(0, usedHeap() - baseline);
+                start += System.nanoTime() - paused;
+                if (way == 0) {
+                    rmi.pushOperation(clientId, operator);
+                } else {
+                    rmi.endReduce(stream);
+                }
+                results[way] = rmi.pop(clientId);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%-8s %10.1f %12.0f %12d%n", way == 0 ? "stack" : "stream",
+                        heap / 1e6, count / seconds, results[way]);
+            }
+            System.out.println(results[0] == results[1] ? "PASS: same result both ways" : "FAIL: results differ");
+        } finally {
+            java.rmi.server.UnicastRemoteObject.unexportObject(registry, true);
+            calc.shutdown();
+        }
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,91 @@
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.UUID;
+
+public class TransportBenchmark {
+    /*
+      Round-trip latency of small RMI calls on localhost with RMI's default transport and with
+      TunedSocketFactory, each serving its own in-process CalculatorImplementation.
+
+      Transports:
+        default  LocateRegistry.createRegistry(port) and an anonymous export port
+        tuned    TunedSocketFactory (64 KB buffers, backlog 128) for the registry and the export,
+                 with the calculator exported on the registry port (one listening socket)
+
+      Inputs:
+        - args[0] (optional): measured calls per transport and call, default 50000
+        - args[1] (optional): warmup calls, default 20000
+
+      Outputs:
+        - mean, p50, p99, p99.9 and max round-trip time in microseconds of isEmpty (smallest
+          call) and of a pushValue+pop pair, for each transport, measured twice in turn so
+          JIT warmup does not favour the transport measured second.
+
+      Special cases:
+        - The server log and metrics are off. Registry ports are derived from the process id.
+     */
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int warmup = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        System.setProperty("calculator.log", "off");
+        int basePort = 30000 + (int) (ProcessHandle.current().pid() % 10000) * 2;
+
+        CalculatorImplementation plainCalc = new CalculatorImplementation(new CalculatorConfig().setMetricsEnabled(false));
+        Registry plainRegistry = LocateRegistry.createRegistry(basePort);
+        plainRegistry.bind("Calculator", plainCalc);
+
+        CalculatorConfig tunedConfig = new CalculatorConfig().setMetricsEnabled(false)
+                .setSocketBufferSize(64 * 1024).setAcceptBacklog(128).setExportPort(basePort + 1);
+        TunedSocketFactory sockets = TunedSocketFactory.forConfig(tunedConfig);
+        Registry tunedRegistry = LocateRegistry.createRegistry(basePort + 1, sockets, sockets);
+        CalculatorImplementation tunedCalc = new CalculatorImplementation(tunedConfig);
+        tunedRegistry.bind("Calculator", tunedCalc);
+
+        Calculator plain = (Calculator) LocateRegistry.getRegistry("localhost", basePort).lookup("Calculator");
+        Calculator tuned = (Calculator) LocateRegistry.getRegistry("localhost", basePort + 1, sockets).lookup("Calculator");
+        try {
+            System.out.printf("%-9s %-9s %9s %9s %9s %9s %9s%n", "transport", "call", "mean us", "p50 us", "p99 us", "p99.9 us", "max us");
+            for (int round = 0; round < 2; round++) {
+                measure("default", plain, calls, warmup);
+                measure("tuned", tuned, calls, warmup);
+            }
+        } finally {
+            plainRegistry.unbind("Calculator");
+            tunedRegistry.unbind("Calculator");
+            UnicastRemoteObject.unexportObject(plainRegistry, true);
+            UnicastRemoteObject.unexportObject(tunedRegistry, true);
+            plainCalc.shutdown();
+            tunedCalc.shutdown();
+        }
+    }
+
+    private static void measure(String transport, Calculator calc, int calls, int warmup) throws Exception {
+        String clientId = "transport-" + UUID.randomUUID();
+        for (int i = 0; i < warmup; i++) {
+            calc.isEmpty(clientId);
+            calc.pushValue(clientId, i);
+            calc.pop(clientId);
+        }
+        LatencyHistogram isEmpty = new LatencyHistogram();
+        LatencyHistogram pushPop = new LatencyHistogram();
+        for (int i = 0; i < calls; i++) {
+            long start = System.nanoTime();
+            calc.isEmpty(clientId);
+            long middle = System.nanoTime();
+            calc.pushValue(clientId, i);
+            calc.pop(clientId);
+            long end = System.nanoTime();
+            isEmpty.record(middle - start);
+            pushPop.record(end - middle);
+        }
+        print(transport, "isEmpty", isEmpty);
+        print(transport, "push+pop", pushPop);
+    }
+
+    private static void print(String transport, String call, LatencyHistogram histogram) {
+        System.out.printf("%-9s %-9s %9.1f %9.1f %9.1f %9.1f %9.1f%n", transport, call, histogram.getMean() / 1000,
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0);
+    }
+}
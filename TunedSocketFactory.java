@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+
+/*
+  TunedSocketFactory creates the sockets of the RMI registry and of the exported calculator
+  when CalculatorConfig sets any socket option (see forConfig). One instance is both the
+  server factory and the client factory: RMI sends the client factory to callers inside the
+  stub, so every client connects with the same options.
+
+  Options:
+    - bufferSize: SO_SNDBUF and SO_RCVBUF of client sockets, and SO_RCVBUF of the listening
+      socket, which accepted sockets inherit (0 keeps the OS default).
+    - backlog: accept queue length of the listening socket (0 keeps Java's default of 50).
+    - connectTimeoutMillis: how long a client waits to connect (0 waits as long as the OS does).
+
+  Special cases:
+    - TCP_NODELAY is always on: calls are small request/response pairs that Nagle's algorithm
+      would delay. RMI also turns it on for the sockets it gets from any factory.
+    - equals and hashCode compare the options. RMI reuses a listening port and pooled client
+      connections only between equal factories, so the registry and the calculator can share
+      one port (calculator.exportPort set to the registry port) and stubs share connections.
+ */
+public final class TunedSocketFactory implements RMIClientSocketFactory, RMIServerSocketFactory, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int bufferSize;
+    private final int backlog;
+    private final int connectTimeoutMillis;
+
+    public TunedSocketFactory(int bufferSize, int backlog, int connectTimeoutMillis) {
+        this.bufferSize = bufferSize;
+        this.backlog = backlog;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    // Factory for the socket settings of config, or null when all are defaults (plain RMI sockets)
+    public static TunedSocketFactory forConfig(CalculatorConfig config) {
+        if (config.getSocketBufferSize() <= 0 && config.getAcceptBacklog() <= 0 && config.getConnectTimeoutMillis() <= 0) {
+            return null;
+        }
+        return new TunedSocketFactory(Math.max(0, config.getSocketBufferSize()), Math.max(0, config.getAcceptBacklog()),
+                Math.max(0, config.getConnectTimeoutMillis()));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            if (bufferSize > 0) {
+                socket.setSendBufferSize(bufferSize);
+                socket.setReceiveBufferSize(bufferSize);
+            }
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        ServerSocket server = new ServerSocket();
+        try {
+            // Set before bind so windows above 64 KB can be negotiated with each connection
+            if (bufferSize > 0) {
+                server.setReceiveBufferSize(bufferSize);
+            }
+            server.bind(new InetSocketAddress(port), backlog);
+            return server;
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TunedSocketFactory)) return false;
+        TunedSocketFactory other = (TunedSocketFactory) o;
+        return bufferSize == other.bufferSize && backlog == other.backlog && connectTimeoutMillis == other.connectTimeoutMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        return (bufferSize * 31 + backlog) * 31 + connectTimeoutMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "TunedSocketFactory[bufferSize=" + bufferSize + ", backlog=" + backlog
+                + ", connectTimeoutMillis=" + connectTimeoutMillis + "]";
+    }
+}
@@ -0,0 +1,457 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+  WriteAheadLog appends every change of a client stack to a log file before the call returns.
+
+  Group commit: callers copy their record into a shared buffer (under a short lock, no I/O)
+  and then wait for it to become durable. One writer thread swaps the buffer, writes it with
+  a single write() and, when sync is on, a single fsync; every caller that appended meanwhile
+  is released by that one fsync. The busier the server, the more records share each fsync.
+
+  Records carry a global log sequence number (LSN), assigned in append order. StackStore keeps
+  the LSN of the last record of each stack, so replay can skip records a snapshot already holds.
+
+  Segments: the log is split into files wal-<generation>.log. rotate() starts a new generation
+  at the current end of the log; StackStore rotates before each snapshot, so every segment older
+  than the last complete snapshot can be deleted.
+
+  Record layout (big-endian):
+    int length of the body, int CRC32 of the body,
+    body: long lsn, byte type, short clientId length, clientId (UTF-8), int count, count ints
+  A torn or corrupt record (crash during a write) ends replay of its segment.
+
+  Special cases:
+    - Once a write or fsync fails, every later awaitDurable throws; the in-memory stacks are
+      ahead of the log from then on, so callers report the failure instead of acknowledging.
+    - With sync off, records are written to the OS without fsync: they survive a process crash
+      but not a power loss.
+ */
+final class WriteAheadLog implements Closeable {
+
+    // Record types
+    static final byte PUSH = 1;     // push count values
+    static final byte POP = 2;      // pop one value
+    static final byte REPLACE = 3;  // replace the whole stack by one value (operation result)
+    static final byte CLEAR = 4;    // drop all values (popOperationLong/popOperationBig)
+    static final byte EVICT = 5;    // drop the client stack (idle eviction)
+
+    // length and CRC32 ahead of the body; lsn, type, id length and count in the body
+    private static final int RECORD_HEADER = 8;
+    private static final int BODY_HEADER = 8 + 1 + 2 + 4;
+    private static final int MAX_BODY = 1 << 30;
+
+    // Longest clientId, in UTF-8 bytes, that the short length of a record or snapshot entry holds
+    static final int MAX_CLIENT_ID = 0xffff;
+
+    // A drained buffer larger than this is replaced by a small one, so one burst does not pin memory
+    private static final int RETAIN_BUFFER = 1 << 20;
+
+    private final Path dir;
+    private final boolean sync;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition work = lock.newCondition();      // writer: records or a rotation pending
+    private final Condition durable = lock.newCondition();   // callers: durableLsn advanced or failure
+    private final Condition rotated = lock.newCondition();   // rotate(): the previous rotation was taken
+
+    // Guarded by lock
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private long nextLsn;
+    private long durableLsn;
+    private long generation;
+    private int rotateAt = -1;     // offset in pending where the next segment starts, -1 if none
+    private long rotateGen;
+    private boolean closed;
+    private IOException failure;
+    private final CRC32 crc = new CRC32();
+
+    // Written by the writer thread only
+    private FileChannel channel;
+    private volatile long records;
+    private volatile long batches;
+    private volatile long bytes;
+
+    private final Thread writer;
+
+    /*
+      Open segment generation of dir for appending; the first record gets firstLsn.
+      @throws IOException if the segment cannot be opened
+     */
+    WriteAheadLog(Path dir, long generation, long firstLsn, boolean sync) throws IOException {
+        this.dir = dir;
+        this.sync = sync;
+        this.generation = generation;
+        this.nextLsn = firstLsn;
+        this.durableLsn = firstLsn - 1;
+        this.channel = open(segment(dir, generation));
+        writer = new Thread(this::writeLoop, "calculator-wal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    static Path segment(Path dir, long generation) {
+        return dir.resolve(String.format("wal-%010d.log", generation));
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Append a record with no values (POP, CLEAR, EVICT); returns its LSN
+    long append(String clientId, byte type) {
+        return append(clientId, type, null, 0, 0);
+    }
+
+    // Append a record with one value (PUSH, REPLACE); returns its LSN
+    long append(String clientId, byte type, int value) {
+        byte[] id = clientId.getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            ByteBuffer buf = reserve(id.length, 1);
+            long lsn = nextLsn++;
+            if (buf != null) {
+                int start = beginRecord(buf, lsn, type, id, 1);
+                buf.putInt(value);
+                endRecord(buf, start);
+            }
+            return lsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Append a record with values[from, from + count); returns its LSN
+    long append(String clientId, byte type, int[] values, int from, int count) {
+        byte[] id = clientId.getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            ByteBuffer buf = reserve(id.length, count);
+            long lsn = nextLsn++;
+            if (buf != null) {
+                int start = beginRecord(buf, lsn, type, id, count);
+                for (int i = 0; i < count; i++) {
+                    buf.putInt(values[from + i]);
+                }
+                endRecord(buf, start);
+            }
+            return lsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+      Room for one record in the pending buffer, growing it if needed; called under the lock.
+      Returns null once the log has failed or is closed: the record is then only counted.
+     */
+    private ByteBuffer reserve(int idLength, int count) {
+        if (failure != null || closed) {
+            return null;
+        }
+        if (idLength > MAX_CLIENT_ID) {
+            throw new IllegalArgumentException("Client id too long for the log: " + idLength + " bytes");
+        }
+        long body = BODY_HEADER + idLength + 4L * count;
+        if (body > MAX_BODY) {
+            throw new IllegalArgumentException("Log record too large: " + body + " bytes");
+        }
+        int needed = RECORD_HEADER + (int) body;
+        if (pending.remaining() < needed) {
+            long capacity = Math.max((long) pending.capacity() * 2, (long) pending.position() + needed);
+            ByteBuffer grown = ByteBuffer.allocate((int) Math.min(capacity, Integer.MAX_VALUE - 8));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        return pending;
+    }
+
+    private int beginRecord(ByteBuffer buf, long lsn, byte type, byte[] id, int count) {
+        int start = buf.position();
+        buf.position(start + RECORD_HEADER);
+        buf.putLong(lsn).put(type).putShort((short) id.length).put(id).putInt(count);
+        return start;
+    }
+
+    // Fill in the length and CRC of the record starting at start and wake the writer
+    private void endRecord(ByteBuffer buf, int start) {
+        int bodyStart = start + RECORD_HEADER;
+        int bodyLength = buf.position() - bodyStart;
+        crc.reset();
+        crc.update(buf.array(), bodyStart, bodyLength);
+        buf.putInt(start, bodyLength);
+        buf.putInt(start + 4, (int) crc.getValue());
+        work.signal();
+    }
+
+    /*
+      Wait until the record lsn and every record before it are written (and fsynced when sync is on).
+      @throws IOException if the log failed or was closed before that, or the caller was interrupted
+     */
+    void awaitDurable(long lsn) throws IOException {
+        lock.lock();
+        try {
+            while (durableLsn < lsn) {
+                if (failure != null) {
+                    throw new IOException("Write-ahead log failed", failure);
+                }
+                if (closed && !writer.isAlive()) {
+                    throw new IOException("Write-ahead log closed");
+                }
+                durable.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the write-ahead log");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // LSN of the last record appended so far
+    long lastLsn() {
+        lock.lock();
+        try {
+            return nextLsn - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+      Start a new segment: records appended from now on go to the returned generation.
+      Returns without waiting for the writer to switch files.
+     */
+    long rotate() throws IOException {
+        lock.lock();
+        try {
+            while (rotateAt >= 0 && failure == null && !closed) {
+                rotated.await();
+            }
+            if (failure != null || closed) {
+                throw new IOException("Write-ahead log " + (closed ? "closed" : "failed"), failure);
+            }
+            rotateAt = pending.position();
+            rotateGen = ++generation;
+            work.signal();
+            return rotateGen;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted rotating the write-ahead log");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Records written since the log was opened
+    long getRecordCount() {
+        return records;
+    }
+
+    // Writes (and fsyncs when sync is on) since the log was opened; records / batches is the group size
+    long getBatchCount() {
+        return batches;
+    }
+
+    long getByteCount() {
+        return bytes;
+    }
+
+    // Write what was appended so far, then stop the writer and close the segment
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            work.signal();
+            rotated.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            durable.signalAll();
+            if (failure != null) {
+                throw new IOException("Write-ahead log failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        ByteBuffer writing = ByteBuffer.allocate(pending.capacity());
+        for (;;) {
+            int split;
+            long splitGen;
+            long upTo;
+            long count;
+            boolean stop;
+            lock.lock();
+            try {
+                while (pending.position() == 0 && rotateAt < 0 && !closed) {
+                    work.awaitUninterruptibly();
+                }
+                // Swap buffers: appenders fill the other one while this batch is written
+                ByteBuffer full = pending;
+                pending = writing;
+                pending.clear();
+                writing = full;
+                split = rotateAt;
+                splitGen = rotateGen;
+                if (split >= 0) {
+                    rotateAt = -1;
+                    rotated.signalAll();
+                }
+                upTo = nextLsn - 1;
+                count = upTo - durableLsn;
+                stop = closed;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            writing.flip();
+            try {
+                if (split >= 0) {
+                    int limit = writing.limit();
+                    writing.limit(split);
+                    writeFully(writing);
+                    channel.force(false);
+                    channel.close();
+                    channel = open(segment(dir, splitGen));
+                    writing.limit(limit);
+                }
+                int written = writing.remaining();
+                writeFully(writing);
+                if (sync && written > 0) {
+                    channel.force(false);
+                }
+                if (stop) {
+                    channel.force(false);
+                    channel.close();
+                }
+                bytes += written;
+                records += count;
+                batches++;
+            } catch (IOException e) {
+                error = e;
+            }
+            if (writing.capacity() > RETAIN_BUFFER) {
+                writing = ByteBuffer.allocate(64 * 1024);
+            }
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                    rotated.signalAll();
+                } else {
+                    durableLsn = upTo;
+                }
+                durable.signalAll();
+                if (error != null || stop) {
+                    if (error != null) {
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {
+                            // already failed
+                        }
+                    }
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    // Receives the records of a segment in log order
+    interface Visitor {
+        void record(long lsn, String clientId, byte type, int[] values, int count);
+    }
+
+    /*
+      Read every complete record of a segment in order.
+      Stops quietly at a torn or corrupt record, which only a crash during a write leaves behind.
+      @return the LSN of the last record read, or 0 if there was none
+     */
+    static long replay(Path segment, Visitor visitor) throws IOException {
+        long last = 0;
+        try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+            buf.flip();
+            CRC32 crc = new CRC32();
+            int[] values = new int[16];
+            for (;;) {
+                if (!fill(in, buf, RECORD_HEADER)) break;
+                int bodyLength = buf.getInt();
+                int checksum = buf.getInt();
+                if (bodyLength < BODY_HEADER || bodyLength > MAX_BODY) break;
+                if (buf.capacity() < bodyLength) {
+                    ByteBuffer grown = ByteBuffer.allocate(bodyLength);
+                    grown.put(buf).flip();
+                    buf = grown;
+                }
+                if (!fill(in, buf, bodyLength)) break;
+                crc.reset();
+                crc.update(buf.array(), buf.position(), bodyLength);
+                if ((int) crc.getValue() != checksum) break;
+                long lsn = buf.getLong();
+                byte type = buf.get();
+                byte[] id = new byte[buf.getShort() & 0xffff];
+                buf.get(id);
+                int count = buf.getInt();
+                if (count < 0 || BODY_HEADER + id.length + 4L * count != bodyLength) {
+                    throw new IOException("Corrupt log record at LSN " + lsn + " in " + segment);
+                }
+                if (values.length < count) {
+                    values = new int[Math.max(count, values.length * 2)];
+                }
+                for (int i = 0; i < count; i++) {
+                    values[i] = buf.getInt();
+                }
+                visitor.record(lsn, new String(id, StandardCharsets.UTF_8), type, values, count);
+                last = lsn;
+            }
+        }
+        return last;
+    }
+
+    // Make at least n bytes readable in buf; false at the end of the file
+    private static boolean fill(FileChannel in, ByteBuffer buf, int n) throws IOException {
+        if (buf.remaining() >= n) {
+            return true;
+        }
+        buf.compact();
+        while (buf.position() < n) {
+            if (in.read(buf) < 0) {
+                buf.flip();
+                return false;
+            }
+        }
+        buf.flip();
+        return true;
+    }
+}